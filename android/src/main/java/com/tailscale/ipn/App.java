@@ -11,32 +11,30 @@ import android.app.Fragment;
 import android.app.FragmentTransaction;
 import android.app.NotificationChannel;
 import android.app.PendingIntent;
-import android.app.UiModeManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageInfo;
-import android.content.pm.Signature;
-import android.content.res.Configuration;
-import android.provider.MediaStore;
-import android.provider.Settings;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
 import android.net.Uri;
 import android.net.VpnService;
+import android.net.wifi.WifiManager;
 import android.view.View;
 import android.os.Build;
-import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 
 import android.Manifest;
 import android.webkit.MimeTypeMap;
@@ -47,16 +45,21 @@ import java.io.FileOutputStream;
 
 import java.lang.StringBuilder;
 
-import java.net.InetAddress;
-import java.net.InterfaceAddress;
-import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
 
 import java.security.GeneralSecurityException;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
@@ -81,51 +84,210 @@ public class App extends Application {
 
 	private static final String FILE_CHANNEL_ID = "tailscale-files";
 	private static final int FILE_NOTIFICATION_ID = 3;
+	private static final int FILE_PROGRESS_NOTIFICATION_ID = 4;
+	static final int CONTROL_NOTIFICATION_ID = 5;
+
+	// TRANSFER_LOCK_TIMEOUT_MS bounds how long the transfer locks are held
+	// without being renewed by TransferMode.
+	private static final long TRANSFER_LOCK_TIMEOUT_MS = 2 * TransferMode.IDLE_TIMEOUT_MS;
 
 	private final static Handler mainHandler = new Handler(Looper.getMainLooper());
 
 	public DnsConfig dns = new DnsConfig(this);
 	public DnsConfig getDnsConfigObj() { return this.dns; }
 
+	private final NetInterfaces netInterfaces = new NetInterfaces();
+
+	private final EncryptedStateStore stateStore = new EncryptedStateStore(this);
+
+	final SplitTunnelPolicy splitTunnel = new SplitTunnelPolicy(this);
+
+	private final MediaReceiver mediaReceiver = new MediaReceiver(this);
+
+	// controlLatency measures connects requested by IPNReceiver and
+	// IPNControlService.
+	final ControlLatency controlLatency = new ControlLatency();
+
+	private final DeviceIdentityCache deviceIdentity = new DeviceIdentityCache(this);
+
+	// controlStatus is the status served by IPNControlService.
+	final ControlStatus controlStatus = new ControlStatus();
+	// STATE_RUNNING is the name of the backend state with the VPN up.
+	static final String STATE_RUNNING = "Running";
+
+	private final TransferMode transferMode = new TransferMode(
+		Scheduler.handler(mainHandler), new TransferSink());
+
+	// dispatchers holds the notification dispatchers by name, for their
+	// counters in the bug report. Guarded by itself.
+	private final Map<String, NotificationDispatcher> dispatchers = new LinkedHashMap<>();
+
+	final ShareIngestor shareIngestor = new ShareIngestor(new ShareIngestor.Session() {
+		@Override public long open() {
+			return openShareSession();
+		}
+
+		@Override public boolean push(long session, List<ShareIngestor.Item> chunk) {
+			int n = chunk.size();
+			int[] types = new int[n];
+			String[] mimes = new String[n];
+			String[] items = new String[n];
+			String[] names = new String[n];
+			long[] sizes = new long[n];
+			for (int i = 0; i < n; i++) {
+				ShareIngestor.Item it = chunk.get(i);
+				types[i] = it.type;
+				mimes[i] = it.mime;
+				items[i] = it.item;
+				names[i] = it.name;
+				sizes[i] = it.size;
+			}
+			return pushShareItems(session, n, types, mimes, items, names, sizes);
+		}
+
+		@Override public void close(long session) {
+			closeShareSession(session);
+		}
+	});
+
+	// PHASE_GO is the startup phase that loads and initializes the Go
+	// library. Calls of native methods must wait for it, see Startup.
+	static final String PHASE_GO = "go";
+	private static final int STARTUP_THREADS = 3;
+	// STARTUP_KEEP_ALIVE_SECONDS is how long the idle startup threads live;
+	// they are only needed while the process starts.
+	private static final long STARTUP_KEEP_ALIVE_SECONDS = 5;
+
+	final Startup startup = new Startup(
+		startupExecutor(),
+		Scheduler.handler(mainHandler));
+
+	// createdChannels holds the ids of the notification channels created by
+	// notificationChannel.
+	private final Set<String> createdChannels = new HashSet<>();
+
 	@Override public void onCreate() {
 		super.onCreate();
-		// Load and initialize the Go library.
-		Gio.init(this);
-		registerNetworkCallback();
-
-		createNotificationChannel(NOTIFY_CHANNEL_ID, "Notifications", NotificationManagerCompat.IMPORTANCE_DEFAULT);
-		createNotificationChannel(STATUS_CHANNEL_ID, "VPN Status", NotificationManagerCompat.IMPORTANCE_LOW);
-		createNotificationChannel(FILE_CHANNEL_ID, "File transfers", NotificationManagerCompat.IMPORTANCE_DEFAULT);
+		trackDispatcher("transfer", transferMode.dispatcher());
+		// The process may be started only for the tile, a broadcast or a
+		// worker; keep the main thread free and run the independent parts
+		// of the start in parallel. The UI waits for the Go library in
+		// GioView.
+		startup.phase(PHASE_GO, new Runnable() {
+			@Override public void run() {
+				Gio.init(App.this);
+			}
+		});
+		startup.phase("dns", new Runnable() {
+			@Override public void run() {
+				dns.registerNetworkCallback();
+			}
+		});
+		// Split tunnel policy changes rebuild the TUN in the Go backend.
+		startup.phase("splitTunnel", new Runnable() {
+			@Override public void run() {
+				splitTunnel.registerReceivers(new Runnable() {
+					@Override public void run() {
+						onSplitTunnelChanged();
+					}
+				});
+			}
+		}, PHASE_GO);
+		// Connectivity changes are reported to the Go backend.
+		startup.phase("network", new Runnable() {
+			@Override public void run() {
+				registerNetworkCallback();
+			}
+		}, PHASE_GO);
+		final long created = SystemClock.uptimeMillis();
+		startup.start(new Runnable() {
+			@Override public void run() {
+				String since = "";
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+					since = ", onCreate " + (created - Process.getStartUptimeMillis()) + "ms after process start";
+				}
+				android.util.Log.i("App", "startup: " + startup.trace() + since);
+			}
+		});
+	}
 
+	// awaitGo blocks until the Go library is loaded, for callers of native
+	// methods that may run before that.
+	void awaitGo() {
+		try {
+			startup.await(PHASE_GO);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
+	// CONNECTIVITY_DEBOUNCE_MS and CONNECTIVITY_MAX_DELAY_MS configure how
+	// connectivity events are coalesced, see ConnectivityScheduler.
+	private static final long CONNECTIVITY_DEBOUNCE_MS = 250;
+	private static final long CONNECTIVITY_MAX_DELAY_MS = 1000;
+
+	// connectivity is set once the network phase of the start registered the
+	// network callback.
+	private volatile ConnectivityScheduler connectivity;
+
 	private void registerNetworkCallback() {
 		ConnectivityManager cMgr = (ConnectivityManager) this.getSystemService(Context.CONNECTIVITY_SERVICE);
-		cMgr.registerNetworkCallback(new NetworkRequest.Builder().build(), new ConnectivityManager.NetworkCallback() {
-			private void reportConnectivityChange() {
-				NetworkInfo active = cMgr.getActiveNetworkInfo();
-				// https://developer.android.com/training/monitoring-device-state/connectivity-status-type
-				boolean isConnected = active != null && active.isConnectedOrConnecting();
-				if (isConnected) {
-					((App)getApplicationContext()).autoConnect = false;
+		HandlerThread thread = new HandlerThread("connectivity");
+		thread.start();
+		connectivity = new ConnectivityScheduler(
+			Scheduler.handler(new Handler(thread.getLooper())),
+			CONNECTIVITY_DEBOUNCE_MS, CONNECTIVITY_MAX_DELAY_MS,
+			new ConnectivityScheduler.Sink() {
+				@Override public void deliver(int reasons) {
+					NetworkInfo active = cMgr.getActiveNetworkInfo();
+					// https://developer.android.com/training/monitoring-device-state/connectivity-status-type
+					boolean isConnected = active != null && active.isConnectedOrConnecting();
+					if (isConnected) {
+						((App)getApplicationContext()).autoConnect = false;
+					}
+					onConnectivityChanged(isConnected, reasons);
 				}
-				onConnectivityChanged(isConnected);
-			}
-
+			});
+		cMgr.registerNetworkCallback(new NetworkRequest.Builder().build(), new ConnectivityManager.NetworkCallback() {
 			@Override
 			public void onLost(Network network) {
 				super.onLost(network);
-				this.reportConnectivityChange();
+				connectivity.report(network, ConnectivityScheduler.REASON_LOST, null);
 			}
 
 			@Override
 			public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
 				super.onLinkPropertiesChanged(network, linkProperties);
-				this.reportConnectivityChange();
+				connectivity.report(network, ConnectivityScheduler.REASON_LINK_PROPERTIES, linkProperties);
+			}
+
+			@Override
+			public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
+				super.onCapabilitiesChanged(network, nc);
+				connectivity.report(network, ConnectivityScheduler.REASON_CAPABILITIES, capabilitiesKey(nc));
 			}
 		});
 	}
 
+	// capabilitiesKey returns the parts of nc the backend cares about, leaving
+	// out the signal strength and bandwidth estimates which change all the
+	// time.
+	private static int capabilitiesKey(NetworkCapabilities nc) {
+		int key = DnsConfig.getPreferabilityForCapabilities(nc) + 1;
+		int[] caps = {
+			NetworkCapabilities.NET_CAPABILITY_INTERNET,
+			NetworkCapabilities.NET_CAPABILITY_VALIDATED,
+			NetworkCapabilities.NET_CAPABILITY_NOT_METERED,
+			NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL,
+		};
+		for (int i = 0; i < caps.length; i++) {
+			if (nc.hasCapability(caps[i])) {
+				key |= 1 << (8 + i);
+			}
+		}
+		return key;
+	}
+
 	public void startVPN() {
 		Intent intent = new Intent(this, IPNService.class);
 		intent.setAction(IPNService.ACTION_CONNECT);
@@ -138,30 +300,68 @@ public class App extends Application {
 		startService(intent);
 	}
 
-	// encryptToPref a byte array of data using the Jetpack Security
-	// library and writes it to a global encrypted preference store.
+	// encryptToPref writes a value to the global encrypted state store,
+	// an AES-GCM log keyed by the Android Keystore (see EncryptedLogStore).
+	// The write is committed in the background; see flushPrefs.
 	public void encryptToPref(String prefKey, String plaintext) throws IOException, GeneralSecurityException {
-		getEncryptedPrefs().edit().putString(prefKey, plaintext).commit();
+		stateStore.put(prefKey, plaintext);
 	}
 
-	// decryptFromPref decrypts a encrypted preference using the Jetpack Security
-	// library and returns the plaintext.
+	// decryptFromPref returns the plaintext of a value written by
+	// encryptToPref, or null.
 	public String decryptFromPref(String prefKey) throws IOException, GeneralSecurityException {
-		return getEncryptedPrefs().getString(prefKey, null);
+		return stateStore.get(prefKey);
 	}
 
-	private SharedPreferences getEncryptedPrefs() throws IOException, GeneralSecurityException {
-		MasterKey key = new MasterKey.Builder(this)
-			.setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
-			.build();
+	// flushPrefs returns once every earlier encryptToPref is on disk.
+	public void flushPrefs() throws IOException, GeneralSecurityException {
+		stateStore.flush();
+	}
 
-		return EncryptedSharedPreferences.create(
-			this,
-			"secret_shared_prefs",
-			key,
-			EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
-			EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
-		);
+	// getBugReportDetails returns the diagnostics the Go backend logs with a
+	// bug report marker: the phase timings of the application start, the
+	// latency of the connects requested by automation intents, how long the
+	// encrypted state store took to set up its key, and the connectivity
+	// event and notification post counters.
+	String getBugReportDetails() {
+		StringBuilder sb = new StringBuilder()
+			.append("startup: ").append(startup.trace())
+			.append("; automation connects: ").append(controlLatency.describe())
+			.append("; state key setup: ").append(stateStore.keySetupMillis()).append("ms");
+		ConnectivityScheduler cs = connectivity;
+		if (cs != null) {
+			sb.append("; connectivity: ").append(cs.receivedCount()).append(" events, ")
+				.append(cs.suppressedCount()).append(" suppressed, ")
+				.append(cs.deliveredCount()).append(" delivered, latency mean ")
+				.append(cs.meanLatencyMs()).append("ms max ").append(cs.maxLatencyMs()).append("ms");
+		}
+		synchronized (dispatchers) {
+			for (Map.Entry<String, NotificationDispatcher> e : dispatchers.entrySet()) {
+				NotificationDispatcher d = e.getValue();
+				sb.append("; ").append(e.getKey()).append(" notifications: ")
+					.append(d.postedCount()).append(" posted, ")
+					.append(d.suppressedCount()).append(" suppressed");
+			}
+		}
+		return sb.toString();
+	}
+
+	// trackDispatcher adds the counters of d to the bug report details under
+	// name, replacing the dispatcher previously tracked under it.
+	void trackDispatcher(String name, NotificationDispatcher d) {
+		synchronized (dispatchers) {
+			dispatchers.put(name, d);
+		}
+	}
+
+	// setControlStatus is called by the Go backend on every change of its
+	// state or exit node. exitNode is empty if there is none. Reaching
+	// Running completes the pending automation connect.
+	void setControlStatus(String state, String exitNode, boolean exitNodeOnline) {
+		controlStatus.setBackend(state, exitNode, exitNodeOnline);
+		if (STATE_RUNNING.equals(state) && controlLatency.connected(SystemClock.elapsedRealtime()) != -1) {
+			android.util.Log.i("App", "automation connect latency: " + controlLatency.describe());
+		}
 	}
 
 	public boolean autoConnect = false;
@@ -187,44 +387,31 @@ public class App extends Application {
 		QuickToggleService.setStatus(this, status);
 	}
 
-	String getHostname() {
-		String userConfiguredDeviceName = getUserConfiguredDeviceName();
-		if (!isEmpty(userConfiguredDeviceName)) return userConfiguredDeviceName;
-
-		return getModelName();
-	}
-
-	String getModelName() {
-		String manu = Build.MANUFACTURER;
-		String model = Build.MODEL;
-		// Strip manufacturer from model.
-		int idx = model.toLowerCase().indexOf(manu.toLowerCase());
-		if (idx != -1) {
-			model = model.substring(idx + manu.length());
-			model = model.trim();
+	// setTileLatency sets the latency to the preferred DERP region shown by
+	// the tile, 0 if unknown.
+	void setTileLatency(int ms) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+			return;
 		}
-		return manu + " " + model;
+		QuickToggleService.setLatency(this, ms);
 	}
 
-	String getOSVersion() {
-		return Build.VERSION.RELEASE;
+	// getDeviceIdentity returns the DeviceIdentity encoded as documented
+	// there, for the Go backend to read in one call.
+	byte[] getDeviceIdentity() {
+		return deviceIdentity.encoded();
 	}
 
-	// get user defined nickname from Settings
-	// returns null if not available
-	private String getUserConfiguredDeviceName() {
-		String nameFromSystemBluetooth = Settings.System.getString(getContentResolver(), "bluetooth_name");
-		String nameFromSecureBluetooth = Settings.Secure.getString(getContentResolver(), "bluetooth_name");
-		String nameFromSystemDevice = Settings.Secure.getString(getContentResolver(), "device_name");
+	String getHostname() {
+		return deviceIdentity.get().hostname;
+	}
 
-		if (!isEmpty(nameFromSystemBluetooth)) return nameFromSystemBluetooth;
-		if (!isEmpty(nameFromSecureBluetooth)) return nameFromSecureBluetooth;
-		if (!isEmpty(nameFromSystemDevice)) return nameFromSystemDevice;
-		return null;
+	String getModelName() {
+		return deviceIdentity.get().modelName;
 	}
 
-	private static boolean isEmpty(String str) {
-		return str == null || str.length() == 0;
+	String getOSVersion() {
+		return deviceIdentity.get().osVersion;
 	}
 
 	// attachPeer adds a Peer fragment for tracking the Activity
@@ -241,7 +428,7 @@ public class App extends Application {
 	}
 
 	boolean isChromeOS() {
-		return getPackageManager().hasSystemFeature("android.hardware.type.pc");
+		return deviceIdentity.get().chromeOS;
 	}
 
 	void prepareVPN(Activity act, int reqCode) {
@@ -274,14 +461,9 @@ public class App extends Application {
 		});
 	}
 
-	// getPackageSignatureFingerprint returns the first package signing certificate, if any.
-	byte[] getPackageCertificate() throws Exception {
-		PackageInfo info;
-		info = getPackageManager().getPackageInfo(getPackageName(), PackageManager.GET_SIGNATURES);
-		for (Signature signature : info.signatures) {
-			return signature.toByteArray();
-		}
-		return null;
+	// getPackageCertificate returns the first package signing certificate, if any.
+	byte[] getPackageCertificate() {
+		return deviceIdentity.get().packageCertificate();
 	}
 
 	void requestWriteStoragePermission(Activity act) {
@@ -295,32 +477,36 @@ public class App extends Application {
 		act.requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, IPNActivity.WRITE_STORAGE_RESULT);
 	}
 
-	String insertMedia(String name, String mimeType) throws IOException {
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-			ContentResolver resolver = getContentResolver();
-			ContentValues contentValues = new ContentValues();
-			contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
-			if (!"".equals(mimeType)) {
-				contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
-			}
-			Uri root = MediaStore.Files.getContentUri("external");
-			return resolver.insert(root, contentValues).toString();
-		} else {
-			File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-			dir.mkdirs();
-			File f = new File(dir, name);
-			return Uri.fromFile(f).toString();
-		}
+	// reserveMedia, publishMedia and abandonMedia implement the receive
+	// batches of the Go backend, and receiveOffset, openUriAt and
+	// commitReceive its resumable writes, see MediaReceiver.
+	String[] reserveMedia(String[] names, String[] mimeTypes, String[] keys) throws IOException {
+		return mediaReceiver.reserve(names, mimeTypes, keys);
 	}
 
-	int openUri(String uri, String mode) throws IOException {
-		ContentResolver resolver = getContentResolver();
-		return resolver.openFileDescriptor(Uri.parse(uri), mode).detachFd();
+	long receiveOffset(String key) {
+		return mediaReceiver.resumeOffset(key);
+	}
+
+	int openUriAt(String uri, long offset) throws IOException {
+		return mediaReceiver.openAt(uri, offset);
+	}
+
+	void commitReceive(String key, long offset) {
+		mediaReceiver.commit(key, offset);
+	}
+
+	String[] publishMedia(String[] uris, String[] mimeTypes) throws IOException {
+		return mediaReceiver.publish(uris, mimeTypes);
 	}
 
-	void deleteUri(String uri) {
+	void abandonMedia(String[] uris) {
+		mediaReceiver.abandon(uris);
+	}
+
+	int openUri(String uri, String mode) throws IOException {
 		ContentResolver resolver = getContentResolver();
-		resolver.delete(Uri.parse(uri), null, null);
+		return resolver.openFileDescriptor(Uri.parse(uri), mode).detachFd();
 	}
 
 	public void notifyFile(String uri, String msg) {
@@ -332,7 +518,7 @@ public class App extends Application {
 			viewIntent = new Intent(DownloadManager.ACTION_VIEW_DOWNLOADS);
 		}
 		PendingIntent pending = PendingIntent.getActivity(this, 0, viewIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-		NotificationCompat.Builder builder = new NotificationCompat.Builder(this, FILE_CHANNEL_ID)
+		NotificationCompat.Builder builder = new NotificationCompat.Builder(this, notificationChannel(FILE_CHANNEL_ID))
 			.setSmallIcon(R.drawable.ic_notification)
 			.setContentTitle("File received")
 			.setContentText(msg)
@@ -345,6 +531,113 @@ public class App extends Application {
 		nm.notify(FILE_NOTIFICATION_ID, builder.build());
 	}
 
+	// transferProgress and transferFinished report the progress of Taildrop
+	// transfers, each identified by id, see TransferMode.
+	void transferProgress(long id, boolean sending, long done, long total) {
+		transferMode.progress(id, sending, done, total);
+	}
+
+	void transferFinished(long id) {
+		transferMode.finish(id);
+	}
+
+	// TransferSink holds a partial wake lock and a high performance Wi-Fi
+	// lock during transfers and shows their progress.
+	private final class TransferSink implements TransferMode.Sink {
+		// The locks are created on first use, after the App is attached
+		// to its context.
+		private PowerManager.WakeLock wakeLock;
+		private WifiManager.WifiLock wifiLock;
+		private NotificationCompat.Builder builder;
+
+		@Override public synchronized void acquireLocks() {
+			if (wakeLock == null) {
+				PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+				wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "tailscale:transfer");
+				wakeLock.setReferenceCounted(false);
+				WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+				wifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "tailscale:transfer");
+				wifiLock.setReferenceCounted(false);
+			}
+			// Re-acquiring a lock that is not reference counted restarts
+			// its timeout.
+			wakeLock.acquire(TRANSFER_LOCK_TIMEOUT_MS);
+			if (!wifiLock.isHeld()) {
+				wifiLock.acquire();
+			}
+		}
+
+		@Override public synchronized void releaseLocks() {
+			if (wakeLock == null) {
+				return;
+			}
+			if (wakeLock.isHeld()) {
+				wakeLock.release();
+			}
+			if (wifiLock.isHeld()) {
+				wifiLock.release();
+			}
+		}
+
+		@Override public void showProgress(String title, String text, int percent) {
+			if (builder == null) {
+				builder = new NotificationCompat.Builder(App.this, notificationChannel(FILE_CHANNEL_ID))
+					.setSmallIcon(R.drawable.ic_notification)
+					.setOngoing(true)
+					.setOnlyAlertOnce(true)
+					.setPriority(NotificationCompat.PRIORITY_LOW);
+			}
+			builder.setContentTitle(title).setContentText(text).setProgress(100, percent, false);
+			NotificationManagerCompat.from(App.this).notify(FILE_PROGRESS_NOTIFICATION_ID, builder.build());
+		}
+
+		@Override public void hideProgress() {
+			// Cancel on the main thread, after a post that may be in
+			// progress there.
+			mainHandler.post(new Runnable() {
+				@Override public void run() {
+					NotificationManagerCompat.from(App.this).cancel(FILE_PROGRESS_NOTIFICATION_ID);
+				}
+			});
+		}
+	}
+
+	// startupExecutor returns the executor of the startup phases, whose
+	// threads exit once idle.
+	private static ThreadPoolExecutor startupExecutor() {
+		ThreadPoolExecutor e = new ThreadPoolExecutor(STARTUP_THREADS, STARTUP_THREADS,
+			STARTUP_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		e.allowCoreThreadTimeOut(true);
+		return e;
+	}
+
+	// notificationChannel returns id, the id of one of the app's
+	// notification channels, creating the channel on first use.
+	String notificationChannel(String id) {
+		// Create the channel with the lock held, so that no caller posts to
+		// it before it exists.
+		synchronized (createdChannels) {
+			if (createdChannels.contains(id)) {
+				return id;
+			}
+			switch (id) {
+			case NOTIFY_CHANNEL_ID:
+				createNotificationChannel(id, "Notifications", NotificationManagerCompat.IMPORTANCE_DEFAULT);
+				break;
+			case STATUS_CHANNEL_ID:
+				createNotificationChannel(id, "VPN Status", NotificationManagerCompat.IMPORTANCE_LOW);
+				break;
+			case FILE_CHANNEL_ID:
+				createNotificationChannel(id, "File transfers", NotificationManagerCompat.IMPORTANCE_DEFAULT);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown notification channel " + id);
+			}
+			createdChannels.add(id);
+		}
+		return id;
+	}
+
 	public void createNotificationChannel(String id, String name, int importance) {
 		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
 			return;
@@ -355,62 +648,59 @@ public class App extends Application {
 	}
 
 	static native void onVPNPrepared();
-	private static native void onConnectivityChanged(boolean connected);
-	static native void onShareIntent(int nfiles, int[] types, String[] mimes, String[] items, String[] names, long[] sizes);
+	private static native void onConnectivityChanged(boolean connected, int reasons);
+	// onSplitTunnelChanged rebuilds the TUN, if any, to apply the changed
+	// split tunnel policy.
+	private static native void onSplitTunnelChanged();
+	// openShareSession opens the session of a file sharing intent,
+	// replacing the previous one, and returns its id.
+	static native long openShareSession();
+	// pushShareItems queues a chunk of the items of a session, blocking while
+	// the queue is full. It returns false if the session was replaced.
+	static native boolean pushShareItems(long session, int nfiles, int[] types, String[] mimes, String[] items, String[] names, long[] sizes);
+	// closeShareSession marks the end of the items of a session.
+	static native void closeShareSession(long session);
 	static native void onWriteStorageGranted();
 
-        // Returns details of the interfaces in the system, encoded as a single string for ease
-        // of JNI transfer over to the Go environment.
-        //
-        // Example:
-        // rmnet_data0 10 2000 true false false false false | fe80::4059:dc16:7ed3:9c6e%rmnet_data0/64
-        // dummy0 3 1500 true false false false false | fe80::1450:5cff:fe13:f891%dummy0/64
-        // wlan0 30 1500 true true false false true | fe80::2f60:2c82:4163:8389%wlan0/64 10.1.10.131/24
-        // r_rmnet_data0 21 1500 true false false false false | fe80::9318:6093:d1ad:ba7f%r_rmnet_data0/64
-        // rmnet_data2 12 1500 true false false false false | fe80::3c8c:44dc:46a9:9907%rmnet_data2/64
-        // r_rmnet_data1 22 1500 true false false false false | fe80::b6cd:5cb0:8ae6:fe92%r_rmnet_data1/64
-        // rmnet_data1 11 1500 true false false false false | fe80::51f2:ee00:edce:d68b%rmnet_data1/64
-        // lo 1 65536 true false true false false | ::1/128 127.0.0.1/8
-        // v4-rmnet_data2 68 1472 true true false true true | 192.0.0.4/32
-        //
-        // Where the fields are:
-        // name ifindex mtu isUp hasBroadcast isLoopback isPointToPoint hasMulticast | ip1/N ip2/N ip3/N;
+	// getInterfacesGeneration takes a new snapshot of the interfaces in the
+	// system and returns its generation, which only changes when the interface
+	// set or any of their addresses changed.
+	long getInterfacesGeneration() {
+		return netInterfaces.refresh();
+	}
+
+	// getInterfacesBuffer returns details of the interfaces in the snapshot
+	// taken by getInterfacesGeneration in the binary encoding documented in
+	// NetInterfaces, in a direct ByteBuffer which is reused by the next call.
+	ByteBuffer getInterfacesBuffer() {
+		return netInterfaces.encodeSnapshot();
+	}
+
+	// getInterfacesDelta returns the changes from generation since to the
+	// current one in the same encoding as getInterfacesBuffer, or null if the
+	// caller is more than one generation behind and needs a full snapshot.
+	ByteBuffer getInterfacesDelta(long since) {
+		return netInterfaces.encodeDelta(since);
+	}
+
+	// Returns details of the interfaces in the system, encoded as a single string for ease
+	// of JNI transfer over to the Go environment. This is the compatibility form of
+	// getInterfacesBuffer.
+	//
+	// Example:
+	// rmnet_data0 10 2000 true false false false false | fe80:0:0:0:4059:dc16:7ed3:9c6e/64
+	// dummy0 3 1500 true false false false false | fe80:0:0:0:1450:5cff:fe13:f891/64
+	// wlan0 30 1500 true true false false true | fe80:0:0:0:2f60:2c82:4163:8389/64 10.1.10.131/24
+	// lo 1 65536 true false true false false | 0:0:0:0:0:0:0:1/128 127.0.0.1/8
+	// v4-rmnet_data2 68 1472 true true false true true | 192.0.0.4/32
+	//
+	// Where the fields are:
+	// name ifindex mtu isUp hasBroadcast isLoopback isPointToPoint hasMulticast | ip1/N ip2/N ip3/N;
 	String getInterfacesAsString() {
-            List<NetworkInterface> interfaces;
-            try {
-                interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
-            } catch (Exception e) {
-                return "";
-            }
-
-            StringBuilder sb = new StringBuilder("");
-            for (NetworkInterface nif : interfaces) {
-                try {
-                    // Android doesn't have a supportsBroadcast() but the Go net.Interface wants
-                    // one, so we say the interface has broadcast if it has multicast.
-                    sb.append(String.format(java.util.Locale.ROOT, "%s %d %d %b %b %b %b %b |", nif.getName(),
-                                   nif.getIndex(), nif.getMTU(), nif.isUp(), nif.supportsMulticast(),
-                                   nif.isLoopback(), nif.isPointToPoint(), nif.supportsMulticast()));
-
-                    for (InterfaceAddress ia : nif.getInterfaceAddresses()) {
-                        // InterfaceAddress == hostname + "/" + IP
-                        String[] parts = ia.toString().split("/", 0);
-                        if (parts.length > 1) {
-                            sb.append(String.format(java.util.Locale.ROOT, "%s/%d ", parts[1], ia.getNetworkPrefixLength()));
-                        }
-                    }
-                } catch (Exception e) {
-                    // TODO(dgentry) should log the exception not silently suppress it.
-                    continue;
-                }
-                sb.append("\n");
-            }
-
-            return sb.toString();
-        }
+		return NetInterfaces.format(NetInterfaces.read());
+	}
 
 	boolean isTV() {
-		UiModeManager mm = (UiModeManager)getSystemService(UI_MODE_SERVICE);
-		return mm.getCurrentModeType() == Configuration.UI_MODE_TYPE_TELEVISION;
+		return deviceIdentity.get().tv;
 	}
 }
@@ -0,0 +1,191 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// ConnectivityScheduler turns the NetworkCallback events of App into
+// consolidated connectivity change events for the Go backend, each of which
+// makes it re-evaluate the network with LinkChange.
+//
+// A handover between Wi-Fi and cellular produces bursts of 10 to 30 callbacks,
+// many repeating the state already reported. report drops events which don't
+// change the last known state of their network, and a burst of the remaining
+// ones is delivered as one event once no new event arrived for debounceMs, or
+// at the latest maxDelayMs after the first one. The delivered event carries
+// the REASON_ bits of the events it stands for.
+//
+// Delivery runs on the Scheduler's thread, a background Handler thread in
+// App, so the callback thread only records the event.
+final class ConnectivityScheduler {
+	static final int REASON_LOST = 1 << 0;
+	static final int REASON_LINK_PROPERTIES = 1 << 1;
+	static final int REASON_CAPABILITIES = 1 << 2;
+
+	// Sink receives the consolidated events.
+	interface Sink {
+		void deliver(int reasons);
+	}
+
+	private final Scheduler scheduler;
+	private final long debounceMs;
+	private final long maxDelayMs;
+	private final Sink sink;
+
+	// The fields below are guarded by this.
+	// states holds the last reported state of each network and kind of
+	// event, keyed by the network and the REASON_ bit.
+	private final Map<Key, Object> states = new HashMap<>();
+	// pendingReasons are the reasons of the events since the last delivery.
+	private int pendingReasons;
+	// pendingEvents is the number of those events, and pendingTimes the sum
+	// of their report times, for the latency counters.
+	private int pendingEvents;
+	private long pendingTimes;
+	// firstEvent and lastEvent are the report times of the first and latest
+	// pending events.
+	private long firstEvent;
+	private long lastEvent;
+	private boolean scheduled;
+
+	private long received;
+	private long suppressed;
+	private long delivered;
+	// latencySumMs is the sum of the latencies of latencyEvents events.
+	private long latencySumMs;
+	private long latencyEvents;
+	private long maxLatencyMs;
+
+	ConnectivityScheduler(Scheduler scheduler, long debounceMs, long maxDelayMs, Sink sink) {
+		this.scheduler = scheduler;
+		this.debounceMs = debounceMs;
+		this.maxDelayMs = maxDelayMs;
+		this.sink = sink;
+	}
+
+	// report records an event of kind reason, one of the REASON_ constants,
+	// for network. state is the new state of the network for that kind of
+	// event, compared with equals, or null if the network is lost.
+	synchronized void report(Object network, int reason, Object state) {
+		received++;
+		boolean changed;
+		if (state == null) {
+			changed = false;
+			for (int r = 1; r <= REASON_CAPABILITIES; r <<= 1) {
+				changed |= states.remove(new Key(network, r)) != null;
+			}
+		} else {
+			Object old = states.put(new Key(network, reason), state);
+			changed = !state.equals(old);
+		}
+		if (!changed) {
+			suppressed++;
+			return;
+		}
+		long now = scheduler.now();
+		if (pendingEvents == 0) {
+			firstEvent = now;
+		} else {
+			// Folded into the pending event.
+			suppressed++;
+		}
+		lastEvent = now;
+		pendingReasons |= reason;
+		pendingEvents++;
+		pendingTimes += now;
+		if (!scheduled) {
+			scheduled = true;
+			scheduleDelivery(debounceMs);
+		}
+	}
+
+	private void scheduleDelivery(long delayMs) {
+		scheduler.schedule(new Runnable() {
+			@Override public void run() {
+				deliverPending();
+			}
+		}, delayMs);
+	}
+
+	private void deliverPending() {
+		int reasons;
+		synchronized (this) {
+			long now = scheduler.now();
+			long quietAt = lastEvent + debounceMs;
+			long deadline = firstEvent + maxDelayMs;
+			if (now < quietAt && now < deadline) {
+				// More events arrived meanwhile; wait for the burst
+				// to end.
+				scheduleDelivery(Math.min(quietAt, deadline) - now);
+				return;
+			}
+			scheduled = false;
+			reasons = pendingReasons;
+			long latencyMs = pendingEvents * now - pendingTimes;
+			latencySumMs += latencyMs;
+			latencyEvents += pendingEvents;
+			maxLatencyMs = Math.max(maxLatencyMs, now - firstEvent);
+			delivered++;
+			pendingReasons = 0;
+			pendingEvents = 0;
+			pendingTimes = 0;
+		}
+		sink.deliver(reasons);
+	}
+
+	// receivedCount returns the number of events reported.
+	synchronized long receivedCount() {
+		return received;
+	}
+
+	// suppressedCount returns the number of reported events which didn't
+	// cause a delivery of their own, because they didn't change anything or
+	// were folded into another event.
+	synchronized long suppressedCount() {
+		return suppressed;
+	}
+
+	// deliveredCount returns the number of consolidated events delivered.
+	synchronized long deliveredCount() {
+		return delivered;
+	}
+
+	// meanLatencyMs returns the mean time from the report of a changing
+	// event to its delivery.
+	synchronized long meanLatencyMs() {
+		return latencyEvents == 0 ? 0 : latencySumMs / latencyEvents;
+	}
+
+	// maxLatencyMs returns the longest time from the first event of a burst
+	// to its delivery.
+	synchronized long maxLatencyMs() {
+		return maxLatencyMs;
+	}
+
+	// Key identifies a network and kind of event.
+	private static final class Key {
+		final Object network;
+		final int reason;
+
+		Key(Object network, int reason) {
+			this.network = network;
+			this.reason = reason;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return reason == other.reason &&
+				(network == null ? other.network == null : network.equals(other.network));
+		}
+
+		@Override public int hashCode() {
+			return (network == null ? 0 : network.hashCode()) * 31 + reason;
+		}
+	}
+}
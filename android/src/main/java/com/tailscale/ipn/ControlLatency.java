@@ -0,0 +1,94 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+// ControlLatency measures how long a connect request from an automation
+// intent takes to bring the VPN up: from IPNReceiver receiving the intent,
+// through StartVPNWorker starting, to the backend reaching Running. Only the
+// latest request is measured; a newer request or a disconnect replaces it.
+// A request that fails, or finds the VPN already up, is cancelled so that it
+// isn't completed by a later, unrelated connect.
+//
+// Times are in milliseconds of a monotonic clock, supplied by the caller.
+final class ControlLatency {
+	// The fields below are guarded by this.
+	// requestedAt and startedAt are the times of the pending request, or -1.
+	private long requestedAt = -1;
+	private long startedAt = -1;
+	private long count;
+	private long sumMs;
+	private long maxMs;
+	private long lastMs = -1;
+	private long lastQueueMs = -1;
+
+	// requested records a connect request received at now.
+	synchronized void requested(long now) {
+		requestedAt = now;
+		startedAt = -1;
+	}
+
+	// started records that the worker of the pending request started.
+	synchronized void started(long now) {
+		if (requestedAt != -1 && startedAt == -1) {
+			startedAt = now;
+		}
+	}
+
+	// cancel drops the pending request.
+	synchronized void cancel() {
+		requestedAt = -1;
+		startedAt = -1;
+	}
+
+	// connected records that the VPN came up at now and returns the latency
+	// of the pending request, or -1 if there is none.
+	synchronized long connected(long now) {
+		if (requestedAt == -1) {
+			return -1;
+		}
+		long ms = now - requestedAt;
+		lastMs = ms;
+		lastQueueMs = startedAt == -1 ? -1 : startedAt - requestedAt;
+		count++;
+		sumMs += ms;
+		maxMs = Math.max(maxMs, ms);
+		requestedAt = -1;
+		startedAt = -1;
+		return ms;
+	}
+
+	synchronized long count() {
+		return count;
+	}
+
+	// lastMs returns the latency of the latest measured request, or -1.
+	synchronized long lastMs() {
+		return lastMs;
+	}
+
+	synchronized long meanMs() {
+		return count == 0 ? 0 : sumMs / count;
+	}
+
+	synchronized long maxMs() {
+		return maxMs;
+	}
+
+	// describe summarizes the measurements, like "3 connects, last 850ms
+	// (120ms queued), mean 900ms, max 1200ms".
+	synchronized String describe() {
+		if (count == 0) {
+			return "no connects";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(count).append(count == 1 ? " connect" : " connects");
+		sb.append(", last ").append(lastMs).append("ms");
+		if (lastQueueMs != -1) {
+			sb.append(" (").append(lastQueueMs).append("ms queued)");
+		}
+		sb.append(", mean ").append(meanMs()).append("ms, max ").append(maxMs).append("ms");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,108 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// ControlStatus caches the status served to automation clients by
+// IPNControlService, so that a status query is answered without waking the
+// Go backend or the UI. The backend pushes its state and exit node on every
+// change, and IPNService the network it routes over.
+//
+// The status is an immutable Snapshot replaced as a whole. Listeners are
+// called on the thread of the change, and only if the status changed;
+// concurrent changes may reach them out of order, which Snapshot.seq
+// resolves.
+final class ControlStatus {
+	// Snapshot is the status at one point in time.
+	static final class Snapshot {
+		// state is the name of the backend state, such as "Running".
+		final String state;
+		// exitNode is the name of the selected exit node, or "".
+		final String exitNode;
+		final boolean exitNodeOnline;
+		// network describes the underlying network, or "" if the VPN is
+		// not running.
+		final String network;
+		// seq increases with every change.
+		final long seq;
+
+		Snapshot(String state, String exitNode, boolean exitNodeOnline, String network, long seq) {
+			this.state = state;
+			this.exitNode = exitNode;
+			this.exitNodeOnline = exitNodeOnline;
+			this.network = network;
+			this.seq = seq;
+		}
+
+		boolean sameAs(String state, String exitNode, boolean exitNodeOnline, String network) {
+			return this.state.equals(state) && this.exitNode.equals(exitNode) &&
+				this.exitNodeOnline == exitNodeOnline && this.network.equals(network);
+		}
+	}
+
+	interface Listener {
+		void onStatusChanged(Snapshot s);
+	}
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	// current is only replaced with this held.
+	private volatile Snapshot current = new Snapshot("NoState", "", false, "", 0);
+
+	// get returns the current status.
+	Snapshot get() {
+		return current;
+	}
+
+	void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	// setBackend sets the backend state and exit node. A null exitNode
+	// means none.
+	void setBackend(String state, String exitNode, boolean exitNodeOnline) {
+		Snapshot s;
+		synchronized (this) {
+			s = update(state, exitNode == null ? "" : exitNode, exitNodeOnline, current.network);
+		}
+		publish(s);
+	}
+
+	// setNetwork sets the description of the underlying network, null if
+	// there is none.
+	void setNetwork(String network) {
+		Snapshot s;
+		synchronized (this) {
+			Snapshot c = current;
+			s = update(c.state, c.exitNode, c.exitNodeOnline, network == null ? "" : network);
+		}
+		publish(s);
+	}
+
+	// update must be called with this held. It returns the new snapshot, or
+	// null if nothing changed.
+	private Snapshot update(String state, String exitNode, boolean exitNodeOnline, String network) {
+		Snapshot c = current;
+		if (c.sameAs(state, exitNode, exitNodeOnline, network)) {
+			return null;
+		}
+		current = new Snapshot(state, exitNode, exitNodeOnline, network, c.seq + 1);
+		return current;
+	}
+
+	private void publish(Snapshot s) {
+		if (s == null) {
+			return;
+		}
+		for (Listener l : listeners) {
+			l.onStatusChanged(s);
+		}
+	}
+}
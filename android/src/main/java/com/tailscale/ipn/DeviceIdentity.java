@@ -0,0 +1,97 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// DeviceIdentity is a snapshot of the device details the Go backend reports
+// to the control plane, handed over in one JNI call by
+// App.getDeviceIdentity. It is encoded by encode and decoded by
+// decodeDeviceIdentity in main.go. All integers are big endian:
+//
+// int8 flags: bit 0 set on ChromeOS, bit 1 on a TV
+// int16 length, UTF-8 hostname
+// int16 length, UTF-8 model name
+// int16 length, UTF-8 OS version
+// int32 length, first package signing certificate, empty if none
+final class DeviceIdentity {
+	static final int FLAG_CHROME_OS = 1 << 0;
+	static final int FLAG_TV = 1 << 1;
+
+	final String hostname;
+	final String modelName;
+	final String osVersion;
+	final boolean chromeOS;
+	final boolean tv;
+	// packageCertificate is null if the package has no signature.
+	private final byte[] packageCertificate;
+
+	DeviceIdentity(String hostname, String modelName, String osVersion, boolean chromeOS, boolean tv, byte[] packageCertificate) {
+		this.hostname = hostname;
+		this.modelName = modelName;
+		this.osVersion = osVersion;
+		this.chromeOS = chromeOS;
+		this.tv = tv;
+		this.packageCertificate = packageCertificate;
+	}
+
+	// withHostname returns a copy of the identity with hostname replaced.
+	DeviceIdentity withHostname(String hostname) {
+		return new DeviceIdentity(hostname, modelName, osVersion, chromeOS, tv, packageCertificate);
+	}
+
+	// packageCertificate returns a copy of the certificate, or null.
+	byte[] packageCertificate() {
+		return packageCertificate == null ? null : packageCertificate.clone();
+	}
+
+	byte[] encode() {
+		byte[] host = utf8(hostname);
+		byte[] model = utf8(modelName);
+		byte[] os = utf8(osVersion);
+		byte[] cert = packageCertificate == null ? new byte[0] : packageCertificate;
+		ByteBuffer b = ByteBuffer.allocate(1 + 2 + host.length + 2 + model.length + 2 + os.length + 4 + cert.length);
+		b.put((byte) ((chromeOS ? FLAG_CHROME_OS : 0) | (tv ? FLAG_TV : 0)));
+		b.putShort((short) host.length).put(host);
+		b.putShort((short) model.length).put(model);
+		b.putShort((short) os.length).put(os);
+		b.putInt(cert.length).put(cert);
+		return b.array();
+	}
+
+	// utf8 encodes s, truncated to fit an int16 length.
+	private static byte[] utf8(String s) {
+		byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+		if (b.length <= Short.MAX_VALUE) {
+			return b;
+		}
+		byte[] t = new byte[Short.MAX_VALUE];
+		System.arraycopy(b, 0, t, 0, t.length);
+		return t;
+	}
+
+	// modelName returns the manufacturer and model, with the manufacturer
+	// stripped from the model.
+	static String modelName(String manu, String model) {
+		int idx = model.toLowerCase().indexOf(manu.toLowerCase());
+		if (idx != -1) {
+			model = model.substring(idx + manu.length());
+			model = model.trim();
+		}
+		return manu + " " + model;
+	}
+
+	// hostname returns the first non-empty of the names configured by the
+	// user, in order of preference, or modelName if there is none.
+	static String hostname(String[] userNames, String modelName) {
+		for (String n : userNames) {
+			if (n != null && n.length() > 0) {
+				return n;
+			}
+		}
+		return modelName;
+	}
+}
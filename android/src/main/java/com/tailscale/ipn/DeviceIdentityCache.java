@@ -0,0 +1,131 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.app.UiModeManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+
+// DeviceIdentityCache computes the DeviceIdentity once instead of on every
+// call from the Go backend, which asks for it on every login and map
+// request: the hostname takes three settings provider reads, and the form
+// factor and package certificate binder calls.
+//
+// Only the hostname can change while the process runs. It is recomputed
+// after a ContentObserver saw one of the settings it is read from change.
+final class DeviceIdentityCache {
+	// The settings the hostname is read from, in order of preference.
+	private static final String SETTING_BLUETOOTH_NAME = "bluetooth_name";
+	private static final String SETTING_DEVICE_NAME = "device_name";
+
+	private final Context ctx;
+
+	// The fields below are guarded by this.
+	// identity is the cached identity, or null before the first use.
+	private DeviceIdentity identity;
+	// encoded is identity.encode(), or null if not yet encoded.
+	private byte[] encoded;
+	// hostnameStale is set by the observer when the hostname settings
+	// changed.
+	private boolean hostnameStale;
+
+	DeviceIdentityCache(Context ctx) {
+		this.ctx = ctx;
+	}
+
+	// get returns the current identity.
+	synchronized DeviceIdentity get() {
+		if (identity == null) {
+			register();
+			identity = new DeviceIdentity(null, modelName(), Build.VERSION.RELEASE,
+				isChromeOS(), isTV(), packageCertificate());
+			hostnameStale = true;
+		}
+		if (hostnameStale) {
+			hostnameStale = false;
+			String host = DeviceIdentity.hostname(userConfiguredNames(), identity.modelName);
+			if (!host.equals(identity.hostname)) {
+				identity = identity.withHostname(host);
+				encoded = null;
+			}
+		}
+		return identity;
+	}
+
+	// encoded returns the encoding of the current identity. The array is
+	// shared and must not be modified.
+	synchronized byte[] encoded() {
+		DeviceIdentity id = get();
+		if (encoded == null) {
+			encoded = id.encode();
+		}
+		return encoded;
+	}
+
+	private void register() {
+		ContentObserver observer = new ContentObserver(null) {
+			@Override public void onChange(boolean selfChange) {
+				synchronized (DeviceIdentityCache.this) {
+					hostnameStale = true;
+				}
+			}
+		};
+		ContentResolver cr = ctx.getContentResolver();
+		Uri[] uris = {
+			Settings.System.getUriFor(SETTING_BLUETOOTH_NAME),
+			Settings.Secure.getUriFor(SETTING_BLUETOOTH_NAME),
+			Settings.Secure.getUriFor(SETTING_DEVICE_NAME),
+		};
+		for (Uri u : uris) {
+			cr.registerContentObserver(u, false, observer);
+		}
+	}
+
+	// userConfiguredNames returns the device names set by the user, in order
+	// of preference. Entries are null if not available.
+	private String[] userConfiguredNames() {
+		ContentResolver cr = ctx.getContentResolver();
+		return new String[]{
+			Settings.System.getString(cr, SETTING_BLUETOOTH_NAME),
+			Settings.Secure.getString(cr, SETTING_BLUETOOTH_NAME),
+			Settings.Secure.getString(cr, SETTING_DEVICE_NAME),
+		};
+	}
+
+	private static String modelName() {
+		return DeviceIdentity.modelName(Build.MANUFACTURER, Build.MODEL);
+	}
+
+	private boolean isChromeOS() {
+		return ctx.getPackageManager().hasSystemFeature("android.hardware.type.pc");
+	}
+
+	private boolean isTV() {
+		UiModeManager mm = (UiModeManager)ctx.getSystemService(Context.UI_MODE_SERVICE);
+		return mm.getCurrentModeType() == Configuration.UI_MODE_TYPE_TELEVISION;
+	}
+
+	// packageCertificate returns the first package signing certificate, or
+	// null.
+	private byte[] packageCertificate() {
+		try {
+			PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), PackageManager.GET_SIGNATURES);
+			for (Signature signature : info.signatures) {
+				return signature.toByteArray();
+			}
+		} catch (PackageManager.NameNotFoundException e) {
+			android.util.Log.e("DeviceIdentityCache", "package certificate: " + e);
+		}
+		return null;
+	}
+}
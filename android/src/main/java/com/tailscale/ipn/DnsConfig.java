@@ -11,15 +11,24 @@ import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.net.wifi.WifiManager;
 
-import java.lang.reflect.Method;
-
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 // Tailscale DNS Config retrieval
 //
@@ -35,6 +44,13 @@ import java.util.Locale;
 //
 // --------------------- Android 7 and later -----------------------------------------
 //
+// ## registerNetworkCallback
+// Once the App is created we register a NetworkCallback which keeps a snapshot of the
+// transport preferability and DNS config of every Network in a table, updated from
+// onCapabilitiesChanged, onLinkPropertiesChanged and onLost. The answer is recomputed
+// whenever the table changes, so getDnsConfigAsString can return it without any
+// ConnectivityManager IPC. The same preference order as below is used.
+//
 // ## getDnsConfigFromLinkProperties
 // Android provides a getAllNetworks interface in the ConnectivityManager. We walk through
 // each interface to pick the most appropriate one.
@@ -45,8 +61,9 @@ import java.util.Locale;
 // only allows one VPN at a time so a different VPN's DNS servers won't be available
 // once Tailscale comes up.
 //
-// getAllNetworks() is used as the sole mechanism for retrieving the DNS config with
-// Android 7 and later.
+// On Android 7 and later the callback table is the primary mechanism. getAllNetworks() is
+// only the fallback until the callback has delivered its first link properties, just after
+// startup. After that an empty table means there is no DNS config, not that it is unknown.
 //
 // --------------------- Releases older than Android 7 -------------------------------
 //
@@ -79,7 +96,9 @@ import java.util.Locale;
 // or Cellular even if Tailscale is up.
 //
 // For Wi-Fi interfaces we retrieve the DHCP response from the WifiManager. For Cellular
-// interfaces we check for properties populated by most of the radio drivers.
+// interfaces we check for properties populated by most of the radio drivers. The
+// per-interface property names are built from the interfaces which actually exist,
+// and SystemPropertiesReader memoizes the values until the next connectivity event.
 //
 // getDnsServersFromNetworkInfo does not have a way to retrieve the DNS Search Domains,
 // so we return an empty list. Additionally, these interfaces are so old that they only
@@ -88,10 +107,309 @@ import java.util.Locale;
 public class DnsConfig {
 	private Context ctx;
 
+	// networks is the per-Network snapshot table maintained by the callback
+	// registered in registerNetworkCallback. Guarded by this.
+	private final Map<Network, NetworkSnapshot> networks = new HashMap<>();
+	// currentConfig is the DNS config selected from networks, or the empty
+	// string if none of them has one.
+	private volatile String currentConfig = "";
+	// currentPacked is currentConfig encoded by packDnsConfig, or null if
+	// currentConfig is empty.
+	private volatile byte[] currentPacked;
+	// version counts the changes of currentConfig. Guarded by this.
+	private int version;
+	// delivered is set once the callback delivered the link properties of a
+	// network, after which the table is trusted even if empty.
+	private volatile boolean delivered;
+
+	// sysProps reads the system properties used by the pre-Android 8
+	// mechanisms. It is invalidated on every connectivity event.
+	private final SystemPropertiesReader sysProps = new SystemPropertiesReader();
+
+	// The system properties holding per-interface DNS servers are named
+	// <namespace>.<interface>.dnsN. Only interfaces which exist and start
+	// with one of these prefixes are probed.
+	private static final String[] WIFI_PROPERTY_NAMESPACES = {"net", "dhcp"};
+	private static final String[] WIFI_INTERFACE_PREFIXES = {"wifi", "wlan", "eth", "tiwlan"};
+	private static final String[] MOBILE_PROPERTY_NAMESPACES = {"net"};
+	private static final String[] MOBILE_INTERFACE_PREFIXES = {"rmnet", "pdp", "ccmni"};
+
 	public DnsConfig(Context ctx) {
 		this.ctx = ctx;
 	}
 
+	// NetworkSnapshot is what we remember about a Network between callbacks.
+	public static class NetworkSnapshot {
+		// preferability is the result of getPreferabilityForNetwork,
+		// -1 until the capabilities are known.
+		int preferability = -1;
+		// servers are the DNS servers of the network.
+		List<InetAddress> servers = Collections.emptyList();
+		// domains are the search domains of the network separated by
+		// spaces, or null.
+		String domains;
+
+		NetworkSnapshot() {}
+
+		public NetworkSnapshot(int preferability, List<InetAddress> servers, String domains) {
+			this.preferability = preferability;
+			this.servers = servers;
+			this.domains = domains;
+		}
+
+		// format returns the DNS config of the network formatted as in
+		// getDnsConfigAsString.
+		String format() {
+			StringBuilder sb = new StringBuilder("");
+			for (InetAddress ip : servers) {
+				sb.append(ip.getHostAddress()).append(' ');
+			}
+			if (domains != null) {
+				sb.append('\n');
+				sb.append(domains);
+			}
+			return sb.toString();
+		}
+	}
+
+	// registerNetworkCallback starts tracking the DNS config of every Network.
+	// It must be called once the Context is usable, from App.onCreate.
+	void registerNetworkCallback() {
+		ConnectivityManager cMgr = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (cMgr == null) {
+			return;
+		}
+		cMgr.registerNetworkCallback(new NetworkRequest.Builder().build(), new ConnectivityManager.NetworkCallback() {
+			@Override
+			public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
+				super.onCapabilitiesChanged(network, nc);
+				synchronized (DnsConfig.this) {
+					sysProps.invalidate();
+					snapshotFor(network).preferability = getPreferabilityForCapabilities(nc);
+					updateCurrentConfig();
+				}
+			}
+
+			@Override
+			public void onLinkPropertiesChanged(Network network, LinkProperties linkProp) {
+				super.onLinkPropertiesChanged(network, linkProp);
+				synchronized (DnsConfig.this) {
+					sysProps.invalidate();
+					NetworkSnapshot snap = snapshotFor(network);
+					snap.servers = linkProp.getDnsServers();
+					snap.domains = linkProp.getDomains();
+					updateCurrentConfig();
+					delivered = true;
+				}
+			}
+
+			@Override
+			public void onLost(Network network) {
+				super.onLost(network);
+				synchronized (DnsConfig.this) {
+					sysProps.invalidate();
+					networks.remove(network);
+					updateCurrentConfig();
+				}
+			}
+		});
+	}
+
+	// snapshotFor returns the table entry for network, creating it if needed.
+	// Must be called with this held.
+	private NetworkSnapshot snapshotFor(Network network) {
+		NetworkSnapshot snap = networks.get(network);
+		if (snap == null) {
+			snap = new NetworkSnapshot();
+			networks.put(network, snap);
+		}
+		return snap;
+	}
+
+	// updateCurrentConfig recomputes currentConfig and currentPacked, bumping
+	// version if the selected config changed. Must be called with this held.
+	private void updateCurrentConfig() {
+		NetworkSnapshot snap = selectNetwork(networks.values());
+		String config = snap == null ? "" : snap.format();
+		if (config.equals(currentConfig)) {
+			return;
+		}
+		version++;
+		currentPacked = snap == null ? null : packDnsConfig(version, snap.servers, snap.domains);
+		currentConfig = config;
+	}
+
+	// selectNetwork returns the most preferable snapshot which has a DNS
+	// config, or null.
+	static NetworkSnapshot selectNetwork(Collection<NetworkSnapshot> snaps) {
+		// getPreferabilityForNetwork returns an index into best from 0-3.
+		NetworkSnapshot[] best = new NetworkSnapshot[4];
+		for (NetworkSnapshot snap : snaps) {
+			int idx = snap.preferability;
+			if ((idx < 0) || (idx > 3)) {
+				continue;
+			}
+			if (best[idx] == null && !snap.format().trim().isEmpty()) {
+				best[idx] = snap;
+			}
+		}
+
+		// return the lowest index DNS config which exists. If an Ethernet config
+		// was found, return it. Otherwise if Wi-fi was found, return it. Etc.
+		for (NetworkSnapshot snap : best) {
+			if (snap != null) {
+				return snap;
+			}
+		}
+		return null;
+	}
+
+	// selectDnsConfig returns the config of the most preferable snapshot which has
+	// one, or the empty string.
+	public static String selectDnsConfig(Collection<NetworkSnapshot> snaps) {
+		NetworkSnapshot snap = selectNetwork(snaps);
+		return snap == null ? "" : snap.format();
+	}
+
+	// formatLinkProperties formats the DNS servers and search domains of
+	// linkProp as in getDnsConfigAsString.
+	static String formatLinkProperties(LinkProperties linkProp) {
+		if (linkProp == null) {
+			return "";
+		}
+		return new NetworkSnapshot(-1, linkProp.getDnsServers(), linkProp.getDomains()).format();
+	}
+
+	// getDnsConfigPacked returns the current DNS configuration in the binary
+	// form written by packDnsConfig, for Go to decode without text parsing.
+	// It returns null if the configuration could not be retrieved.
+	//
+	// When the answer comes from the NetworkCallback table it is precomputed
+	// and version increases each time it changes. Otherwise it is built from
+	// the fallback mechanisms of getDnsConfigAsString with version 0.
+	byte[] getDnsConfigPacked() {
+		byte[] packed = currentPacked;
+		if (packed != null) {
+			return packed;
+		}
+		return packDnsConfigString(getDnsConfigAsString());
+	}
+
+	// getDnsConfigVersion returns the version of the DNS configuration tracked
+	// by the NetworkCallback, 0 if none has been seen yet.
+	synchronized int getDnsConfigVersion() {
+		return version;
+	}
+
+	// packDnsConfig encodes a DNS configuration as, all integers big endian:
+	//
+	// int32 version
+	// int16 number of servers, then for each: int8 length (4 or 16), raw address bytes,
+	//   and for 16 byte addresses int8 length, UTF-8 zone, empty if unscoped
+	// int16 number of search domains, then for each: int16 length, UTF-8 bytes
+	public static byte[] packDnsConfig(int version, List<InetAddress> servers, String domains) {
+		List<byte[]> addrs = new ArrayList<>(servers.size());
+		List<byte[]> zones = new ArrayList<>(servers.size());
+		int size = 4 + 2 + 2;
+		for (InetAddress ip : servers) {
+			byte[] raw = ip.getAddress();
+			addrs.add(raw);
+			size += 1 + raw.length;
+			if (raw.length == 16) {
+				byte[] zone = zone(ip).getBytes(StandardCharsets.UTF_8);
+				zones.add(zone);
+				size += 1 + zone.length;
+			} else {
+				zones.add(null);
+			}
+		}
+		List<byte[]> doms = new ArrayList<>();
+		if (domains != null) {
+			for (String d : domains.trim().split("[ ,]+")) {
+				if (d.isEmpty()) {
+					continue;
+				}
+				byte[] raw = d.getBytes(StandardCharsets.UTF_8);
+				doms.add(raw);
+				size += 2 + raw.length;
+			}
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(version);
+		buf.putShort((short) addrs.size());
+		for (int i = 0; i < addrs.size(); i++) {
+			byte[] raw = addrs.get(i);
+			buf.put((byte) raw.length);
+			buf.put(raw);
+			byte[] zone = zones.get(i);
+			if (zone != null) {
+				buf.put((byte) zone.length);
+				buf.put(zone);
+			}
+		}
+		buf.putShort((short) doms.size());
+		for (byte[] raw : doms) {
+			buf.putShort((short) raw.length);
+			buf.put(raw);
+		}
+		return buf.array();
+	}
+
+	// zone returns the scope of a link-local IPv6 address, as the name of its
+	// interface or else its numeric scope id, or "" if it has none.
+	private static String zone(InetAddress ip) {
+		if (!(ip instanceof Inet6Address)) {
+			return "";
+		}
+		Inet6Address ip6 = (Inet6Address) ip;
+		NetworkInterface ifc = ip6.getScopedInterface();
+		if (ifc != null) {
+			return ifc.getName();
+		}
+		return ip6.getScopeId() == 0 ? "" : String.valueOf(ip6.getScopeId());
+	}
+
+	// packDnsConfigString packs a config formatted as in getDnsConfigAsString,
+	// as returned by the fallback mechanisms. It returns null for an empty config.
+	public static byte[] packDnsConfigString(String config) {
+		if (config.trim().isEmpty()) {
+			return null;
+		}
+		String[] lines = config.split("\n", 2);
+		List<InetAddress> servers = new ArrayList<>();
+		for (String addr : lines[0].trim().split(" +")) {
+			if (!isNumericAddress(addr)) {
+				continue;
+			}
+			try {
+				servers.add(InetAddress.getByName(addr));
+			} catch (UnknownHostException e) {
+				continue;
+			}
+		}
+		return packDnsConfig(0, servers, lines.length > 1 ? lines[1] : null);
+	}
+
+	// isNumericAddress reports whether s looks like an IPv4 or IPv6 literal,
+	// so InetAddress.getByName does not attempt a DNS lookup.
+	private static boolean isNumericAddress(String s) {
+		int end = s.indexOf('%');
+		if (end < 0) {
+			end = s.length();
+		}
+		if (end == 0) {
+			return false;
+		}
+		for (int i = 0; i < end; i++) {
+			char c = s.charAt(i);
+			if (!(Character.digit(c, 16) >= 0 || c == '.' || c == ':')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// getDnsConfigAsString returns the current DNS configuration as a multiline string:
 	// line[0] DNS server addresses separated by spaces
 	// line[1] search domains separated by spaces
@@ -102,10 +420,19 @@ public class DnsConfig {
 	//
 	// an empty string means the current DNS configuration could not be retrieved.
 	String getDnsConfigAsString() {
-		String s = getDnsConfigFromLinkProperties();
+		String s = currentConfig;
 		if (!s.trim().isEmpty()) {
 			return s;
 		}
+		if (!delivered) {
+			// The callback has yet to report, ask ConnectivityManager
+			// directly. Afterwards it would only find what the table
+			// has, at the cost of IPCs.
+			s = getDnsConfigFromLinkProperties();
+			if (!s.trim().isEmpty()) {
+				return s;
+			}
+		}
 		if (android.os.Build.VERSION.SDK_INT >= 23) {
 			// If ConnectivityManager.getAllNetworks() works, it is the
 			// authoritative mechanism and we rely on it. The other methods
@@ -135,10 +462,9 @@ public class DnsConfig {
 	// Turning Wi-Fi back on return DNS servers: 10.1.10.1. The IPv6 DNS server is gone.
 	// This appears to be the ConnectivityManager behavior, not something we are doing.
 	//
-	// This implementation can work through Android 12 (SDK 30). In SDK 31 the
-	// getAllNetworks() method is deprecated and we'll need to implement a
-	// android.net.ConnectivityManager.NetworkCallback instead to monitor
-	// link changes and track which DNS server to use.
+	// In SDK 31 the getAllNetworks() method is deprecated. The NetworkCallback
+	// installed by registerNetworkCallback is the primary mechanism, this is
+	// only used until the callback has reported a network.
 	String getDnsConfigFromLinkProperties() {
 		ConnectivityManager cMgr = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
 		if (cMgr == null) {
@@ -169,20 +495,7 @@ public class DnsConfig {
 			}
 
 			LinkProperties linkProp = cMgr.getLinkProperties(network);
-			NetworkCapabilities nc = cMgr.getNetworkCapabilities(network);
-			List<InetAddress> dnsList = linkProp.getDnsServers();
-			StringBuilder sb = new StringBuilder("");
-			for (InetAddress ip : dnsList) {
-				sb.append(ip.getHostAddress() + " ");
-			}
-
-			String d = linkProp.getDomains();
-			if (d != null) {
-				sb.append("\n");
-				sb.append(d);
-			}
-
-			dnsConfigs[idx] = sb.toString();
+			dnsConfigs[idx] = formatLinkProperties(linkProp);
 		}
 
 		// return the lowest index DNS config which exists. If an Ethernet config
@@ -210,25 +523,18 @@ public class DnsConfig {
 	//
 	// The list of DNS search domains does not appear to be available in system properties.
 	String getDnsServersFromSystemProperties() {
-		try {
-			Class SystemProperties = Class.forName("android.os.SystemProperties");
-			Method method = SystemProperties.getMethod("get", String.class);
-			List<String> servers = new ArrayList<String>();
-			for (String name : new String[]{"net.dns1", "net.dns2", "net.dns3", "net.dns4"}) {
-				String value = (String) method.invoke(null, name);
-				if (value != null && !value.isEmpty() &&
-						!value.equals("100.100.100.100") &&
-						!servers.contains(value)) {
-					servers.add(value);
-				}
+		List<String> servers = new ArrayList<String>();
+		for (String name : new String[]{"net.dns1", "net.dns2", "net.dns3", "net.dns4"}) {
+			String value = sysProps.get(name);
+			if (!value.isEmpty() &&
+					!value.equals("100.100.100.100") &&
+					!servers.contains(value)) {
+				servers.add(value);
 			}
-			return String.join(" ", servers);
-		} catch (Exception e) {
-			return "";
 		}
+		return String.join(" ", servers);
 	}
 
-
 	public String intToInetString(int hostAddress) {
 		return String.format(java.util.Locale.ROOT, "%d.%d.%d.%d",
 			(0xff & hostAddress),
@@ -259,36 +565,13 @@ public class DnsConfig {
 			return "";
 		}
 
-		Class SystemProperties;
-		Method method;
-
-		try {
-			SystemProperties = Class.forName("android.os.SystemProperties");
-			method = SystemProperties.getMethod("get", String.class);
-		} catch (Exception e) {
-			return "";
-		}
-
-		List<String> servers = new ArrayList<String>();
+		List<String> servers;
 
 		switch(info.getType()) {
 		case ConnectivityManager.TYPE_WIFI:
 		case ConnectivityManager.TYPE_WIMAX:
-			for (String name : new String[]{
-				"net.wifi0.dns1", "net.wifi0.dns2", "net.wifi0.dns3", "net.wifi0.dns4",
-				"net.wlan0.dns1", "net.wlan0.dns2", "net.wlan0.dns3", "net.wlan0.dns4",
-				"net.eth0.dns1", "net.eth0.dns2", "net.eth0.dns3", "net.eth0.dns4",
-				"dhcp.wlan0.dns1", "dhcp.wlan0.dns2", "dhcp.wlan0.dns3", "dhcp.wlan0.dns4",
-				"dhcp.tiwlan0.dns1", "dhcp.tiwlan0.dns2", "dhcp.tiwlan0.dns3", "dhcp.tiwlan0.dns4"}) {
-				try {
-					String value = (String) method.invoke(null, name);
-					if (value != null && !value.isEmpty() && !servers.contains(value)) {
-						servers.add(value);
-					}
-				} catch (Exception e) {
-					continue;
-				}
-			}
+			// For example net.wlan0.dns1 or dhcp.tiwlan0.dns1.
+			servers = sysProps.getDnsServers(WIFI_PROPERTY_NAMESPACES, WIFI_INTERFACE_PREFIXES);
 
 			WifiManager wMgr = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
 			if (wMgr != null) {
@@ -309,27 +592,9 @@ public class DnsConfig {
 			return String.join(" ", servers);
 		case ConnectivityManager.TYPE_MOBILE:
 		case ConnectivityManager.TYPE_MOBILE_HIPRI:
-			for (String name : new String[]{
-				"net.rmnet0.dns1", "net.rmnet0.dns2", "net.rmnet0.dns3", "net.rmnet0.dns4",
-				"net.rmnet1.dns1", "net.rmnet1.dns2", "net.rmnet1.dns3", "net.rmnet1.dns4",
-				"net.rmnet2.dns1", "net.rmnet2.dns2", "net.rmnet2.dns3", "net.rmnet2.dns4",
-				"net.rmnet3.dns1", "net.rmnet3.dns2", "net.rmnet3.dns3", "net.rmnet3.dns4",
-				"net.rmnet4.dns1", "net.rmnet4.dns2", "net.rmnet4.dns3", "net.rmnet4.dns4",
-				"net.rmnet5.dns1", "net.rmnet5.dns2", "net.rmnet5.dns3", "net.rmnet5.dns4",
-				"net.rmnet6.dns1", "net.rmnet6.dns2", "net.rmnet6.dns3", "net.rmnet6.dns4",
-				"net.rmnet7.dns1", "net.rmnet7.dns2", "net.rmnet7.dns3", "net.rmnet7.dns4",
-				"net.pdp0.dns1", "net.pdp0.dns2", "net.pdp0.dns3", "net.pdp0.dns4",
-				"net.pdpbr0.dns1", "net.pdpbr0.dns2", "net.pdpbr0.dns3", "net.pdpbr0.dns4"}) {
-				try {
-					String value = (String) method.invoke(null, name);
-					if (value != null && !value.isEmpty() && !servers.contains(value)) {
-						servers.add(value);
-					}
-				} catch (Exception e) {
-					continue;
-				}
-
-			}
+			// For example net.rmnet0.dns1 or net.pdpbr0.dns1.
+			servers = sysProps.getDnsServers(MOBILE_PROPERTY_NAMESPACES, MOBILE_INTERFACE_PREFIXES);
+			return String.join(" ", servers);
 		}
 
 		return "";
@@ -338,8 +603,10 @@ public class DnsConfig {
 	// getPreferabilityForNetwork is a utility routine which implements a priority for
 	// different types of network transport, used in a heuristic to pick DNS servers to use.
 	int getPreferabilityForNetwork(ConnectivityManager cMgr, Network network) {
-		NetworkCapabilities nc = cMgr.getNetworkCapabilities(network);
+		return getPreferabilityForCapabilities(cMgr.getNetworkCapabilities(network));
+	}
 
+	static int getPreferabilityForCapabilities(NetworkCapabilities nc) {
 		if (nc == null) {
 			return -1;
 		}
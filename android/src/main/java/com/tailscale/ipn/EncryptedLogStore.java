@@ -0,0 +1,447 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// EncryptedLogStore is an append-only, AES-GCM encrypted key-value log, used as
+// the EncryptedStateStore backend. Unlike EncryptedSharedPreferences, which
+// rewrites its whole XML file on every commit, a write costs the size of the
+// written values only.
+//
+// Records are encrypted with a software AES data key, stored in the header
+// wrapped by the key given to open, the Android Keystore key in the app. Every
+// Keystore operation is an IPC to the keystore daemon, so it is used once per
+// open, to unwrap the data key, and once per compaction, to wrap a new one,
+// rather than once per record.
+//
+// The file starts with a header:
+//
+// 8 byte MAGIC
+// int8  nonce length, nonce
+// int8  length, AES-GCM ciphertext and tag of the data key
+//
+// followed by records:
+//
+// int32 length of the rest of the record
+// int8  nonce length, nonce
+// AES-GCM ciphertext and tag, under the data key, of:
+//   int8  op, OP_PUT or OP_DELETE
+//   int32 key length, UTF-8 key
+//   int32 value length, UTF-8 value (OP_PUT only)
+//
+// MAGIC is the additional authenticated data of the data key and of every
+// record. Records are replayed in order when the file is opened. A file
+// shorter than its header is new, or was torn while being created, and is
+// started over; any other file not starting with MAGIC is not a log and fails
+// the open with a CorruptLogException, as does a data key that doesn't unwrap.
+// A final record cut short, which is what a crash in the middle of an append
+// leaves behind, ends the replay and the file is cut back to the last good
+// record. A complete record that fails authentication is not a torn append but
+// corruption, and fails the open too.
+//
+// When the file is more than twice the size of the live records, and at least
+// COMPACT_MIN_BYTES, it is compacted by writing the live records to a
+// temporary file which is then renamed over the log, and the directory synced.
+final class EncryptedLogStore implements EncryptedStateStore.Backend {
+	static final String FILE_NAME = "state.log";
+
+	private static final byte[] MAGIC = {'T', 'S', 'L', 'O', 'G', 0, 0, 2};
+	private static final byte OP_PUT = 1;
+	private static final byte OP_DELETE = 2;
+	private static final int TAG_BITS = 128;
+	private static final int NONCE_BYTES = 12;
+	private static final int DATA_KEY_BITS = 256;
+	// MAX_RECORD_BYTES bounds the record length read from the file, so a
+	// corrupt length doesn't cause a huge allocation.
+	private static final int MAX_RECORD_BYTES = 64 << 20;
+	static final long COMPACT_MIN_BYTES = 64 << 10;
+
+	private final File file;
+	// key wraps the data key.
+	private final SecretKey key;
+	private final SecureRandom random = new SecureRandom();
+
+	// The fields below are guarded by this.
+	private FileChannel ch;
+	// dataKey encrypts the records. cipher is reused for all of them.
+	private SecretKey dataKey;
+	private final Cipher cipher;
+	// live holds the current value of every key.
+	private final Map<String, String> live = new HashMap<>();
+	// recordBytes holds the size of the record of every key in live.
+	private final Map<String, Integer> recordBytes = new HashMap<>();
+	private long liveBytes;
+	// bytesWritten counts the bytes appended or compacted since open.
+	private long bytesWritten;
+	// droppedBytes is the size of the torn tail cut off by open.
+	private long droppedBytes;
+
+	// CorruptLogException is thrown by open when the header doesn't match, the
+	// data key doesn't unwrap, or a complete record can't be authenticated or
+	// decoded. The file is left untouched.
+	static final class CorruptLogException extends IOException {
+		CorruptLogException(String msg, Throwable cause) {
+			super(msg, cause);
+		}
+	}
+
+	private EncryptedLogStore(File file, SecretKey key) throws GeneralSecurityException {
+		this.file = file;
+		this.key = key;
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	// open opens the log at file, creating it if needed, and replays it.
+	static EncryptedLogStore open(File file, SecretKey key) throws IOException, GeneralSecurityException {
+		EncryptedLogStore s = new EncryptedLogStore(file, key);
+		try {
+			s.load();
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			if (s.ch != null) {
+				s.ch.close();
+			}
+			throw e;
+		}
+		return s;
+	}
+
+	@Override public synchronized String read(String k) {
+		return live.get(k);
+	}
+
+	// write appends one record for each entry of batch, a null value
+	// deleting the key, and forces them to disk.
+	@Override public synchronized void write(Map<String, String> batch) throws IOException, GeneralSecurityException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		long end = ch.size();
+		ch.position(end);
+		try {
+			for (Map.Entry<String, String> e : batch.entrySet()) {
+				byte[] rec = encodeRecord(e.getKey(), e.getValue());
+				writeFully(ch, ByteBuffer.wrap(rec));
+				bytesWritten += rec.length;
+				apply(e.getKey(), e.getValue(), rec.length);
+			}
+			ch.force(false);
+		} catch (IOException | GeneralSecurityException e) {
+			// Drop the partial batch so the file stays replayable; the
+			// in-memory state already has it, which the caller retries.
+			ch.truncate(end);
+			throw e;
+		}
+		if (ch.size() >= COMPACT_MIN_BYTES && ch.size() > 2 * liveBytes) {
+			compact();
+		}
+	}
+
+	// compact rewrites the log with only the live records, under a new data
+	// key.
+	synchronized void compact() throws IOException, GeneralSecurityException {
+		File tmp = new File(file.getPath() + ".tmp");
+		SecretKey oldKey = dataKey;
+		dataKey = newDataKey();
+		Map<String, Integer> sizes = new HashMap<>();
+		long total = 0;
+		byte[] header;
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			FileChannel out = raf.getChannel();
+			header = encodeHeader();
+			writeFully(out, ByteBuffer.wrap(header));
+			for (Map.Entry<String, String> e : live.entrySet()) {
+				byte[] rec = encodeRecord(e.getKey(), e.getValue());
+				writeFully(out, ByteBuffer.wrap(rec));
+				sizes.put(e.getKey(), rec.length);
+				total += rec.length;
+			}
+			out.force(true);
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			dataKey = oldKey;
+			throw e;
+		}
+		bytesWritten += header.length + total;
+		ch.close();
+		if (!tmp.renameTo(file)) {
+			dataKey = oldKey;
+			ch = new RandomAccessFile(file, "rw").getChannel();
+			throw new IOException("rename " + tmp + " to " + file + " failed");
+		}
+		ch = new RandomAccessFile(file, "rw").getChannel();
+		recordBytes.clear();
+		recordBytes.putAll(sizes);
+		liveBytes = total;
+		// Make the rename durable before anything is appended to the new
+		// log; until then a crash may bring back the old one.
+		syncDir(file.getAbsoluteFile().getParentFile());
+	}
+
+	synchronized void close() throws IOException {
+		ch.close();
+	}
+
+	// size returns the current size of the log file.
+	synchronized long size() throws IOException {
+		return ch.size();
+	}
+
+	// bytesWritten returns the bytes written to disk since open.
+	synchronized long bytesWritten() {
+		return bytesWritten;
+	}
+
+	// droppedBytes returns the size of the torn tail removed by open.
+	synchronized long droppedBytes() {
+		return droppedBytes;
+	}
+
+	synchronized Map<String, String> snapshot() {
+		return new HashMap<>(live);
+	}
+
+	private void load() throws IOException, GeneralSecurityException {
+		ch = new RandomAccessFile(file, "rw").getChannel();
+		long good = loadHeader();
+		if (good < 0) {
+			// New, or not even the header made it to disk.
+			dataKey = newDataKey();
+			byte[] header = encodeHeader();
+			ch.truncate(0);
+			ch.position(0);
+			writeFully(ch, ByteBuffer.wrap(header));
+			ch.force(true);
+			bytesWritten += header.length;
+			return;
+		}
+		long size = ch.size();
+		ByteBuffer len = ByteBuffer.allocate(4);
+		while (good < size) {
+			len.clear();
+			if (readFully(ch, len) < 4) {
+				// Torn in the middle of the length.
+				break;
+			}
+			int n = len.getInt(0);
+			if (n <= 0 || n > MAX_RECORD_BYTES) {
+				throw new CorruptLogException("bad record length " + n + " at offset " + good, null);
+			}
+			if (good + 4 + n > size) {
+				// The final record was cut short.
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(n);
+			if (readFully(ch, body) < n) {
+				break;
+			}
+			try {
+				replay(body.array(), 4 + n);
+			} catch (AEADBadTagException | EOFException e) {
+				throw new CorruptLogException("bad record at offset " + good, e);
+			}
+			good += 4 + n;
+		}
+		if (good < size) {
+			droppedBytes = size - good;
+			ch.truncate(good);
+			ch.force(true);
+		}
+	}
+
+	// loadHeader reads the header and unwraps the data key, returning the
+	// header length, or -1 if the file is shorter than its header.
+	private long loadHeader() throws IOException, GeneralSecurityException {
+		ch.position(0);
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+		if (readFully(ch, magic) < MAGIC.length) {
+			return -1;
+		}
+		if (!Arrays.equals(magic.array(), MAGIC)) {
+			throw new CorruptLogException("bad header", null);
+		}
+		byte[] nonce = readField(ch);
+		byte[] wrapped = nonce == null ? null : readField(ch);
+		if (wrapped == null) {
+			return -1;
+		}
+		try {
+			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+			c.updateAAD(MAGIC);
+			dataKey = new SecretKeySpec(c.doFinal(wrapped), "AES");
+		} catch (AEADBadTagException e) {
+			throw new CorruptLogException("can't unwrap the data key", e);
+		}
+		return ch.position();
+	}
+
+	// encodeHeader returns the header, with dataKey wrapped by key.
+	private byte[] encodeHeader() throws GeneralSecurityException {
+		// Let the provider pick the nonce; the Android Keystore insists.
+		Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+		c.init(Cipher.ENCRYPT_MODE, key);
+		c.updateAAD(MAGIC);
+		byte[] wrapped = c.doFinal(dataKey.getEncoded());
+		byte[] nonce = c.getIV();
+
+		ByteBuffer h = ByteBuffer.allocate(MAGIC.length + 1 + nonce.length + 1 + wrapped.length);
+		h.put(MAGIC);
+		h.put((byte) nonce.length);
+		h.put(nonce);
+		h.put((byte) wrapped.length);
+		h.put(wrapped);
+		return h.array();
+	}
+
+	private static SecretKey newDataKey() throws GeneralSecurityException {
+		KeyGenerator gen = KeyGenerator.getInstance("AES");
+		gen.init(DATA_KEY_BITS);
+		return gen.generateKey();
+	}
+
+	// replay applies the record body, the record without its length.
+	private void replay(byte[] body, int size) throws GeneralSecurityException, EOFException {
+		ByteBuffer b = ByteBuffer.wrap(body);
+		int ivLen = b.get() & 0xff;
+		if (ivLen > b.remaining()) {
+			throw new EOFException();
+		}
+		byte[] iv = new byte[ivLen];
+		b.get(iv);
+		cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(TAG_BITS, iv));
+		cipher.updateAAD(MAGIC);
+		ByteBuffer p = ByteBuffer.wrap(cipher.doFinal(body, b.position(), b.remaining()));
+		try {
+			byte op = p.get();
+			byte[] k = new byte[p.getInt()];
+			p.get(k);
+			String value = null;
+			if (op == OP_PUT) {
+				byte[] v = new byte[p.getInt()];
+				p.get(v);
+				value = new String(v, StandardCharsets.UTF_8);
+			}
+			apply(new String(k, StandardCharsets.UTF_8), value, size);
+		} catch (RuntimeException e) {
+			// Authenticated but malformed.
+			throw new EOFException();
+		}
+	}
+
+	private void apply(String k, String value, int size) {
+		Integer old = recordBytes.remove(k);
+		if (old != null) {
+			liveBytes -= old;
+		}
+		if (value == null) {
+			live.remove(k);
+			return;
+		}
+		live.put(k, value);
+		recordBytes.put(k, size);
+		liveBytes += size;
+	}
+
+	private byte[] encodeRecord(String k, String value) throws GeneralSecurityException {
+		byte[] kb = k.getBytes(StandardCharsets.UTF_8);
+		byte[] vb = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer p = ByteBuffer.allocate(1 + 4 + kb.length + (vb == null ? 0 : 4 + vb.length));
+		p.put(value == null ? OP_DELETE : OP_PUT);
+		p.putInt(kb.length);
+		p.put(kb);
+		if (vb != null) {
+			p.putInt(vb.length);
+			p.put(vb);
+		}
+
+		byte[] iv = new byte[NONCE_BYTES];
+		random.nextBytes(iv);
+		cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(TAG_BITS, iv));
+		cipher.updateAAD(MAGIC);
+		byte[] ct = cipher.doFinal(p.array());
+
+		ByteBuffer rec = ByteBuffer.allocate(4 + 1 + iv.length + ct.length);
+		rec.putInt(1 + iv.length + ct.length);
+		rec.put((byte) iv.length);
+		rec.put(iv);
+		rec.put(ct);
+		return rec.array();
+	}
+
+	// syncDir forces the entries of dir, such as a rename into it, to disk.
+	private static void syncDir(File dir) throws IOException {
+		try {
+			FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+			try {
+				Os.fsync(fd);
+			} finally {
+				Os.close(fd);
+			}
+		} catch (ErrnoException e) {
+			throw new IOException("fsync " + dir, e);
+		}
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			ch.write(b);
+		}
+	}
+
+	// readField reads an int8 length and that many bytes, returning null if
+	// the file ends first.
+	private static byte[] readField(FileChannel ch) throws IOException {
+		ByteBuffer len = ByteBuffer.allocate(1);
+		if (readFully(ch, len) < 1) {
+			return null;
+		}
+		ByteBuffer b = ByteBuffer.allocate(len.get(0) & 0xff);
+		if (readFully(ch, b) < b.capacity()) {
+			return null;
+		}
+		return b.array();
+	}
+
+	// readFully reads until b is full or the end of the file, returning the
+	// number of bytes read.
+	private static int readFully(FileChannel ch, ByteBuffer b) throws IOException {
+		int total = 0;
+		while (b.hasRemaining()) {
+			int n = ch.read(b);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+}
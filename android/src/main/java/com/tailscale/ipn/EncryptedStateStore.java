@@ -0,0 +1,329 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import androidx.security.crypto.EncryptedSharedPreferences;
+import androidx.security.crypto.MasterKey;
+
+// EncryptedStateStore is the long-lived store behind App.encryptToPref and
+// App.decryptFromPref, used by the Go stateStore.
+//
+// The Backend, an EncryptedLogStore keyed by the Android Keystore, is opened once,
+// on first use, and values are cached in memory after the first read. Before
+// Android 6 there is no Keystore AES key generation and the backend stays the
+// secret_shared_prefs EncryptedSharedPreferences. Writes
+// update the cache immediately and are written to the backend by a background
+// thread after WRITE_DELAY_MS, so a burst of writes costs a single append. flush
+// is a durability barrier which returns once every earlier write is on disk.
+//
+// Values stored by earlier versions in the secret_shared_prefs
+// EncryptedSharedPreferences are moved into the log the first time it is opened,
+// and the preferences are left holding only MIGRATED_KEY. A log that fails to
+// open as corrupt is moved aside to FILE_NAME + CORRUPT_SUFFIX and replaced by
+// an empty one; the emptied preferences are not migrated again.
+final class EncryptedStateStore {
+	private static final String TAG = "EncryptedStateStore";
+	private static final String PREFS_NAME = "secret_shared_prefs";
+	private static final String LOG_KEY_ALIAS = "tailscale_state_log_key";
+	// MIGRATED_KEY is written to the log once the values of PREFS_NAME have
+	// been copied into it.
+	private static final String MIGRATED_KEY = "_tailscale_migrated_" + PREFS_NAME;
+	private static final String CORRUPT_SUFFIX = ".corrupt";
+	// WRITE_DELAY_MS is how long writes are coalesced before being committed.
+	private static final long WRITE_DELAY_MS = 200;
+	// RETRY_DELAY_MS is how long a failed commit waits before it is retried.
+	private static final long RETRY_DELAY_MS = 5000;
+
+	private final Context ctx;
+	// writer commits pending writes, one batch at a time.
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+	// Backend is the persistent storage under the cache.
+	interface Backend {
+		// read returns the value of key, or null.
+		String read(String key) throws IOException, GeneralSecurityException;
+		// write durably stores batch, where a null value removes the key.
+		void write(Map<String, String> batch) throws IOException, GeneralSecurityException;
+	}
+
+	// backendLock guards backend, separately from this so that the slow key
+	// setup doesn't block put.
+	private final Object backendLock = new Object();
+	// backend is created by backend(). Guarded by backendLock.
+	private Backend backend;
+	// keySetupMillis is how long creating backend took, -1 until it is created.
+	private volatile long keySetupMillis = -1;
+
+	// cache holds the values read or written so far, including null for
+	// keys known to be absent. Guarded by this.
+	private final Map<String, String> cache = new HashMap<>();
+	// pending holds the writes not yet handed to the writer. Guarded by this.
+	private Map<String, String> pending = new HashMap<>();
+	// flushScheduled is whether a delayed commit of pending is scheduled.
+	// Guarded by this.
+	private boolean flushScheduled;
+
+	EncryptedStateStore(Context ctx) {
+		this.ctx = ctx;
+	}
+
+	// get returns the value of key, or null if it is not set.
+	String get(String key) throws IOException, GeneralSecurityException {
+		synchronized (this) {
+			if (cache.containsKey(key)) {
+				return cache.get(key);
+			}
+		}
+		String value = backend().read(key);
+		synchronized (this) {
+			// A write may have raced with the read; it wins.
+			if (!cache.containsKey(key)) {
+				cache.put(key, value);
+			}
+			return cache.get(key);
+		}
+	}
+
+	// put sets key to value. The value is visible to get immediately and
+	// reaches the disk within WRITE_DELAY_MS, or at the next flush.
+	synchronized void put(String key, String value) {
+		cache.put(key, value);
+		pending.put(key, value);
+		scheduleCommit(WRITE_DELAY_MS);
+	}
+
+	// scheduleCommit schedules a delayed commit of pending unless one is
+	// already scheduled. It must be called with this held.
+	private void scheduleCommit(long delayMs) {
+		if (flushScheduled) {
+			return;
+		}
+		flushScheduled = true;
+		writer.schedule(new Runnable() {
+			@Override public void run() {
+				try {
+					commitPending();
+				} catch (Exception e) {
+					android.util.Log.e(TAG, "delayed commit failed: " + e);
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	// flush returns once every earlier put has been committed.
+	void flush() throws IOException, GeneralSecurityException {
+		Future<?> f = writer.submit(new Callable<Void>() {
+			@Override public Void call() throws Exception {
+				commitPending();
+				return null;
+			}
+		});
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("flush interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	// keySetupMillis returns how long opening the backend, including key
+	// setup, took, or -1 if it hasn't happened yet.
+	long keySetupMillis() {
+		return keySetupMillis;
+	}
+
+	// commitPending writes the pending values. It runs on the writer thread.
+	private void commitPending() throws IOException, GeneralSecurityException {
+		Map<String, String> batch;
+		synchronized (this) {
+			batch = pending;
+			pending = new HashMap<>();
+			flushScheduled = false;
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			backend().write(batch);
+		} catch (IOException | GeneralSecurityException e) {
+			// Put the batch back unless newer writes replaced it, and
+			// retry it later; a flush before then retries it too.
+			synchronized (this) {
+				for (Map.Entry<String, String> ent : batch.entrySet()) {
+					if (!pending.containsKey(ent.getKey())) {
+						pending.put(ent.getKey(), ent.getValue());
+					}
+				}
+				scheduleCommit(RETRY_DELAY_MS);
+			}
+			throw e;
+		}
+	}
+
+	private Backend backend() throws IOException, GeneralSecurityException {
+		synchronized (backendLock) {
+			if (backend == null) {
+				long start = SystemClock.elapsedRealtime();
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+					backend = openLog();
+				} else {
+					backend = new PrefsBackend(openPrefs());
+				}
+				keySetupMillis = SystemClock.elapsedRealtime() - start;
+				android.util.Log.i(TAG, "key setup took " + keySetupMillis + "ms");
+			}
+			return backend;
+		}
+	}
+
+	private EncryptedLogStore openLog() throws IOException, GeneralSecurityException {
+		File f = new File(ctx.getFilesDir(), EncryptedLogStore.FILE_NAME);
+		SecretKey key = logKey();
+		EncryptedLogStore log;
+		try {
+			log = EncryptedLogStore.open(f, key);
+		} catch (EncryptedLogStore.CorruptLogException e) {
+			File aside = new File(f.getPath() + CORRUPT_SUFFIX);
+			if (!f.renameTo(aside)) {
+				throw new IOException("moving corrupt " + f + " aside failed", e);
+			}
+			android.util.Log.e(TAG, "moved corrupt state log to " + aside + ": " + e);
+			log = EncryptedLogStore.open(f, key);
+		}
+		if (log.droppedBytes() > 0) {
+			android.util.Log.w(TAG, "dropped " + log.droppedBytes() + " bytes of torn log tail");
+		}
+		if (log.read(MIGRATED_KEY) == null) {
+			migrateFromPrefs(log);
+		}
+		return log;
+	}
+
+	// migrateFromPrefs copies the values of the EncryptedSharedPreferences
+	// used by earlier versions into log, together with MIGRATED_KEY, then
+	// clears the preferences except for MIGRATED_KEY. Preferences that
+	// already hold MIGRATED_KEY were emptied by an earlier migration, and only
+	// the marker is written.
+	private void migrateFromPrefs(EncryptedLogStore log) throws IOException, GeneralSecurityException {
+		Map<String, String> batch = new HashMap<>();
+		SharedPreferences prefs = null;
+		File xml = new File(new File(ctx.getApplicationInfo().dataDir, "shared_prefs"), PREFS_NAME + ".xml");
+		if (xml.exists()) {
+			prefs = openPrefs();
+			if (prefs.contains(MIGRATED_KEY)) {
+				android.util.Log.e(TAG, PREFS_NAME + " already migrated; starting with empty state");
+				prefs = null;
+			} else {
+				for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+					if (e.getValue() instanceof String) {
+						batch.put(e.getKey(), (String) e.getValue());
+					}
+				}
+			}
+		}
+		batch.put(MIGRATED_KEY, "true");
+		log.write(batch);
+		android.util.Log.i(TAG, "migrated " + (batch.size() - 1) + " values from " + PREFS_NAME);
+		if (prefs != null) {
+			prefs.edit().clear().putString(MIGRATED_KEY, "true").commit();
+		}
+	}
+
+	private SharedPreferences openPrefs() throws IOException, GeneralSecurityException {
+		MasterKey key = new MasterKey.Builder(ctx)
+			.setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+			.build();
+
+		return EncryptedSharedPreferences.create(
+			ctx,
+			PREFS_NAME,
+			key,
+			EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
+			EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
+		);
+	}
+
+	// PrefsBackend stores the values in EncryptedSharedPreferences, for
+	// Android versions without Keystore AES keys.
+	private static final class PrefsBackend implements Backend {
+		private final SharedPreferences prefs;
+
+		PrefsBackend(SharedPreferences prefs) {
+			this.prefs = prefs;
+		}
+
+		@Override public String read(String key) {
+			return prefs.getString(key, null);
+		}
+
+		@Override public void write(Map<String, String> batch) throws IOException {
+			SharedPreferences.Editor e = prefs.edit();
+			for (Map.Entry<String, String> ent : batch.entrySet()) {
+				if (ent.getValue() == null) {
+					e.remove(ent.getKey());
+				} else {
+					e.putString(ent.getKey(), ent.getValue());
+				}
+			}
+			if (!e.commit()) {
+				throw new IOException("committing " + PREFS_NAME + " failed");
+			}
+		}
+	}
+
+	// logKey returns the AES-256 key of the log, which never leaves the
+	// Android Keystore, generating it on first use. It needs Android 6.
+	private static SecretKey logKey() throws IOException, GeneralSecurityException {
+		KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+		ks.load(null);
+		Key existing = ks.getKey(LOG_KEY_ALIAS, null);
+		if (existing instanceof SecretKey) {
+			return (SecretKey) existing;
+		}
+		KeyGenerator gen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+		gen.init(new KeyGenParameterSpec.Builder(LOG_KEY_ALIAS,
+				KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+			.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+			.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+			.setKeySize(256)
+			.build());
+		return gen.generateKey();
+	}
+}
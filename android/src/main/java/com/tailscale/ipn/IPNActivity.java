@@ -8,9 +8,7 @@ import android.app.Activity;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Configuration;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
 import android.net.Uri;
 import android.content.pm.PackageManager;
 
@@ -51,45 +49,9 @@ public final class IPNActivity extends Activity {
 		} else {
 			return;
 		}
-		String mime = it.getType();
-		int nitems = uris.length;
-		String[] items = new String[nitems];
-		String[] mimes = new String[nitems];
-		int[] types = new int[nitems];
-		String[] names = new String[nitems];
-		long[] sizes = new long[nitems];
-		int nfiles = 0;
-		for (int i = 0; i < uris.length; i++) {
-			String text = texts[i];
-			Uri uri = uris[i];
-			if (text != null) {
-				types[nfiles] = 1; // FileTypeText
-				names[nfiles] = "file.txt";
-				mimes[nfiles] = mime;
-				items[nfiles] = text;
-				// Determined by len(text) in Go to eliminate UTF-8 encoding differences.
-				sizes[nfiles] = 0;
-				nfiles++;
-			} else if (uri != null) {
-				Cursor c = getContentResolver().query(uri, null, null, null, null);
-				if (c == null) {
-					// Ignore files we have no permission to access.
-					continue;
-				}
-				int nameCol = c.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-				int sizeCol = c.getColumnIndex(OpenableColumns.SIZE);
-				c.moveToFirst();
-				String name = c.getString(nameCol);
-				long size = c.getLong(sizeCol);
-				types[nfiles] = 2; // FileTypeURI
-				mimes[nfiles] = mime;
-				items[nfiles] = uri.toString();
-				names[nfiles] = name;
-				sizes[nfiles] = size;
-				nfiles++;
-			}
-		}
-		App.onShareIntent(nfiles, types, mimes, items, names, sizes);
+		// Resolving the shared items queries their providers; do that off
+		// the UI thread.
+		((App)getApplicationContext()).shareIngestor.ingest(getContentResolver(), it.getType(), uris, texts);
 	}
 
 	@Override public void onRequestPermissionsResult(int reqCode, String[] perms, int[] grants) {
@@ -0,0 +1,138 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+// IPNControlService is the bound service automation clients use to connect
+// and disconnect the VPN and to follow its status, see IIPNControl. Binding
+// requires the CONTROL_VPN permission, a dangerous permission the client must
+// request from the user at runtime.
+//
+// Status queries are answered from ControlStatus without touching the Go
+// backend, and changes are pushed to the registered callbacks, so clients
+// don't poll. Callbacks are one-way; a slow client doesn't hold up others.
+public class IPNControlService extends Service {
+	// The keys of the status Bundle.
+	// KEY_STATE is the backend state: "NoState", "InUseOtherUser",
+	// "NeedsLogin", "NeedsMachineAuth", "Stopped", "Starting" or "Running".
+	public static final String KEY_STATE = "state";
+	// KEY_EXIT_NODE is the name of the selected exit node, or "".
+	public static final String KEY_EXIT_NODE = "exit_node";
+	public static final String KEY_EXIT_NODE_ONLINE = "exit_node_online";
+	// KEY_NETWORK describes the network the VPN runs over, or "".
+	public static final String KEY_NETWORK = "network";
+	// KEY_SEQ increases with every status change.
+	public static final String KEY_SEQ = "seq";
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final RemoteCallbackList<IIPNStatusCallback> callbacks = new RemoteCallbackList<>();
+
+	// broadcastSeq is the seq of the status last sent to the callbacks.
+	// Only accessed on the main thread.
+	private long broadcastSeq;
+
+	private final Runnable broadcast = new Runnable() {
+		@Override public void run() {
+			ControlStatus.Snapshot s = status().get();
+			if (s.seq <= broadcastSeq) {
+				return;
+			}
+			broadcastSeq = s.seq;
+			Bundle b = toBundle(s);
+			int n = callbacks.beginBroadcast();
+			try {
+				for (int i = 0; i < n; i++) {
+					try {
+						callbacks.getBroadcastItem(i).onStatusChanged(b);
+					} catch (RemoteException e) {
+						// RemoteCallbackList drops dead clients.
+					}
+				}
+			} finally {
+				callbacks.finishBroadcast();
+			}
+		}
+	};
+
+	// listener coalesces changes into one broadcast of the latest status
+	// on the main thread.
+	private final ControlStatus.Listener listener = new ControlStatus.Listener() {
+		@Override public void onStatusChanged(ControlStatus.Snapshot s) {
+			mainHandler.removeCallbacks(broadcast);
+			mainHandler.post(broadcast);
+		}
+	};
+
+	private final IIPNControl.Stub binder = new IIPNControl.Stub() {
+		@Override public void connect() {
+			VPNControlWork.request(IPNControlService.this, true, SystemClock.elapsedRealtime());
+		}
+
+		@Override public void disconnect() {
+			VPNControlWork.request(IPNControlService.this, false, SystemClock.elapsedRealtime());
+		}
+
+		@Override public Bundle getStatus() {
+			return toBundle(status().get());
+		}
+
+		@Override public void registerCallback(IIPNStatusCallback cb) {
+			if (cb == null || !callbacks.register(cb)) {
+				return;
+			}
+			try {
+				cb.onStatusChanged(toBundle(status().get()));
+			} catch (RemoteException e) {
+				callbacks.unregister(cb);
+			}
+		}
+
+		@Override public void unregisterCallback(IIPNStatusCallback cb) {
+			if (cb != null) {
+				callbacks.unregister(cb);
+			}
+		}
+	};
+
+	@Override public void onCreate() {
+		super.onCreate();
+		broadcastSeq = status().get().seq;
+		status().addListener(listener);
+	}
+
+	@Override public IBinder onBind(Intent intent) {
+		return binder;
+	}
+
+	@Override public void onDestroy() {
+		status().removeListener(listener);
+		mainHandler.removeCallbacks(broadcast);
+		callbacks.kill();
+		super.onDestroy();
+	}
+
+	private ControlStatus status() {
+		return ((App)getApplicationContext()).controlStatus;
+	}
+
+	static Bundle toBundle(ControlStatus.Snapshot s) {
+		Bundle b = new Bundle();
+		b.putString(KEY_STATE, s.state);
+		b.putString(KEY_EXIT_NODE, s.exitNode);
+		b.putBoolean(KEY_EXIT_NODE_ONLINE, s.exitNodeOnline);
+		b.putString(KEY_NETWORK, s.network);
+		b.putLong(KEY_SEQ, s.seq);
+		return b;
+	}
+}
@@ -7,61 +7,43 @@ package com.tailscale.ipn;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import androidx.work.WorkManager;
-import androidx.work.OneTimeWorkRequest;
+import android.os.SystemClock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class IPNReceiver extends BroadcastReceiver {
+    static final String ACTION_CONNECT_VPN = "com.tailscale.ipn.CONNECT_VPN";
+    static final String ACTION_DISCONNECT_VPN = "com.tailscale.ipn.DISCONNECT_VPN";
 
-    private ConnectivityManager getConnectivityManager() {
-        return (ConnectivityManager) getApplicationContext()
-                .getSystemService(Context.CONNECTIVITY_SERVICE);
-    }
+    // enqueuer schedules the workers in the order the intents arrived, off
+    // the main thread: the first use of WorkManager opens its database.
+    private static final ExecutorService enqueuer = Executors.newSingleThreadExecutor();
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        //获得ConnectivityManager对象
-        ConnectivityManager connMgr = getConnectivityManager();
-
-        //检测API是不是小于23，因为到了API23之后getNetworkInfo(int networkType)方法被弃用
-        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
-
-            //获取ConnectivityManager对象对应的NetworkInfo对象
-            //获取WIFI连接的信息
-            NetworkInfo wifiNetworkInfo = connMgr.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-            //获取移动数据连接的信息
-            NetworkInfo dataNetworkInfo = connMgr.getNetworkInfo(ConnectivityManager.TYPE_MOBILE);
-            if (wifiNetworkInfo.isConnected() && dataNetworkInfo.isConnected()) {
-                Toast.makeText(context, "WIFI已连接,移动数据已连接", Toast.LENGTH_SHORT).show();
-            } else if (wifiNetworkInfo.isConnected() && !dataNetworkInfo.isConnected()) {
-                Toast.makeText(context, "WIFI已连接,移动数据已断开", Toast.LENGTH_SHORT).show();
-            } else if (!wifiNetworkInfo.isConnected() && dataNetworkInfo.isConnected()) {
-                Toast.makeText(context, "WIFI已断开,移动数据已连接", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(context, "WIFI已断开,移动数据已断开", Toast.LENGTH_SHORT).show();
-            }
-        }else {
-            //API大于23时使用下面的方式进行网络监听
-
-            //获取所有网络连接的信息
-            Network[] networks = connMgr.getAllNetworks();
-            //用于存放网络连接信息
-            StringBuilder sb = new StringBuilder();
-            //通过循环将网络信息逐个取出来
-            for (int i=0; i < networks.length; i++){
-                //获取ConnectivityManager对象对应的NetworkInfo对象
-                NetworkInfo networkInfo = connMgr.getNetworkInfo(networks[i]);
-                sb.append(networkInfo.getTypeName() + " connect is " + networkInfo.isConnected());
-            }
-            Toast.makeText(context, sb.toString(),Toast.LENGTH_SHORT).show();
+        final long receivedAt = SystemClock.elapsedRealtime();
+        final boolean connect;
+        String action = intent.getAction();
+        if (ACTION_CONNECT_VPN.equals(action)) {
+            connect = true;
+        } else if (ACTION_DISCONNECT_VPN.equals(action)) {
+            connect = false;
+        } else {
+            return;
         }
 
-        WorkManager workManager = WorkManager.getInstance(context);
-
         // On the relevant action, start the relevant worker, which can stay active for longer than this receiver can.
-        if (intent.getAction() == "com.tailscale.ipn.CONNECT_VPN") {
-            workManager.enqueue(new OneTimeWorkRequest.Builder(StartVPNWorker.class).build());
-        } else if (intent.getAction() == "com.tailscale.ipn.DISCONNECT_VPN") {
-            workManager.enqueue(new OneTimeWorkRequest.Builder(StopVPNWorker.class).build());
-        }
+        final Context appCtx = context.getApplicationContext();
+        final PendingResult pending = goAsync();
+        enqueuer.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    VPNControlWork.request(appCtx, connect, receivedAt);
+                } finally {
+                    pending.finish();
+                }
+            }
+        });
     }
 }
@@ -5,13 +5,15 @@
 package com.tailscale.ipn;
 
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.net.VpnService;
 import android.net.Network;
-import android.net.NetworkInfo;
+import android.net.VpnService;
 import android.net.ConnectivityManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.system.OsConstants;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
@@ -21,23 +23,64 @@ import java.util.*;
 public class IPNService extends VpnService {
 	public static final String ACTION_CONNECT = "com.tailscale.ipn.CONNECT";
 	public static final String ACTION_DISCONNECT = "com.tailscale.ipn.DISCONNECT";
+	// STATUS_UPDATES_PER_SECOND bounds the rate of status notification posts.
+	private static final int STATUS_UPDATES_PER_SECOND = 2;
+	// ALERT_INTERVAL_MS bounds the rate of alert notification posts.
+	private static final long ALERT_INTERVAL_MS = 1000;
+
+	// statusBuilder and alertBuilder are reused by every post of the status
+	// and alert notifications. They are only touched on the main thread, by
+	// statusDispatcher and alertDispatcher.
+	private NotificationCompat.Builder statusBuilder;
+	private NotificationCompat.Builder alertBuilder;
+
+	private final NotificationDispatcher statusDispatcher = new NotificationDispatcher(
+		Scheduler.handler(new Handler(Looper.getMainLooper())),
+		1000 / STATUS_UPDATES_PER_SECOND,
+		new NotificationDispatcher.Poster() {
+			@Override public void post(String title, String text) {
+				postStatusNotification(title, text);
+			}
+		});
+
+	private final NotificationDispatcher alertDispatcher = new NotificationDispatcher(
+		Scheduler.handler(new Handler(Looper.getMainLooper())),
+		ALERT_INTERVAL_MS,
+		new NotificationDispatcher.Poster() {
+			@Override public void post(String title, String text) {
+				postAlertNotification(title, text);
+			}
+		});
 
 	@Override public int onStartCommand(Intent intent, int flags, int startId) {
+		final App app = ((App)getApplicationContext());
 		if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
 			close();
 			return START_NOT_STICKY;
 		}
-		connect();
-		App app = ((App)getApplicationContext());
-		if (app.vpnReady && app.autoConnect) {
-			directConnect();
-		}
+		// The service may be started before the Go library is loaded;
+		// commands queue behind it in order.
+		app.startup.whenDone(App.PHASE_GO, new Runnable() {
+			@Override public void run() {
+				connect();
+				if (app.vpnReady && app.autoConnect) {
+					directConnect();
+				}
+			}
+		});
 		return START_STICKY;
 	}
 
 	private void close() {
 		stopForeground(true);
-		disconnect();
+		// The notifications are gone; let the next updates post them again.
+		statusDispatcher.reset();
+		alertDispatcher.reset();
+		((App)getApplicationContext()).startup.whenDone(App.PHASE_GO, new Runnable() {
+			@Override public void run() {
+				disconnect();
+			}
+		});
 	}
 
 	private ConnectivityManager getConnectivityManager() {
@@ -45,48 +88,69 @@ public class IPNService extends VpnService {
 				.getSystemService(Context.CONNECTIVITY_SERVICE);
 	}
 
-	private String[] titleMsg = new String[2];
-
-	private Network[] getWifiNetworkOrElse() {
-		ConnectivityManager connectivityManager = getConnectivityManager();
-		Network[] networks = connectivityManager.getAllNetworks();
-		List<Network> wifis = new LinkedList<>();
-		List<String> wifiInfos = new LinkedList<>();
-		List<String> otherInfos = new LinkedList<>();
-		for (Network network : networks) {
-			NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
-			if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-				if (networkInfo)
-				wifis.add(network);
-				wifiInfos.add(networkInfo.toString());
-			} else {
-				otherInfos.add(networkInfo.toString());
+	// titleMsg holds the label and description of the best underlying
+	// network, shown in the status notification. It is replaced as a whole.
+	private volatile String[] titleMsg = {"所有网络", "无网络"};
+
+	private final NetworkRanker ranker = new NetworkRanker();
+
+	// underlying is the latest value handed to setUnderlyingNetworks, on the
+	// Builder or the live service. Guarded by this.
+	private Network[] underlying;
+
+	@Override public void onCreate() {
+		super.onCreate();
+		App app = (App)getApplicationContext();
+		app.trackDispatcher("status", statusDispatcher);
+		app.trackDispatcher("alert", alertDispatcher);
+		ranker.register(getConnectivityManager(), new NetworkRanker.Listener() {
+			@Override public void onRankingChanged(NetworkRanker r) {
+				updateTitleMsg(r.ranked());
+				pushUnderlyingNetworks();
 			}
+		});
+	}
+
+	// pushUnderlyingNetworks updates the underlying networks of the running
+	// VPN in place, so that handovers between Wi-Fi and cellular keep the
+	// metered status and connectivity seen by apps correct without
+	// rebuilding the TUN. It does nothing if they haven't changed.
+	private synchronized void pushUnderlyingNetworks() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			return;
+		}
+		Network[] networks = ranker.underlyingNetworks();
+		if (Arrays.equals(networks, underlying)) {
+			return;
 		}
-		if (!wifis.isEmpty()) {
-			titleMsg[0] = "WIFI网络";
-			titleMsg[1] = printNet(wifiInfos);
-			return wifis.toArray(new Network[0]);
-		} else if (networks.length > 0) {
-			titleMsg[0] = "流量网络";
-			titleMsg[1] = printNet(otherInfos);
-			return networks;
-		} else {
-			titleMsg[0] = "所有网络";
-			titleMsg[1]	= "无网络";
-			return null;
+		// setUnderlyingNetworks returns false when no VPN is established;
+		// the next newBuilder picks the networks up then.
+		if (setUnderlyingNetworks(networks)) {
+			underlying = networks;
 		}
 	}
 
-	private String printNet(List<String> networks) {
-		List<String> list = new ArrayList<>();
-		for (int i = 0; i < networks.size(); i++) {
-			list.add((i + 1) + "." + networks.get(i));
+	// updateTitleMsg describes the ranked networks in titleMsg.
+	private void updateTitleMsg(List<NetworkRanker.Candidate> ranked) {
+		List<NetworkRanker.Candidate> used = NetworkRanker.underlying(ranked);
+		((App)getApplicationContext()).controlStatus.setNetwork(used.isEmpty() ? null : used.get(0).label());
+		if (used.isEmpty()) {
+			titleMsg = new String[]{"所有网络", "无网络"};
+			return;
 		}
-		return String.join("\n", list);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < used.size(); i++) {
+			if (i > 0) {
+				sb.append('\n');
+			}
+			sb.append(i + 1).append('.').append(used.get(i));
+		}
+		titleMsg = new String[]{used.get(0).isWifi() ? "WIFI网络" : "流量网络", sb.toString()};
 	}
 
 	@Override public void onDestroy() {
+		ranker.unregister();
+		((App)getApplicationContext()).controlStatus.setNetwork(null);
 		close();
 		super.onDestroy();
 	}
@@ -101,14 +165,6 @@ public class IPNService extends VpnService {
 			PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
 	}
 
-	private void disallowApp(VpnService.Builder b, String name) {
-		try {
-			b.addDisallowedApplication(name);
-		} catch (PackageManager.NameNotFoundException e) {
-			return;
-		}
-	}
-
 	protected VpnService.Builder newBuilder() {
 		VpnService.Builder b = new VpnService.Builder()
 			.setConfigureIntent(configIntent())
@@ -116,54 +172,77 @@ public class IPNService extends VpnService {
 			.allowFamily(OsConstants.AF_INET6);
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
 			b.setMetered(false); // Inherit the metered status from the underlying networks.
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-			b.setUnderlyingNetworks(getWifiNetworkOrElse()); // Use all available networks.
-
-		// RCS/Jibe https://github.com/tailscale/tailscale/issues/2322
-		this.disallowApp(b, "com.google.android.apps.messaging");
-
-		// Stadia https://github.com/tailscale/tailscale/issues/3460
-		this.disallowApp(b, "com.google.stadia.android");
-
-		// Android Auto https://github.com/tailscale/tailscale/issues/3828
-		this.disallowApp(b, "com.google.android.projection.gearhead");
-
-		// GoPro https://github.com/tailscale/tailscale/issues/2554
-		this.disallowApp(b, "com.gopro.smarty");
-
-		// Sonos https://github.com/tailscale/tailscale/issues/2548
-		this.disallowApp(b, "com.sonos.acr");
-		this.disallowApp(b, "com.sonos.acr2");
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			// Use the best ranked networks. Later changes are pushed by
+			// pushUnderlyingNetworks without a rebuild.
+			Network[] networks = ranker.underlyingNetworks();
+			synchronized (this) {
+				underlying = networks;
+			}
+			b.setUnderlyingNetworks(networks);
+		}
 
-		// Google Chromecast https://github.com/tailscale/tailscale/issues/3636
-		this.disallowApp(b, "com.google.android.apps.chromecast.app");
+		// Apply the split tunnel policy, by default excluding the apps in
+		// SplitTunnelPolicy.DEFAULT_DISALLOWED.
+		((App)getApplicationContext()).splitTunnel.apply(b);
 
 		return b;
 	}
 
+	// establishFromConfig builds the VPN interface from a VpnConfig packed by
+	// the Go backend and establishes it, in one JNI call. It returns the
+	// detached TUN fd, or -1 if the VPN is not prepared.
+	public int establishFromConfig(byte[] packedConfig) {
+		VpnConfig cfg = VpnConfig.decode(packedConfig);
+		VpnService.Builder b = newBuilder();
+		cfg.apply(b);
+		ParcelFileDescriptor pfd = b.establish();
+		if (pfd == null) {
+			return -1;
+		}
+		return pfd.detachFd();
+	}
+
+	// notify is called by the backend to alert the user. Like status updates,
+	// repeated alerts are dropped and bursts are coalesced.
 	public void notify(String title, String message) {
-		NotificationCompat.Builder builder = new NotificationCompat.Builder(this, App.NOTIFY_CHANNEL_ID)
-			.setSmallIcon(R.drawable.ic_notification)
-			.setContentTitle(title)
-			.setContentText(message)
-			.setContentIntent(configIntent())
-			.setAutoCancel(true)
-			.setOnlyAlertOnce(true)
-			.setPriority(NotificationCompat.PRIORITY_DEFAULT);
+		alertDispatcher.update(title, message);
+	}
 
+	private void postAlertNotification(String title, String text) {
+		if (alertBuilder == null) {
+			alertBuilder = new NotificationCompat.Builder(this, ((App)getApplicationContext()).notificationChannel(App.NOTIFY_CHANNEL_ID))
+				.setSmallIcon(R.drawable.ic_notification)
+				.setContentIntent(configIntent())
+				.setAutoCancel(true)
+				.setOnlyAlertOnce(true)
+				.setPriority(NotificationCompat.PRIORITY_DEFAULT);
+		}
+		alertBuilder.setContentTitle(title).setContentText(text);
 		NotificationManagerCompat nm = NotificationManagerCompat.from(this);
-		nm.notify(App.NOTIFY_NOTIFICATION_ID, builder.build());
+		nm.notify(App.NOTIFY_NOTIFICATION_ID, alertBuilder.build());
 	}
 
+	// updateStatusNotification is called by the backend on every state
+	// change. Identical updates are dropped and bursts are coalesced, see
+	// NotificationDispatcher.
 	public void updateStatusNotification(String title, String message) {
-		NotificationCompat.Builder builder = new NotificationCompat.Builder(this, App.STATUS_CHANNEL_ID)
-			.setSmallIcon(R.drawable.ic_notification)
-			.setContentTitle(title + ("Connected".equals(title) ? "  " + titleMsg[0] : ""))
-			.setContentText(message == null || message.isEmpty() ? titleMsg[1] : message)
-			.setContentIntent(configIntent())
-			.setPriority(NotificationCompat.PRIORITY_LOW);
-
-		startForeground(App.STATUS_NOTIFICATION_ID, builder.build());
+		String[] msg = titleMsg;
+		statusDispatcher.update(
+			title + ("Connected".equals(title) ? "  " + msg[0] : ""),
+			message == null || message.isEmpty() ? msg[1] : message);
+	}
+
+	private void postStatusNotification(String title, String text) {
+		if (statusBuilder == null) {
+			statusBuilder = new NotificationCompat.Builder(this, ((App)getApplicationContext()).notificationChannel(App.STATUS_CHANNEL_ID))
+				.setSmallIcon(R.drawable.ic_notification)
+				.setContentIntent(configIntent())
+				.setOnlyAlertOnce(true)
+				.setPriority(NotificationCompat.PRIORITY_LOW);
+		}
+		statusBuilder.setContentTitle(title).setContentText(text);
+		startForeground(App.STATUS_NOTIFICATION_ID, statusBuilder.build());
 	}
 
 	private native void connect();
@@ -0,0 +1,242 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// MediaReceiver stores the files of a Taildrop receive in shared storage in
+// batches: reserve creates the targets of all files of a receive, the Go
+// backend writes them through App.openUri, and publish makes the written ones
+// visible to other apps at once.
+//
+// On Android Q and later, the targets are MediaStore entries inserted with
+// IS_PENDING set, in a single applyBatch, so that scanners and galleries
+// don't pick up half written files; publish clears IS_PENDING in another.
+// Before Q there is no IS_PENDING, so the files are written to a private
+// staging directory on the same volume as Downloads and publish renames them
+// into Downloads, which is atomic, and scans them in one request.
+//
+// Writes are resumable: the progress of every target is kept in
+// PartialReceives, reserve hands out the existing target of a file whose
+// write was interrupted, and openAt reopens it at the verified offset.
+final class MediaReceiver {
+	private static final String STAGING_DIR = "taildrop-staging";
+
+	private final Context ctx;
+	private final PartialReceives partials;
+
+	MediaReceiver(Context ctx) {
+		this.ctx = ctx;
+		this.partials = new PartialReceives(ctx);
+	}
+
+	// reserve returns a pending target for every file, the target of an
+	// interrupted write of the file with the same key if it still exists or
+	// a new one. mimeTypes entries may be empty.
+	String[] reserve(String[] names, String[] mimeTypes, String[] keys) throws IOException {
+		List<String> stale = partials.sweep(System.currentTimeMillis());
+		if (!stale.isEmpty()) {
+			abandon(stale.toArray(new String[0]));
+		}
+		String[] uris = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			PartialReceives.Record r = partials.get(keys[i]);
+			if (r != null && size(r.uri) >= 0) {
+				uris[i] = r.uri;
+			}
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			Uri root = MediaStore.Files.getContentUri("external");
+			ArrayList<ContentProviderOperation> ops = new ArrayList<>(names.length);
+			List<Integer> inserted = new ArrayList<>(names.length);
+			for (int i = 0; i < names.length; i++) {
+				if (uris[i] != null) {
+					continue;
+				}
+				ContentValues values = new ContentValues();
+				values.put(MediaStore.MediaColumns.DISPLAY_NAME, names[i]);
+				if (mimeTypes[i] != null && !"".equals(mimeTypes[i])) {
+					values.put(MediaStore.MediaColumns.MIME_TYPE, mimeTypes[i]);
+				}
+				values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+				ops.add(ContentProviderOperation.newInsert(root).withValues(values).build());
+				inserted.add(i);
+			}
+			if (!ops.isEmpty()) {
+				ContentProviderResult[] results = applyBatch(ops);
+				for (int j = 0; j < results.length; j++) {
+					int i = inserted.get(j);
+					uris[i] = results[j].uri.toString();
+					partials.start(keys[i], uris[i]);
+				}
+			}
+		} else {
+			File dir = stagingDir();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("cannot create " + dir);
+			}
+			for (int i = 0; i < names.length; i++) {
+				if (uris[i] == null) {
+					uris[i] = Uri.fromFile(new File(dir, names[i])).toString();
+					partials.start(keys[i], uris[i]);
+				}
+			}
+		}
+		return uris;
+	}
+
+	// resumeOffset returns the offset to resume writing the file with key
+	// at: the committed offset of its interrupted write, if the target still
+	// holds that many bytes, or 0.
+	long resumeOffset(String key) {
+		PartialReceives.Record r = partials.get(key);
+		if (r == null || r.offset == 0) {
+			return 0;
+		}
+		long off = PartialReceives.verifiedOffset(r.offset, size(r.uri));
+		if (off != r.offset) {
+			partials.commit(key, off);
+		}
+		return off;
+	}
+
+	// commit records that the first offset bytes of the file with key are
+	// durably written.
+	void commit(String key, long offset) {
+		partials.commit(key, offset);
+	}
+
+	// openAt opens the target uri for writing at offset, truncating anything
+	// written past it, and returns the detached file descriptor.
+	int openAt(String uri, long offset) throws IOException {
+		ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(Uri.parse(uri), "rw");
+		if (pfd == null) {
+			throw new FileNotFoundException(uri);
+		}
+		try {
+			FileDescriptor fd = pfd.getFileDescriptor();
+			Os.ftruncate(fd, offset);
+			Os.lseek(fd, offset, OsConstants.SEEK_SET);
+		} catch (ErrnoException e) {
+			pfd.close();
+			throw new IOException("openAt " + uri + ": " + e, e);
+		}
+		return pfd.detachFd();
+	}
+
+	// size returns the size of the target uri, or -1 if it doesn't exist.
+	private long size(String uri) {
+		try (ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(Uri.parse(uri), "r")) {
+			return pfd == null ? -1 : pfd.getStatSize();
+		} catch (IOException | SecurityException | IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	// publish makes the files at the reserved uris visible and returns their
+	// final URIs, which differ from the reserved ones before Q.
+	//
+	// Before Q the files are moved one by one, and a file that can't be
+	// moved has a null entry in the result. It stays staged, and its record
+	// in PartialReceives is kept, so that the next receive of the file finds
+	// it complete and publishes it again.
+	String[] publish(String[] uris, String[] mimeTypes) throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<>(uris.length);
+			for (String uri : uris) {
+				ops.add(ContentProviderOperation.newUpdate(Uri.parse(uri))
+					.withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+					.build());
+			}
+			applyBatch(ops);
+			partials.finish(uris);
+			return uris;
+		}
+		File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+		downloads.mkdirs();
+		String[] published = new String[uris.length];
+		List<String> moved = new ArrayList<>(uris.length);
+		List<String> paths = new ArrayList<>(uris.length);
+		List<String> scanTypes = new ArrayList<>(uris.length);
+		for (int i = 0; i < uris.length; i++) {
+			File staged = new File(Uri.parse(uris[i]).getPath());
+			File dst = new File(downloads, staged.getName());
+			if (!staged.renameTo(dst)) {
+				android.util.Log.w("MediaReceiver", "cannot move " + staged + " to " + dst);
+				continue;
+			}
+			published[i] = Uri.fromFile(dst).toString();
+			moved.add(uris[i]);
+			paths.add(dst.getPath());
+			scanTypes.add("".equals(mimeTypes[i]) ? null : mimeTypes[i]);
+		}
+		if (moved.isEmpty()) {
+			throw new IOException("cannot move any of " + uris.length + " files to " + downloads);
+		}
+		MediaScannerConnection.scanFile(ctx, paths.toArray(new String[0]), scanTypes.toArray(new String[0]), null);
+		partials.finish(moved.toArray(new String[0]));
+		return published;
+	}
+
+	// abandon deletes the targets at the reserved uris.
+	void abandon(String[] uris) {
+		partials.finish(uris);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<>(uris.length);
+			for (String uri : uris) {
+				ops.add(ContentProviderOperation.newDelete(Uri.parse(uri)).build());
+			}
+			try {
+				applyBatch(ops);
+			} catch (IOException e) {
+				android.util.Log.w("MediaReceiver", "abandon: " + e);
+			}
+			return;
+		}
+		for (int i = 0; i < uris.length; i++) {
+			new File(Uri.parse(uris[i]).getPath()).delete();
+		}
+	}
+
+	private File stagingDir() throws IOException {
+		File ext = ctx.getExternalFilesDir(null);
+		if (ext == null) {
+			throw new IOException("external storage not available");
+		}
+		return new File(ext, STAGING_DIR);
+	}
+
+	private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) throws IOException {
+		ContentResolver resolver = ctx.getContentResolver();
+		try {
+			return resolver.applyBatch(MediaStore.AUTHORITY, ops);
+		} catch (RemoteException | OperationApplicationException e) {
+			throw new IOException("MediaStore batch: " + e, e);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// NetInterfaces reads the network interfaces of the device and encodes them for
+// the Go netmon, which turns them into net.Interface values.
+//
+// The binary encoding is written into a reusable direct ByteBuffer. All integers
+// are big endian:
+//
+// int32 total length of the encoding in bytes, including this field
+// int16 number of interfaces, then for each:
+//   int16 name length, UTF-8 name
+//   int32 index
+//   int32 mtu
+//   int8  flags, a combination of the FLAG_ constants
+//   int16 number of addresses, then for each:
+//     int8 address length (4 or 16), raw address bytes
+//     int8 prefix length
+// int16 number of removed interfaces, then for each:
+//   int16 name length, UTF-8 name
+//
+// A full snapshot lists every interface and no removed ones. A delta, produced
+// by encodeDelta, lists only the added and changed interfaces since the
+// previous generation plus the names of the removed ones.
+//
+// refresh keeps the last snapshot and bumps a generation counter only when the
+// interface set differs from it, so that callers can skip all work when the
+// generation is unchanged, which is the common case for link property
+// callbacks on cellular.
+//
+// format produces the older string encoding for compatibility, see
+// App.getInterfacesAsString.
+final class NetInterfaces {
+	static final int FLAG_UP = 1 << 0;
+	static final int FLAG_BROADCAST = 1 << 1;
+	static final int FLAG_LOOPBACK = 1 << 2;
+	static final int FLAG_POINT_TO_POINT = 1 << 3;
+	static final int FLAG_MULTICAST = 1 << 4;
+
+	// Iface is the part of a NetworkInterface the Go side cares about.
+	static final class Iface {
+		final String name;
+		final int index;
+		final int mtu;
+		final int flags;
+		final List<Addr> addrs;
+
+		Iface(String name, int index, int mtu, int flags, List<Addr> addrs) {
+			this.name = name;
+			this.index = index;
+			this.mtu = mtu;
+			this.flags = flags;
+			this.addrs = addrs;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Iface)) {
+				return false;
+			}
+			Iface other = (Iface) o;
+			return name.equals(other.name) && index == other.index && mtu == other.mtu &&
+				flags == other.flags && addrs.equals(other.addrs);
+		}
+
+		@Override public int hashCode() {
+			return name.hashCode() * 31 + index;
+		}
+	}
+
+	// Addr is an interface address and its prefix length.
+	static final class Addr {
+		final byte[] ip;
+		final int prefixLen;
+
+		Addr(byte[] ip, int prefixLen) {
+			this.ip = ip;
+			this.prefixLen = prefixLen;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Addr)) {
+				return false;
+			}
+			Addr other = (Addr) o;
+			return prefixLen == other.prefixLen && Arrays.equals(ip, other.ip);
+		}
+
+		@Override public int hashCode() {
+			return Arrays.hashCode(ip) * 31 + prefixLen;
+		}
+	}
+
+	// Diff is the difference between two snapshots, by interface name.
+	static final class Diff {
+		final List<Iface> added = new ArrayList<>();
+		final List<Iface> changed = new ArrayList<>();
+		final List<String> removed = new ArrayList<>();
+
+		boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	private ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+
+	// last is the snapshot taken by the latest refresh. Guarded by this.
+	private List<Iface> last = Collections.emptyList();
+	// lastDiff is the difference between last and the snapshot before it.
+	// Guarded by this.
+	private Diff lastDiff = new Diff();
+	// generation is bumped by refresh whenever last changes. Guarded by this.
+	private long generation;
+
+	// refresh takes a new snapshot of the interfaces and returns the
+	// generation, which is unchanged if the snapshot equals the previous one.
+	long refresh() {
+		return update(read());
+	}
+
+	// update is refresh with the snapshot supplied by the caller.
+	synchronized long update(List<Iface> ifaces) {
+		Diff d = diff(last, ifaces);
+		if (!d.isEmpty()) {
+			last = ifaces;
+			lastDiff = d;
+			generation++;
+		}
+		return generation;
+	}
+
+	synchronized long generation() {
+		return generation;
+	}
+
+	// encodeSnapshot encodes the snapshot taken by the latest refresh, see encode.
+	synchronized ByteBuffer encodeSnapshot() {
+		return encode(last, Collections.<String>emptyList());
+	}
+
+	// encodeDelta encodes the changes from generation since to the current
+	// one, see encode. It returns null if since is not the previous
+	// generation, in which case the caller needs a full snapshot.
+	synchronized ByteBuffer encodeDelta(long since) {
+		if (since != generation - 1) {
+			return null;
+		}
+		List<Iface> upserts = new ArrayList<>(lastDiff.added);
+		upserts.addAll(lastDiff.changed);
+		return encode(upserts, lastDiff.removed);
+	}
+
+	// diff returns the changes from old to cur.
+	static Diff diff(List<Iface> old, List<Iface> cur) {
+		Map<String, Iface> prev = new HashMap<>();
+		for (Iface iface : old) {
+			prev.put(iface.name, iface);
+		}
+		Diff d = new Diff();
+		for (Iface iface : cur) {
+			Iface p = prev.remove(iface.name);
+			if (p == null) {
+				d.added.add(iface);
+			} else if (!p.equals(iface)) {
+				d.changed.add(iface);
+			}
+		}
+		d.removed.addAll(prev.keySet());
+		return d;
+	}
+
+	// read returns the current interfaces of the device. Interfaces which
+	// cannot be queried are skipped.
+	static List<Iface> read() {
+		List<NetworkInterface> nifs;
+		try {
+			nifs = Collections.list(NetworkInterface.getNetworkInterfaces());
+		} catch (Exception e) {
+			return Collections.emptyList();
+		}
+
+		List<Iface> ifaces = new ArrayList<>(nifs.size());
+		for (NetworkInterface nif : nifs) {
+			try {
+				// Android doesn't have a supportsBroadcast() but the Go net.Interface wants
+				// one, so we say the interface has broadcast if it has multicast.
+				int flags = 0;
+				if (nif.isUp()) {
+					flags |= FLAG_UP;
+				}
+				if (nif.supportsMulticast()) {
+					flags |= FLAG_BROADCAST | FLAG_MULTICAST;
+				}
+				if (nif.isLoopback()) {
+					flags |= FLAG_LOOPBACK;
+				}
+				if (nif.isPointToPoint()) {
+					flags |= FLAG_POINT_TO_POINT;
+				}
+				List<InterfaceAddress> ias = nif.getInterfaceAddresses();
+				List<Addr> addrs = new ArrayList<>(ias.size());
+				for (InterfaceAddress ia : ias) {
+					if (ia.getAddress() == null) {
+						continue;
+					}
+					addrs.add(new Addr(ia.getAddress().getAddress(), ia.getNetworkPrefixLength()));
+				}
+				ifaces.add(new Iface(nif.getName(), nif.getIndex(), nif.getMTU(), flags, addrs));
+			} catch (Exception e) {
+				continue;
+			}
+		}
+		return ifaces;
+	}
+
+	// encode writes ifaces and the removed interface names into the reusable
+	// buffer, growing it if needed, and returns it with position 0 and limit at
+	// the end of the encoding. The returned buffer is only valid until the next
+	// call.
+	synchronized ByteBuffer encode(List<Iface> ifaces, List<String> removed) {
+		int size = 4 + 2 + 2;
+		List<byte[]> names = new ArrayList<>(ifaces.size());
+		for (Iface iface : ifaces) {
+			byte[] name = iface.name.getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			size += 2 + name.length + 4 + 4 + 1 + 2;
+			for (Addr addr : iface.addrs) {
+				size += 1 + addr.ip.length + 1;
+			}
+		}
+		List<byte[]> removedNames = new ArrayList<>(removed.size());
+		for (String r : removed) {
+			byte[] name = r.getBytes(StandardCharsets.UTF_8);
+			removedNames.add(name);
+			size += 2 + name.length;
+		}
+		if (buf.capacity() < size) {
+			buf = ByteBuffer.allocateDirect(Math.max(size, 2 * buf.capacity()));
+		}
+
+		buf.clear();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(size);
+		buf.putShort((short) ifaces.size());
+		for (int i = 0; i < ifaces.size(); i++) {
+			Iface iface = ifaces.get(i);
+			byte[] name = names.get(i);
+			buf.putShort((short) name.length);
+			buf.put(name);
+			buf.putInt(iface.index);
+			buf.putInt(iface.mtu);
+			buf.put((byte) iface.flags);
+			buf.putShort((short) iface.addrs.size());
+			for (Addr addr : iface.addrs) {
+				buf.put((byte) addr.ip.length);
+				buf.put(addr.ip);
+				buf.put((byte) addr.prefixLen);
+			}
+		}
+		buf.putShort((short) removedNames.size());
+		for (byte[] name : removedNames) {
+			buf.putShort((short) name.length);
+			buf.put(name);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	// decode is the inverse of encode. The removed interface names are added
+	// to removed if it is not null.
+	static List<Iface> decode(ByteBuffer b, List<String> removed) {
+		b = b.duplicate().order(ByteOrder.BIG_ENDIAN);
+		b.getInt();
+		int n = b.getShort() & 0xffff;
+		List<Iface> ifaces = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			byte[] name = new byte[b.getShort() & 0xffff];
+			b.get(name);
+			int index = b.getInt();
+			int mtu = b.getInt();
+			int flags = b.get() & 0xff;
+			int naddrs = b.getShort() & 0xffff;
+			List<Addr> addrs = new ArrayList<>(naddrs);
+			for (int j = 0; j < naddrs; j++) {
+				byte[] ip = new byte[b.get() & 0xff];
+				b.get(ip);
+				addrs.add(new Addr(ip, b.get() & 0xff));
+			}
+			ifaces.add(new Iface(new String(name, StandardCharsets.UTF_8), index, mtu, flags, addrs));
+		}
+		int nremoved = b.getShort() & 0xffff;
+		for (int i = 0; i < nremoved; i++) {
+			byte[] name = new byte[b.getShort() & 0xffff];
+			b.get(name);
+			if (removed != null) {
+				removed.add(new String(name, StandardCharsets.UTF_8));
+			}
+		}
+		return ifaces;
+	}
+
+	// format returns ifaces in the string form documented on
+	// App.getInterfacesAsString.
+	static String format(List<Iface> ifaces) {
+		StringBuilder sb = new StringBuilder();
+		for (Iface iface : ifaces) {
+			sb.append(iface.name).append(' ')
+				.append(iface.index).append(' ')
+				.append(iface.mtu).append(' ')
+				.append((iface.flags & FLAG_UP) != 0).append(' ')
+				.append((iface.flags & FLAG_BROADCAST) != 0).append(' ')
+				.append((iface.flags & FLAG_LOOPBACK) != 0).append(' ')
+				.append((iface.flags & FLAG_POINT_TO_POINT) != 0).append(' ')
+				.append((iface.flags & FLAG_MULTICAST) != 0).append(" |");
+			for (Addr addr : iface.addrs) {
+				sb.append(formatIP(addr.ip)).append('/').append(addr.prefixLen).append(' ');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// formatIP formats a raw 4 or 16 byte address without consulting
+	// InetAddress, which may attempt reverse lookups in toString.
+	static String formatIP(byte[] ip) {
+		StringBuilder sb = new StringBuilder();
+		if (ip.length == 4) {
+			for (int i = 0; i < 4; i++) {
+				if (i > 0) {
+					sb.append('.');
+				}
+				sb.append(ip[i] & 0xff);
+			}
+			return sb.toString();
+		}
+		for (int i = 0; i < ip.length; i += 2) {
+			if (i > 0) {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(((ip[i] & 0xff) << 8) | (ip[i + 1] & 0xff)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,294 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// NetworkRanker ranks the non-VPN networks of the device by their
+// NetworkCapabilities, to pick the underlying networks of the VPN.
+//
+// Networks are ordered by, in turn:
+// - whether they have INTERNET and are not behind a captive portal,
+// - whether the system VALIDATED them,
+// - whether they are NOT_METERED,
+// - transport, Ethernet before Wi-Fi before cellular, as in DnsConfig,
+// - the downstream bandwidth estimate, in powers of two so that small
+//   fluctuations don't reorder networks,
+// - signal strength, where the platform reports it, in SIGNAL_BUCKET_DBM
+//   steps for the same reason.
+//
+// The ranking is kept up to date by a NetworkCallback and recomputed only when
+// a callback changes a Network's Candidate, so underlyingNetworks is cheap
+// enough to call on every VPN rebuild.
+final class NetworkRanker {
+	// SIGNAL_BUCKET_DBM is the width of the signal strength buckets.
+	static final int SIGNAL_BUCKET_DBM = 10;
+
+	// Candidate is what the ranking looks at for one Network.
+	static final class Candidate {
+		final Network network;
+		// preferability is DnsConfig.getPreferabilityForCapabilities.
+		final int preferability;
+		final boolean internet;
+		final boolean validated;
+		final boolean captive;
+		final boolean notMetered;
+		// downKbps is the downstream bandwidth estimate, 0 if unknown.
+		final int downKbps;
+		// signal is the signal strength, Integer.MIN_VALUE if unknown.
+		final int signal;
+
+		Candidate(Network network, int preferability, boolean internet, boolean validated,
+				boolean captive, boolean notMetered, int downKbps, int signal) {
+			this.network = network;
+			this.preferability = preferability;
+			this.internet = internet;
+			this.validated = validated;
+			this.captive = captive;
+			this.notMetered = notMetered;
+			this.downKbps = downKbps;
+			this.signal = signal;
+		}
+
+		// from returns the Candidate for network, or null if it is a VPN.
+		static Candidate from(Network network, NetworkCapabilities nc) {
+			int pref = DnsConfig.getPreferabilityForCapabilities(nc);
+			if (pref < 0) {
+				return null;
+			}
+			int signal = Integer.MIN_VALUE;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+				signal = nc.getSignalStrength();
+			}
+			return new Candidate(network, pref,
+				nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+				nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+				nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL),
+				nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED),
+				nc.getLinkDownstreamBandwidthKbps(), signal);
+		}
+
+		boolean usable() {
+			return internet && !captive;
+		}
+
+		// tier is the part of the ranking that decides which networks are
+		// passed to the VPN, see underlying.
+		int tier() {
+			return (usable() ? 4 : 0) + (validated ? 2 : 0) + (notMetered ? 1 : 0);
+		}
+
+		boolean isWifi() {
+			return preferability == 1;
+		}
+
+		boolean sameAs(Candidate o) {
+			return preferability == o.preferability && internet == o.internet &&
+				validated == o.validated && captive == o.captive && notMetered == o.notMetered &&
+				bandwidthBucket(downKbps) == bandwidthBucket(o.downKbps) &&
+				signalBucket(signal) == signalBucket(o.signal);
+		}
+
+		@Override public String toString() {
+			StringBuilder sb = new StringBuilder(label());
+			if (downKbps > 0) {
+				sb.append(' ').append(downKbps).append("kbps");
+			}
+			if (signal != Integer.MIN_VALUE) {
+				sb.append(" signal ").append(signal);
+			}
+			return sb.toString();
+		}
+
+		// label describes the candidate without the estimates that change
+		// all the time, like "wifi validated metered".
+		String label() {
+			StringBuilder sb = new StringBuilder();
+			switch (preferability) {
+			case 0: sb.append("ethernet"); break;
+			case 1: sb.append("wifi"); break;
+			case 2: sb.append("cellular"); break;
+			default: sb.append("other");
+			}
+			if (validated) {
+				sb.append(" validated");
+			} else if (captive) {
+				sb.append(" captive");
+			} else if (!internet) {
+				sb.append(" no-internet");
+			}
+			if (!notMetered) {
+				sb.append(" metered");
+			}
+			return sb.toString();
+		}
+	}
+
+	// Listener is told about ranking changes, on the ConnectivityManager
+	// callback thread.
+	interface Listener {
+		void onRankingChanged(NetworkRanker ranker);
+	}
+
+	static final Comparator<Candidate> ORDER = new Comparator<Candidate>() {
+		@Override public int compare(Candidate a, Candidate b) {
+			if (a.tier() != b.tier()) {
+				return b.tier() - a.tier();
+			}
+			if (a.preferability != b.preferability) {
+				return a.preferability - b.preferability;
+			}
+			int ab = bandwidthBucket(a.downKbps), bb = bandwidthBucket(b.downKbps);
+			if (ab != bb) {
+				return bb - ab;
+			}
+			return Integer.compare(signalBucket(b.signal), signalBucket(a.signal));
+		}
+	};
+
+	// candidates holds the Candidate of every tracked Network. Guarded by this.
+	private final Map<Network, Candidate> candidates = new HashMap<>();
+	// ranked is candidates in ranking order. Guarded by this.
+	private List<Candidate> ranked = Collections.emptyList();
+	private ConnectivityManager.NetworkCallback callback;
+	private ConnectivityManager cMgr;
+
+	// register starts tracking the networks of cMgr. l is called whenever the
+	// ranking changes.
+	synchronized void register(ConnectivityManager cMgr, final Listener l) {
+		if (callback != null) {
+			return;
+		}
+		this.cMgr = cMgr;
+		callback = new ConnectivityManager.NetworkCallback() {
+			@Override
+			public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
+				super.onCapabilitiesChanged(network, nc);
+				if (update(network, Candidate.from(network, nc)) && l != null) {
+					l.onRankingChanged(NetworkRanker.this);
+				}
+			}
+
+			@Override
+			public void onLost(Network network) {
+				super.onLost(network);
+				if (update(network, null) && l != null) {
+					l.onRankingChanged(NetworkRanker.this);
+				}
+			}
+		};
+		cMgr.registerNetworkCallback(new NetworkRequest.Builder().build(), callback);
+	}
+
+	synchronized void unregister() {
+		if (callback == null) {
+			return;
+		}
+		try {
+			cMgr.unregisterNetworkCallback(callback);
+		} catch (IllegalArgumentException e) {
+			// Already unregistered.
+		}
+		callback = null;
+		candidates.clear();
+		ranked = Collections.emptyList();
+	}
+
+	// update sets the Candidate of network, removing it if c is null, and
+	// reports whether anything the ranking looks at changed.
+	synchronized boolean update(Network network, Candidate c) {
+		Candidate old = c == null ? candidates.remove(network) : candidates.put(network, c);
+		if (old == null ? c == null : c != null && old.sameAs(c)) {
+			return false;
+		}
+		ranked = rank(candidates.values());
+		return true;
+	}
+
+	// ranked returns the tracked networks in ranking order. If nothing has
+	// been reported by the callback yet, it ranks the current networks
+	// directly.
+	synchronized List<Candidate> ranked() {
+		if (candidates.isEmpty() && cMgr != null) {
+			List<Candidate> now = new ArrayList<>();
+			for (Network n : cMgr.getAllNetworks()) {
+				NetworkCapabilities nc = cMgr.getNetworkCapabilities(n);
+				Candidate c = nc == null ? null : Candidate.from(n, nc);
+				if (c != null) {
+					now.add(c);
+				}
+			}
+			return rank(now);
+		}
+		return ranked;
+	}
+
+	// underlyingNetworks returns the networks for
+	// VpnService.setUnderlyingNetworks, or null for the system default.
+	Network[] underlyingNetworks() {
+		List<Candidate> u = underlying(ranked());
+		if (u.isEmpty()) {
+			return null;
+		}
+		Network[] networks = new Network[u.size()];
+		for (int i = 0; i < u.size(); i++) {
+			networks[i] = u.get(i).network;
+		}
+		return networks;
+	}
+
+	// rank returns cs in ranking order.
+	static List<Candidate> rank(Collection<Candidate> cs) {
+		List<Candidate> sorted = new ArrayList<>(cs);
+		Collections.sort(sorted, ORDER);
+		return sorted;
+	}
+
+	// underlying returns the prefix of ranked in the same tier as the best
+	// network. A validated Wi-Fi thus hides cellular, which would otherwise
+	// make the VPN metered, and a captive or unvalidated network is used only
+	// when there is nothing better.
+	static List<Candidate> underlying(List<Candidate> ranked) {
+		if (ranked.isEmpty()) {
+			return ranked;
+		}
+		int tier = ranked.get(0).tier();
+		int n = 1;
+		while (n < ranked.size() && ranked.get(n).tier() == tier) {
+			n++;
+		}
+		return ranked.subList(0, n);
+	}
+
+	static int bandwidthBucket(int kbps) {
+		return kbps <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(kbps);
+	}
+
+	// signalBucket rounds signal down to a multiple of SIGNAL_BUCKET_DBM,
+	// keeping Integer.MIN_VALUE for unknown.
+	static int signalBucket(int signal) {
+		if (signal == Integer.MIN_VALUE) {
+			return signal;
+		}
+		// Math.floorDiv needs API 24.
+		int q = signal / SIGNAL_BUCKET_DBM;
+		if (signal % SIGNAL_BUCKET_DBM < 0) {
+			q--;
+		}
+		return q * SIGNAL_BUCKET_DBM;
+	}
+}
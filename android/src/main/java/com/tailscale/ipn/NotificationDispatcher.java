@@ -0,0 +1,123 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+// NotificationDispatcher sits between the Go backend and one notification,
+// whose every post is a binder transaction into system_server and often a
+// SystemUI redraw.
+//
+// update drops content identical to what is already shown, and posts at most
+// one update every minIntervalMs. Updates arriving faster than that replace each
+// other, and only the last one of a burst is posted once the interval has
+// passed.
+final class NotificationDispatcher {
+	// Poster shows a notification. It is called on the Scheduler's thread.
+	interface Poster {
+		void post(String title, String text);
+	}
+
+	private final Scheduler scheduler;
+	private final long minIntervalMs;
+	private final Poster poster;
+
+	// The fields below are guarded by this.
+	// postedTitle and postedText are the content last posted.
+	private String postedTitle;
+	private String postedText;
+	private long lastPost = Long.MIN_VALUE;
+	// hasPending is whether pendingTitle and pendingText await posting by
+	// a scheduled run.
+	private boolean hasPending;
+	private String pendingTitle;
+	private String pendingText;
+	// generation is incremented by reset, to cancel the scheduled run.
+	private long generation;
+	private long posted;
+	private long suppressed;
+
+	NotificationDispatcher(Scheduler scheduler, long minIntervalMs, Poster poster) {
+		this.scheduler = scheduler;
+		this.minIntervalMs = minIntervalMs;
+		this.poster = poster;
+	}
+
+	// update requests title and text to be shown.
+	void update(String title, String text) {
+		synchronized (this) {
+			if (hasPending) {
+				// A post is already scheduled; it will show the latest
+				// content, replacing what was pending.
+				pendingTitle = title;
+				pendingText = text;
+				suppressed++;
+				return;
+			}
+			if (equal(title, postedTitle) && equal(text, postedText)) {
+				suppressed++;
+				return;
+			}
+			hasPending = true;
+			pendingTitle = title;
+			pendingText = text;
+			long delay = 0;
+			if (lastPost != Long.MIN_VALUE) {
+				delay = Math.max(0, lastPost + minIntervalMs - scheduler.now());
+			}
+			final long gen = generation;
+			scheduler.schedule(new Runnable() {
+				@Override public void run() {
+					postPending(gen);
+				}
+			}, delay);
+		}
+	}
+
+	private void postPending(long gen) {
+		String title, text;
+		synchronized (this) {
+			if (gen != generation) {
+				// Cancelled by reset.
+				return;
+			}
+			hasPending = false;
+			if (equal(pendingTitle, postedTitle) && equal(pendingText, postedText)) {
+				// The burst ended where it started.
+				suppressed++;
+				return;
+			}
+			title = pendingTitle;
+			text = pendingText;
+			postedTitle = title;
+			postedText = text;
+			lastPost = scheduler.now();
+			posted++;
+		}
+		poster.post(title, text);
+	}
+
+	// reset forgets the posted content, so that the next update is posted
+	// even if identical, for example after the notification was removed. A
+	// pending post is dropped.
+	synchronized void reset() {
+		generation++;
+		hasPending = false;
+		pendingTitle = null;
+		pendingText = null;
+		postedTitle = null;
+		postedText = null;
+	}
+
+	synchronized long postedCount() {
+		return posted;
+	}
+
+	synchronized long suppressedCount() {
+		return suppressed;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
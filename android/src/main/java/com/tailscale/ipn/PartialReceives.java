@@ -0,0 +1,148 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// PartialReceives persists the progress of received files being written to
+// their MediaReceiver targets, so that a write interrupted by the process
+// being killed resumes where it stopped instead of starting over.
+//
+// Each received file, identified by a key chosen by the Go backend, maps to
+// its target URI and the committed offset, the number of bytes known to be
+// durably written. Records not updated for MAX_AGE_MS are abandoned.
+final class PartialReceives {
+	static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+	private static final String PREFS_NAME = "partial_receives";
+
+	// Record is the progress of a received file.
+	static final class Record {
+		final String uri;
+		final long offset;
+		final long updatedMs;
+
+		Record(String uri, long offset, long updatedMs) {
+			this.uri = uri;
+			this.offset = offset;
+			this.updatedMs = updatedMs;
+		}
+
+		// encode encodes the record as "offset:updatedMs:uri".
+		String encode() {
+			return offset + ":" + updatedMs + ":" + uri;
+		}
+
+		// decode decodes an encoded record, returning null if it is
+		// malformed.
+		static Record decode(String s) {
+			if (s == null) {
+				return null;
+			}
+			String[] parts = s.split(":", 3);
+			if (parts.length != 3 || parts[2].isEmpty()) {
+				return null;
+			}
+			try {
+				long offset = Long.parseLong(parts[0]);
+				long updated = Long.parseLong(parts[1]);
+				if (offset < 0) {
+					return null;
+				}
+				return new Record(parts[2], offset, updated);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		// isStale reports whether the record was last updated more than
+		// MAX_AGE_MS before now, or claims to be from the future.
+		boolean isStale(long now) {
+			return now - updatedMs > MAX_AGE_MS || updatedMs > now;
+		}
+	}
+
+	private final SharedPreferences prefs;
+
+	PartialReceives(Context ctx) {
+		this.prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	// get returns the record of key, or null.
+	synchronized Record get(String key) {
+		return Record.decode(prefs.getString(key, null));
+	}
+
+	// start records that key is received into uri, from offset 0.
+	synchronized void start(String key, String uri) {
+		put(key, new Record(uri, 0, System.currentTimeMillis()));
+	}
+
+	// commit records that the first offset bytes of key are durably written.
+	synchronized void commit(String key, long offset) {
+		Record r = get(key);
+		if (r == null) {
+			return;
+		}
+		put(key, new Record(r.uri, offset, System.currentTimeMillis()));
+	}
+
+	// finish removes the records of the targets uris.
+	synchronized void finish(String[] uris) {
+		SharedPreferences.Editor e = prefs.edit();
+		for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			Object v = entry.getValue();
+			Record r = v instanceof String ? Record.decode((String) v) : null;
+			if (r == null) {
+				e.remove(entry.getKey());
+				continue;
+			}
+			for (String uri : uris) {
+				if (r.uri.equals(uri)) {
+					e.remove(entry.getKey());
+					break;
+				}
+			}
+		}
+		e.apply();
+	}
+
+	// sweep removes the stale records and returns their target URIs.
+	synchronized List<String> sweep(long now) {
+		List<String> stale = new ArrayList<>();
+		SharedPreferences.Editor e = prefs.edit();
+		for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			Object v = entry.getValue();
+			Record r = v instanceof String ? Record.decode((String) v) : null;
+			if (r == null || r.isStale(now)) {
+				e.remove(entry.getKey());
+				if (r != null) {
+					stale.add(r.uri);
+				}
+			}
+		}
+		e.apply();
+		return stale;
+	}
+
+	// verifiedOffset returns the offset to resume a target at, given the
+	// committed offset and the actual size of the target, -1 if it no longer
+	// exists. A target shorter than the committed offset lost data and is
+	// rewritten from the start.
+	static long verifiedOffset(long committed, long actualSize) {
+		return actualSize >= committed ? committed : 0;
+	}
+
+	private void put(String key, Record r) {
+		// commit rather than apply, so that the progress survives the
+		// process being killed right after.
+		prefs.edit().putString(key, r.encode()).commit();
+	}
+}
@@ -7,42 +7,57 @@ package com.tailscale.ipn;
 import android.content.Context;
 import android.content.ComponentName;
 import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// QuickToggleService is the quick settings tile.
+//
+// The Go backend changes the tile state during every state transition, and
+// every Tile.updateTile is an IPC to SystemUI. The state is therefore a
+// TileState word changed with compare-and-set, and changes only schedule a
+// push on the main thread, which coalesces the changes since the last push
+// and skips it if the tile would look the same. A change of just the latency
+// in the subtitle is pushed at most every subtitleIntervalMs.
 public class QuickToggleService extends TileService {
-	// lock protects the static fields below it.
-	private static Object lock = new Object();
-	// Active tracks whether the VPN is active.
-	private static boolean active;
-	// Ready tracks whether the tailscale backend is
-	// ready to switch on/off.
-	private static boolean ready;
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// state is the TileState of the tile.
+	private static final AtomicInteger state = new AtomicInteger();
 	// currentTile tracks getQsTile while service is listening.
-	private static Tile currentTile;
+	private static final AtomicReference<Tile> currentTile = new AtomicReference<>();
+	// pushScheduled is whether a push is scheduled on the main thread.
+	private static final AtomicBoolean pushScheduled = new AtomicBoolean();
+
+	// The fields below are only accessed on the main thread.
+	// pushed is the visible TileState last pushed to currentTile, or -1.
+	private static int pushed = -1;
+	// subtitlePushedAt is the uptime the latency shown was last pushed at.
+	private static long subtitlePushedAt;
+	private static long subtitleIntervalMs = 5000;
 
 	@Override public void onStartListening() {
-		synchronized (lock) {
-			currentTile = getQsTile();
-		}
-		updateTile();
+		subtitleIntervalMs = getResources().getInteger(R.integer.tile_subtitle_interval_ms);
+		currentTile.set(getQsTile());
+		// The tile content is not kept while not listening.
+		pushed = -1;
+		push();
 	}
 
 	@Override public void onStopListening() {
-		synchronized (lock) {
-			currentTile = null;
-		}
+		currentTile.set(null);
 	}
 
 	@Override public void onClick() {
-		boolean r;
-		synchronized (lock) {
-			r = ready;
-		}
-		if (r) {
+		if ((state.get() & TileState.READY) != 0) {
+			// Ready is set by the Go backend, so it is loaded already.
 			onTileClick();
 		} else {
 			// Start main activity.
@@ -51,32 +66,97 @@ public class QuickToggleService extends TileService {
 		}
 	}
 
-	private static void updateTile() {
-		Tile t;
-		boolean act;
-		synchronized (lock) {
-			t = currentTile;
-			act = active && ready;
+	private static final Runnable scheduledPush = new Runnable() {
+		@Override public void run() {
+			pushScheduled.set(false);
+			push();
 		}
+	};
+
+	// delayedPush pushes a latency change held back by subtitleIntervalMs.
+	private static final Runnable delayedPush = new Runnable() {
+		@Override public void run() {
+			push();
+		}
+	};
+
+	// schedulePush schedules a push of the tile state, unless one is already
+	// scheduled.
+	private static void schedulePush() {
+		if (pushScheduled.compareAndSet(false, true)) {
+			mainHandler.post(scheduledPush);
+		}
+	}
+
+	// push updates the tile if its visible state changed. It runs on the main
+	// thread.
+	private static void push() {
+		Tile t = currentTile.get();
 		if (t == null) {
 			return;
 		}
-		t.setState(act ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+		int v = TileState.visible(state.get());
+		if (v == pushed) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		boolean latencyOnly = pushed != -1 && TileState.sameButLatency(v, pushed);
+		if (latencyOnly) {
+			long wait = subtitlePushedAt + subtitleIntervalMs - now;
+			if (wait > 0) {
+				mainHandler.removeCallbacks(delayedPush);
+				mainHandler.postDelayed(delayedPush, wait);
+				return;
+			}
+		}
+		if (TileState.latencyMs(v) != TileState.latencyMs(pushed)) {
+			subtitlePushedAt = now;
+		}
+		pushed = v;
+		t.setState(TileState.isOn(v) ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			t.setSubtitle(TileState.subtitle(v));
+		}
 		t.updateTile();
 	}
 
-	static void setReady(Context ctx, boolean rdy) {
-		synchronized (lock) {
-			ready = rdy;
+	// update sets flag in the state to on, scheduling a push if the state
+	// changed.
+	private static void update(int flag, boolean on) {
+		for (;;) {
+			int s = state.get();
+			int n = TileState.with(s, flag, on);
+			if (n == s) {
+				return;
+			}
+			if (state.compareAndSet(s, n)) {
+				break;
+			}
 		}
-		updateTile();
+		schedulePush();
+	}
+
+	static void setReady(Context ctx, boolean rdy) {
+		update(TileState.READY, rdy);
 	}
 
 	static void setStatus(Context ctx, boolean act) {
-		synchronized (lock) {
-			active = act;
+		update(TileState.ACTIVE, act);
+	}
+
+	// setLatency sets the latency shown in the subtitle, 0 if unknown.
+	static void setLatency(Context ctx, int ms) {
+		for (;;) {
+			int s = state.get();
+			int n = TileState.withLatency(s, ms);
+			if (n == s) {
+				return;
+			}
+			if (state.compareAndSet(s, n)) {
+				break;
+			}
 		}
-		updateTile();
+		schedulePush();
 	}
 
 	private static native void onTileClick();
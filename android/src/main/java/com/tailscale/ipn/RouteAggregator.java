@@ -0,0 +1,122 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// RouteAggregator reduces a set of routes to the smallest set of prefixes
+// covering exactly the same addresses, before they are handed to
+// VpnService.Builder.addRoute. netd installs every route separately, so
+// establish latency and the size of the kernel routing table grow with the
+// number of routes, which subnet routers can make large.
+//
+// Routes are inserted into a binary trie, one per address family, keyed by
+// the prefix bits. A prefix covered by an already inserted one is dropped, and
+// inserting a prefix drops the more specific ones below it. Then, bottom up, a
+// node whose two children are both routed is replaced by a route for the node
+// itself, which merges adjacent prefixes like 10.0.0.0/25 and 10.0.0.128/25
+// into 10.0.0.0/24. All routes point at the same interface, so this doesn't
+// change which packets are routed.
+final class RouteAggregator {
+	// Node is a trie node. A routed node covers its whole subtree and has no
+	// children.
+	private static final class Node {
+		Node zero, one;
+		boolean routed;
+	}
+
+	private final Node v4 = new Node();
+	private final Node v6 = new Node();
+
+	// add adds the route ip/bits, where ip is 4 or 16 bytes long. The bits
+	// of ip past the prefix length are ignored.
+	void add(byte[] ip, int bits) {
+		Node n = ip.length == 4 ? v4 : v6;
+		bits = Math.min(bits, ip.length * 8);
+		for (int i = 0; i < bits; i++) {
+			if (n.routed) {
+				return;
+			}
+			if (bit(ip, i) == 0) {
+				if (n.zero == null) {
+					n.zero = new Node();
+				}
+				n = n.zero;
+			} else {
+				if (n.one == null) {
+					n.one = new Node();
+				}
+				n = n.one;
+			}
+		}
+		n.routed = true;
+		n.zero = null;
+		n.one = null;
+	}
+
+	// result returns the aggregated routes, IPv4 first, each family in
+	// address order. Each entry is the address bytes, with the prefix bits
+	// past the length zeroed, and the prefix length.
+	List<Route> result() {
+		List<Route> out = new ArrayList<>();
+		merge(v4);
+		merge(v6);
+		collect(v4, new byte[4], 0, out);
+		collect(v6, new byte[16], 0, out);
+		return out;
+	}
+
+	// Route is an aggregated route.
+	static final class Route {
+		final byte[] ip;
+		final int bits;
+
+		Route(byte[] ip, int bits) {
+			this.ip = ip;
+			this.bits = bits;
+		}
+
+		@Override public String toString() {
+			return NetInterfaces.formatIP(ip) + "/" + bits;
+		}
+	}
+
+	// merge marks n routed if both its children end up routed, and reports
+	// whether n is routed.
+	private static boolean merge(Node n) {
+		if (n.routed) {
+			return true;
+		}
+		boolean zero = n.zero != null && merge(n.zero);
+		boolean one = n.one != null && merge(n.one);
+		if (zero && one) {
+			n.routed = true;
+			n.zero = null;
+			n.one = null;
+		}
+		return n.routed;
+	}
+
+	private static void collect(Node n, byte[] prefix, int depth, List<Route> out) {
+		if (n.routed) {
+			out.add(new Route(prefix.clone(), depth));
+			return;
+		}
+		if (n.zero != null) {
+			collect(n.zero, prefix, depth + 1, out);
+		}
+		if (n.one != null) {
+			int mask = 0x80 >> (depth % 8);
+			prefix[depth / 8] |= mask;
+			collect(n.one, prefix, depth + 1, out);
+			prefix[depth / 8] &= ~mask;
+		}
+	}
+
+	private static int bit(byte[] ip, int i) {
+		return (ip[i / 8] >> (7 - i % 8)) & 1;
+	}
+}
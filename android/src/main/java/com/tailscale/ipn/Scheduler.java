@@ -0,0 +1,29 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Scheduler abstracts the clock and delayed execution, so that tests don't
+// need a Looper.
+interface Scheduler {
+	long now();
+	void schedule(Runnable r, long delayMs);
+
+	// handler returns a Scheduler running on h, using the uptime clock like
+	// Handler does.
+	static Scheduler handler(final Handler h) {
+		return new Scheduler() {
+			@Override public long now() {
+				return SystemClock.uptimeMillis();
+			}
+
+			@Override public void schedule(Runnable r, long delayMs) {
+				h.postDelayed(r, delayMs);
+			}
+		};
+	}
+}
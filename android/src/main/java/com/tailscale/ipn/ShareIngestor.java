@@ -0,0 +1,208 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ShareIngestor resolves the items of a share intent off the UI thread and
+// pushes them to a share session of the Go backend in chunks of CHUNK_SIZE,
+// in intent order.
+//
+// The display name and size of shared URIs are queried on a pool of
+// RESOLVE_THREADS threads with a projection of just those two columns. The
+// first chunk is pushed as soon as its items are resolved, so that a transfer
+// can start while the rest of a share of thousands of files is still being
+// resolved. At most WINDOW items are resolved ahead of the last pushed chunk;
+// as Session.push blocks while the Go send queue is full, that bounds the
+// memory used by a share. A new share abandons the previous one.
+final class ShareIngestor {
+	static final int CHUNK_SIZE = 64;
+	static final int WINDOW = 2 * CHUNK_SIZE;
+	private static final int RESOLVE_THREADS = 4;
+
+	static final int TYPE_TEXT = 1; // FileTypeText
+	static final int TYPE_URI = 2; // FileTypeURI
+
+	private static final String[] PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+	// Item is a resolved share item.
+	static final class Item {
+		final int type;
+		final String mime;
+		// item is the text of a TYPE_TEXT item, the URI of a TYPE_URI one.
+		final String item;
+		final String name;
+		final long size;
+
+		Item(int type, String mime, String item, String name, long size) {
+			this.type = type;
+			this.mime = mime;
+			this.item = item;
+			this.name = name;
+			this.size = size;
+		}
+	}
+
+	// Session is the share session API of the Go backend.
+	interface Session {
+		// open opens the session of a new share, abandoning the
+		// previous one, and returns its id.
+		long open();
+		// push pushes a chunk of items, blocking while the backend
+		// can't queue more. It returns false if the session was
+		// abandoned.
+		boolean push(long session, List<Item> chunk);
+		// close marks the end of the items of the session.
+		void close(long session);
+	}
+
+	private final Session session;
+	private final ExecutorService pool = Executors.newFixedThreadPool(RESOLVE_THREADS);
+	// deliverer waits for resolved items in order and delivers them.
+	private final ExecutorService deliverer = Executors.newSingleThreadExecutor();
+	// share is the session id of the current share.
+	private final AtomicLong share = new AtomicLong();
+
+	ShareIngestor(Session session) {
+		this.session = session;
+	}
+
+	// ingest resolves and delivers the items of a share. Items whose text is
+	// non-null are shared as text, otherwise their URI is shared.
+	void ingest(final ContentResolver resolver, final String mime, Uri[] uris, String[] texts) {
+		List<Callable<Item>> tasks = new ArrayList<>(uris.length);
+		for (int i = 0; i < uris.length; i++) {
+			final String text = texts[i];
+			final Uri uri = uris[i];
+			if (text != null) {
+				// The size is determined by len(text) in Go to eliminate
+				// UTF-8 encoding differences.
+				tasks.add(constant(new Item(TYPE_TEXT, mime, text, "file.txt", 0)));
+			} else if (uri != null) {
+				tasks.add(new Callable<Item>() {
+					@Override public Item call() {
+						return resolveUri(resolver, mime, uri);
+					}
+				});
+			}
+		}
+		ingest(tasks);
+	}
+
+	// ingest opens a session and resolves tasks on the pool, a null result
+	// skipping the item, pushing the results to the session.
+	void ingest(final List<Callable<Item>> tasks) {
+		// Open the session on the calling thread so that a previous
+		// session blocked in push is abandoned right away.
+		final long id = session.open();
+		share.set(id);
+		deliverer.execute(new Runnable() {
+			@Override public void run() {
+				pushInOrder(id, tasks);
+			}
+		});
+	}
+
+	private void pushInOrder(long id, List<Callable<Item>> tasks) {
+		int n = tasks.size();
+		List<Future<Item>> results = new ArrayList<>(n);
+		for (int i = 0; i < Math.min(n, WINDOW); i++) {
+			results.add(pool.submit(tasks.get(i)));
+		}
+		List<Item> chunk = new ArrayList<>(CHUNK_SIZE);
+		for (int i = 0; i < n; i++) {
+			if (share.get() != id) {
+				// Superseded by a newer share.
+				cancel(results, i);
+				return;
+			}
+			Item item = null;
+			try {
+				item = results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel(results, i);
+				return;
+			} catch (ExecutionException e) {
+				android.util.Log.w("ShareIngestor", "resolving share item: " + e.getCause());
+			}
+			// Drop the reference to the result.
+			results.set(i, null);
+			if (i + WINDOW < n) {
+				results.add(pool.submit(tasks.get(i + WINDOW)));
+			}
+			if (item != null) {
+				chunk.add(item);
+			}
+			if (chunk.size() == CHUNK_SIZE) {
+				if (!session.push(id, chunk)) {
+					cancel(results, i + 1);
+					return;
+				}
+				chunk = new ArrayList<>(CHUNK_SIZE);
+			}
+		}
+		if (!chunk.isEmpty() && !session.push(id, chunk)) {
+			return;
+		}
+		session.close(id);
+	}
+
+	private static void cancel(List<Future<Item>> results, int from) {
+		for (int i = from; i < results.size(); i++) {
+			Future<Item> f = results.get(i);
+			if (f != null) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	// resolveUri queries the display name and size of uri, returning null if
+	// we have no permission to access it.
+	static Item resolveUri(ContentResolver resolver, String mime, Uri uri) {
+		Cursor c = resolver.query(uri, PROJECTION, null, null, null);
+		if (c == null) {
+			// Ignore files we have no permission to access.
+			return null;
+		}
+		try {
+			String name = null;
+			long size = 0;
+			if (c.moveToFirst()) {
+				int nameCol = c.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+				int sizeCol = c.getColumnIndex(OpenableColumns.SIZE);
+				if (nameCol >= 0) {
+					name = c.getString(nameCol);
+				}
+				if (sizeCol >= 0 && !c.isNull(sizeCol)) {
+					size = c.getLong(sizeCol);
+				}
+			}
+			return new Item(TYPE_URI, mime, uri.toString(), name, size);
+		} finally {
+			c.close();
+		}
+	}
+
+	private static Callable<Item> constant(final Item item) {
+		return new Callable<Item>() {
+			@Override public Item call() {
+				return item;
+			}
+		};
+	}
+}
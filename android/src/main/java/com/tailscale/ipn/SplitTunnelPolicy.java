@@ -0,0 +1,256 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.RestrictionsManager;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.net.VpnService;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// SplitTunnelPolicy decides which apps use the VPN.
+//
+// In MODE_DENY, the default, every app uses the VPN except DEFAULT_DISALLOWED
+// and the configured packages. In MODE_ALLOW only the configured packages use
+// it; if none of them is installed, only this app does, rather than letting
+// VpnService route every app. The configuration comes from the managed
+// configuration keys RESTRICTION_MODE and RESTRICTION_APPS, set by an MDM.
+// Without them the mode is MODE_DENY with no configured packages.
+//
+// VpnService.Builder throws NameNotFoundException for packages which are not
+// installed, so the packages are filtered by a cached lookup first. The
+// resolved list is kept until the configuration changes or a package is
+// added or removed, so apply costs no PackageManager calls on a TUN rebuild.
+// When such a change alters the resolved list, the TUN established with the
+// old one is out of date and the onChange given to registerReceivers runs.
+final class SplitTunnelPolicy {
+	static final String MODE_DENY = "deny";
+	static final String MODE_ALLOW = "allow";
+
+	static final String RESTRICTION_MODE = "SplitTunnelMode";
+	static final String RESTRICTION_APPS = "SplitTunnelApps";
+
+	// DEFAULT_DISALLOWED are apps known to break when routed through the VPN.
+	static final List<String> DEFAULT_DISALLOWED = Collections.unmodifiableList(Arrays.asList(
+		// RCS/Jibe https://github.com/tailscale/tailscale/issues/2322
+		"com.google.android.apps.messaging",
+		// Stadia https://github.com/tailscale/tailscale/issues/3460
+		"com.google.stadia.android",
+		// Android Auto https://github.com/tailscale/tailscale/issues/3828
+		"com.google.android.projection.gearhead",
+		// GoPro https://github.com/tailscale/tailscale/issues/2554
+		"com.gopro.smarty",
+		// Sonos https://github.com/tailscale/tailscale/issues/2548
+		"com.sonos.acr",
+		"com.sonos.acr2",
+		// Google Chromecast https://github.com/tailscale/tailscale/issues/3636
+		"com.google.android.apps.chromecast.app"
+	));
+
+	// Installed reports whether a package is installed.
+	interface Installed {
+		boolean isInstalled(String pkg);
+	}
+
+	private final Context ctx;
+
+	// installed caches the results of isInstalled by package. Guarded by this.
+	private final Map<String, Boolean> installed = new HashMap<>();
+	// resolved is the result of resolve for the current configuration, or
+	// null if it needs to be recomputed. Guarded by this.
+	private List<String> resolved;
+	// resolvedMode is the mode resolved was computed for. Guarded by this.
+	private String resolvedMode;
+
+	SplitTunnelPolicy(Context ctx) {
+		this.ctx = ctx;
+	}
+
+	// registerReceivers starts watching package installs and removals and
+	// managed configuration changes, running onChange on the main thread when
+	// they change the resolved policy. It must be called once, from
+	// App.onCreate.
+	void registerReceivers(final Runnable onChange) {
+		IntentFilter pkgs = new IntentFilter();
+		pkgs.addAction(Intent.ACTION_PACKAGE_ADDED);
+		pkgs.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		pkgs.addDataScheme("package");
+		ctx.registerReceiver(new BroadcastReceiver() {
+			@Override public void onReceive(Context context, Intent intent) {
+				Uri data = intent.getData();
+				if (refresh(data == null ? null : data.getSchemeSpecificPart(), true)) {
+					onChange.run();
+				}
+			}
+		}, pkgs);
+		ctx.registerReceiver(new BroadcastReceiver() {
+			@Override public void onReceive(Context context, Intent intent) {
+				if (refresh(null, false)) {
+					onChange.run();
+				}
+			}
+		}, new IntentFilter(Intent.ACTION_APPLICATION_RESTRICTIONS_CHANGED));
+	}
+
+	// refresh invalidates the resolved policy, and the cached lookup of pkg,
+	// or of every package if pkg is null, when packages is set. It reports
+	// whether the policy resolves differently now. A policy that was never
+	// resolved hasn't been applied, and doesn't count as changed.
+	synchronized boolean refresh(String pkg, boolean packages) {
+		String oldMode = resolvedMode;
+		List<String> old = resolved;
+		if (packages) {
+			invalidatePackage(pkg);
+		} else {
+			invalidate();
+		}
+		if (old == null) {
+			return false;
+		}
+		resolveLocked();
+		return !resolvedMode.equals(oldMode) || !resolved.equals(old);
+	}
+
+	// apply configures b with the policy.
+	void apply(VpnService.Builder b) {
+		String mode;
+		List<String> pkgs;
+		synchronized (this) {
+			resolveLocked();
+			mode = resolvedMode;
+			pkgs = resolved;
+		}
+		int allowed = 0;
+		for (String pkg : pkgs) {
+			try {
+				if (MODE_ALLOW.equals(mode)) {
+					b.addAllowedApplication(pkg);
+					allowed++;
+				} else {
+					b.addDisallowedApplication(pkg);
+				}
+			} catch (PackageManager.NameNotFoundException e) {
+				// Removed since it was resolved; the broadcast will
+				// invalidate the cache.
+				invalidatePackage(pkg);
+			}
+		}
+		if (MODE_ALLOW.equals(mode) && allowed == 0) {
+			// Every allowed package went away; an empty allow list
+			// would route all apps.
+			try {
+				b.addAllowedApplication(ctx.getPackageName());
+			} catch (PackageManager.NameNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	synchronized void invalidate() {
+		resolved = null;
+	}
+
+	// invalidatePackage forgets what is known about pkg, or about every
+	// package if pkg is null.
+	synchronized void invalidatePackage(String pkg) {
+		if (pkg == null) {
+			installed.clear();
+		} else {
+			installed.remove(pkg);
+		}
+		resolved = null;
+	}
+
+	private void resolveLocked() {
+		if (resolved != null) {
+			return;
+		}
+		String mode = MODE_DENY;
+		Collection<String> configured = Collections.emptyList();
+		Bundle restrictions = managedRestrictions();
+		if (restrictions != null && restrictions.containsKey(RESTRICTION_MODE)) {
+			mode = restrictions.getString(RESTRICTION_MODE);
+			configured = parsePackages(restrictions.getString(RESTRICTION_APPS));
+		}
+		if (!MODE_ALLOW.equals(mode)) {
+			mode = MODE_DENY;
+		}
+		resolvedMode = mode;
+		resolved = resolve(mode, configured, ctx.getPackageName(), new Installed() {
+			@Override public boolean isInstalled(String pkg) {
+				return isInstalledLocked(pkg);
+			}
+		});
+	}
+
+	// resolve returns the installed packages the policy applies to. In
+	// MODE_ALLOW with none of them installed, it returns self, the package
+	// of this app.
+	static List<String> resolve(String mode, Collection<String> configured, String self, Installed installed) {
+		Set<String> all = new LinkedHashSet<>();
+		if (!MODE_ALLOW.equals(mode)) {
+			all.addAll(DEFAULT_DISALLOWED);
+		}
+		all.addAll(configured);
+		List<String> pkgs = new ArrayList<>(all.size());
+		for (String pkg : all) {
+			if (installed.isInstalled(pkg)) {
+				pkgs.add(pkg);
+			}
+		}
+		if (MODE_ALLOW.equals(mode) && pkgs.isEmpty()) {
+			pkgs.add(self);
+		}
+		return Collections.unmodifiableList(pkgs);
+	}
+
+	// parsePackages splits a list of packages separated by whitespace or
+	// commas.
+	static List<String> parsePackages(String s) {
+		List<String> pkgs = new ArrayList<>();
+		if (s == null) {
+			return pkgs;
+		}
+		for (String pkg : s.split("[\\s,]+")) {
+			if (!pkg.isEmpty()) {
+				pkgs.add(pkg);
+			}
+		}
+		return pkgs;
+	}
+
+	private boolean isInstalledLocked(String pkg) {
+		Boolean ok = installed.get(pkg);
+		if (ok == null) {
+			try {
+				ctx.getPackageManager().getPackageInfo(pkg, 0);
+				ok = true;
+			} catch (PackageManager.NameNotFoundException e) {
+				ok = false;
+			}
+			installed.put(pkg, ok);
+		}
+		return ok;
+	}
+
+	private Bundle managedRestrictions() {
+		RestrictionsManager rm = (RestrictionsManager) ctx.getSystemService(Context.RESTRICTIONS_SERVICE);
+		return rm == null ? null : rm.getApplicationRestrictions();
+	}
+}
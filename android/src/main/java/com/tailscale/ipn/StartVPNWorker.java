@@ -4,6 +4,7 @@
 
 package com.tailscale.ipn;
 
+import androidx.work.ForegroundInfo;
 import androidx.work.Worker;
 import android.content.Context;
 import androidx.work.WorkerParameters;
@@ -14,6 +15,8 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.os.Build;
+import android.os.SystemClock;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public final class StartVPNWorker extends Worker {
 
@@ -26,6 +29,12 @@ public final class StartVPNWorker extends Worker {
     @Override public Result doWork() {
         // We will start the VPN from the background
         App app = ((App)getApplicationContext());
+        if (App.STATE_RUNNING.equals(app.controlStatus.get().state)) {
+            // Already connected; there is nothing to measure.
+            app.controlLatency.cancel();
+        } else {
+            app.controlLatency.started(SystemClock.elapsedRealtime());
+        }
         app.autoConnect = true;
         // We need to make sure we prepare the VPN Service, just in case it isn't prepared.
 
@@ -59,7 +68,12 @@ public final class StartVPNWorker extends Worker {
 
             notificationManager.notify(1, notification);
 
+            app.controlLatency.cancel();
             return Result.failure();
         }
     }
+
+    @Override public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        return VPNControlWork.foregroundInfo(getApplicationContext(), "Connecting");
+    }
 }
\ No newline at end of file
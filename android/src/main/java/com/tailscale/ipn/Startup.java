@@ -0,0 +1,266 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+// Startup runs the phases of the application start on a background
+// executor, so that App.onCreate returns at once and the components the
+// process was started for, such as the quick settings tile or a broadcast
+// receiver, are served while the Go library still loads.
+//
+// Phases run in parallel unless one depends on another, in which case it
+// starts when all of its dependencies finished. Work that needs a phase
+// done either waits for it with await, or queues behind it with whenDone.
+// The start and duration of every phase are recorded for trace.
+final class Startup {
+	private final Executor executor;
+	private final Scheduler clock;
+
+	// The fields below are guarded by this.
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+	private long startedAt = -1;
+	private int pending;
+	private Runnable finished;
+
+	private final class Phase {
+		final String name;
+		final Runnable task;
+		final String[] deps;
+		// waiting is the number of unfinished dependencies.
+		int waiting;
+		// callbacks queued by whenDone, run in order once task is done.
+		final List<Runnable> callbacks = new ArrayList<>();
+		long start = -1;
+		long end = -1;
+		boolean done;
+		Throwable failure;
+
+		Phase(String name, Runnable task, String[] deps) {
+			this.name = name;
+			this.task = task;
+			this.deps = deps;
+			this.waiting = deps.length;
+		}
+
+		void run() {
+			synchronized (Startup.this) {
+				start = clock.now();
+			}
+			Throwable err = null;
+			try {
+				task.run();
+			} catch (RuntimeException | Error e) {
+				err = e;
+			}
+			finish(this, err);
+			if (err instanceof RuntimeException) {
+				throw (RuntimeException) err;
+			} else if (err != null) {
+				throw (Error) err;
+			}
+		}
+	}
+
+	Startup(Executor executor, Scheduler clock) {
+		this.executor = executor;
+		this.clock = clock;
+	}
+
+	// phase adds a phase that runs task after the phases named by deps,
+	// which must have been added before. It must be called before start.
+	synchronized void phase(String name, Runnable task, String... deps) {
+		if (startedAt != -1) {
+			throw new IllegalStateException("phase " + name + " added after start");
+		}
+		if (phases.containsKey(name)) {
+			throw new IllegalArgumentException("duplicate phase " + name);
+		}
+		for (String d : deps) {
+			if (!phases.containsKey(d)) {
+				throw new IllegalArgumentException("phase " + name + " depends on unknown phase " + d);
+			}
+		}
+		phases.put(name, new Phase(name, task, deps));
+	}
+
+	// start runs the phases. finished, if not null, runs after the last one.
+	void start(Runnable finished) {
+		List<Phase> ready = new ArrayList<>();
+		synchronized (this) {
+			if (startedAt != -1) {
+				throw new IllegalStateException("already started");
+			}
+			startedAt = clock.now();
+			this.finished = finished;
+			pending = phases.size();
+			for (Phase p : phases.values()) {
+				if (p.waiting == 0) {
+					ready.add(p);
+				}
+			}
+		}
+		if (ready.isEmpty() && finished != null) {
+			finished.run();
+		}
+		submit(ready);
+	}
+
+	private void submit(List<Phase> ready) {
+		for (final Phase p : ready) {
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					p.run();
+				}
+			});
+		}
+	}
+
+	// finish marks p done after running its callbacks, and submits the
+	// phases that were waiting only for p. A failed phase fails its
+	// dependents without running them.
+	private void finish(Phase p, Throwable err) {
+		List<Phase> ready = new ArrayList<>();
+		List<Phase> failed = new ArrayList<>();
+		synchronized (this) {
+			p.end = clock.now();
+			p.failure = err;
+		}
+		drain(p);
+		boolean last;
+		synchronized (this) {
+			for (Phase q : phases.values()) {
+				if (!dependsOn(q, p.name)) {
+					continue;
+				}
+				if (err != null) {
+					if (q.failure == null && q.start == -1) {
+						q.failure = new IllegalStateException("dependency " + p.name + " failed", err);
+						failed.add(q);
+					}
+				} else if (--q.waiting == 0 && q.failure == null) {
+					ready.add(q);
+				}
+			}
+			pending--;
+			last = pending == 0;
+		}
+		for (Phase q : failed) {
+			synchronized (this) {
+				q.start = q.end = clock.now();
+			}
+			finish(q, q.failure);
+		}
+		submit(ready);
+		if (last && finished != null) {
+			finished.run();
+		}
+	}
+
+	// drain runs the callbacks of p until none are left, then marks it
+	// done, so that callbacks run in the order they were queued.
+	private void drain(Phase p) {
+		for (;;) {
+			List<Runnable> cbs;
+			synchronized (this) {
+				if (p.callbacks.isEmpty()) {
+					p.done = true;
+					notifyAll();
+					return;
+				}
+				cbs = new ArrayList<>(p.callbacks);
+				p.callbacks.clear();
+			}
+			for (Runnable r : cbs) {
+				try {
+					r.run();
+				} catch (RuntimeException e) {
+					android.util.Log.e("Startup", "after " + p.name + ": " + e);
+				}
+			}
+		}
+	}
+
+	private static boolean dependsOn(Phase q, String name) {
+		for (String d : q.deps) {
+			if (d.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Phase get(String name) {
+		Phase p = phases.get(name);
+		if (p == null) {
+			throw new IllegalArgumentException("unknown phase " + name);
+		}
+		return p;
+	}
+
+	// isDone reports whether the phase name finished, successfully or not.
+	synchronized boolean isDone(String name) {
+		return get(name).done;
+	}
+
+	// await blocks until the phase name finished. It returns false if the
+	// phase failed.
+	synchronized boolean await(String name) throws InterruptedException {
+		Phase p = get(name);
+		while (!p.done) {
+			wait();
+		}
+		return p.failure == null;
+	}
+
+	// whenDone runs r once the phase name finished, successfully or not:
+	// at once on the calling thread if it already has, or otherwise on the
+	// thread that finished it. Callbacks of a phase run in the order they
+	// were queued.
+	void whenDone(String name, Runnable r) {
+		synchronized (this) {
+			Phase p = get(name);
+			if (!p.done) {
+				p.callbacks.add(r);
+				return;
+			}
+		}
+		r.run();
+	}
+
+	// trace describes the start and duration of every phase in
+	// milliseconds, relative to start, like "go 0+180ms, dns 0+4ms,
+	// network 180+3ms (of 183ms)". Unfinished phases are marked as such.
+	synchronized String trace() {
+		StringBuilder sb = new StringBuilder();
+		long end = startedAt;
+		for (Phase p : phases.values()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(p.name).append(' ');
+			if (p.start == -1) {
+				sb.append("pending");
+				continue;
+			}
+			sb.append(p.start - startedAt).append('+');
+			if (p.end == -1) {
+				sb.append("running");
+				continue;
+			}
+			sb.append(p.end - p.start).append("ms");
+			if (p.failure != null) {
+				sb.append(" failed");
+			}
+			end = Math.max(end, p.end);
+		}
+		sb.append(" (of ").append(end - startedAt).append("ms)");
+		return sb.toString();
+	}
+}
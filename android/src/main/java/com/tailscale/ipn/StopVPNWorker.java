@@ -4,9 +4,11 @@
 
 package com.tailscale.ipn;
 
+import androidx.work.ForegroundInfo;
 import androidx.work.Worker;
 import android.content.Context;
 import androidx.work.WorkerParameters;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public final class StopVPNWorker extends Worker {
 
@@ -17,9 +19,15 @@ public final class StopVPNWorker extends Worker {
     }
 
     @Override public Result doWork() {
+        // The worker may run before the Go library is loaded.
+        ((App)getApplicationContext()).awaitGo();
         disconnect();
         return Result.success();
     }
 
+    @Override public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        return VPNControlWork.foregroundInfo(getApplicationContext(), "Disconnecting");
+    }
+
     private native void disconnect();
 }
@@ -0,0 +1,132 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.lang.reflect.Method;
+
+import java.net.NetworkInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// SystemPropertiesReader reads Android system properties through the hidden
+// android.os.SystemProperties class, as used by the pre-Android 8 DNS mechanisms
+// in DnsConfig.
+//
+// The reflective lookup of SystemProperties.get is done once per process. Values
+// are memoized until invalidate is called, which DnsConfig does on every
+// connectivity event, so repeated DNS config queries between events don't
+// repeat the reflective calls.
+final class SystemPropertiesReader {
+	// getMethod is SystemProperties.get(String), or null if it could not be
+	// resolved. Guarded by SystemPropertiesReader.class.
+	private static Method getMethod;
+	private static boolean resolved;
+
+	// values memoizes get. Guarded by this.
+	private final Map<String, String> values = new HashMap<>();
+	// interfaceNames memoizes interfaceNames. Guarded by this.
+	private List<String> interfaceNames;
+
+	private static synchronized Method method() {
+		if (!resolved) {
+			resolved = true;
+			try {
+				Class<?> cls = Class.forName("android.os.SystemProperties");
+				getMethod = cls.getMethod("get", String.class);
+			} catch (Exception e) {
+				getMethod = null;
+			}
+		}
+		return getMethod;
+	}
+
+	// get returns the value of the system property key, or the empty string if
+	// it is unset or cannot be read.
+	synchronized String get(String key) {
+		String value = values.get(key);
+		if (value != null) {
+			return value;
+		}
+		value = "";
+		Method m = method();
+		if (m != null) {
+			try {
+				String v = (String) m.invoke(null, key);
+				if (v != null) {
+					value = v;
+				}
+			} catch (Exception e) {
+				// Leave it empty.
+			}
+		}
+		values.put(key, value);
+		return value;
+	}
+
+	// invalidate drops all memoized values.
+	synchronized void invalidate() {
+		values.clear();
+		interfaceNames = null;
+	}
+
+	// interfaceNames returns the names of the network interfaces which exist.
+	synchronized List<String> interfaceNames() {
+		if (interfaceNames == null) {
+			List<String> names = new ArrayList<>();
+			try {
+				for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+					names.add(nif.getName());
+				}
+			} catch (Exception e) {
+				// Leave it empty.
+			}
+			interfaceNames = names;
+		}
+		return interfaceNames;
+	}
+
+	// getDnsServers returns the distinct non-empty values of the dns1 to dns4
+	// properties under each namespace ("net", "dhcp", ...) for each existing
+	// interface whose name starts with one of prefixes.
+	List<String> getDnsServers(String[] namespaces, String[] prefixes) {
+		List<String> servers = new ArrayList<>();
+		for (String key : dnsPropertyKeys(interfaceNames(), namespaces, prefixes)) {
+			String value = get(key);
+			if (!value.isEmpty() && !servers.contains(value)) {
+				servers.add(value);
+			}
+		}
+		return servers;
+	}
+
+	// dnsPropertyKeys returns the properties holding the DNS servers of the
+	// interfaces in names which start with one of prefixes, for example
+	// net.rmnet0.dns1.
+	static List<String> dnsPropertyKeys(List<String> names, String[] namespaces, String[] prefixes) {
+		List<String> keys = new ArrayList<>();
+		for (String name : names) {
+			boolean match = false;
+			for (String prefix : prefixes) {
+				if (name.startsWith(prefix)) {
+					match = true;
+					break;
+				}
+			}
+			if (!match) {
+				continue;
+			}
+			for (String ns : namespaces) {
+				for (int i = 1; i <= 4; i++) {
+					keys.add(ns + "." + name + ".dns" + i);
+				}
+			}
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,68 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+// TileState packs the state of the quick settings tile into one int, so that
+// QuickToggleService can keep it in an AtomicInteger and change it with
+// compare-and-set instead of a lock.
+//
+// Bit 0 is whether the VPN is active, bit 1 whether the backend is ready to
+// switch it, and the bits from LATENCY_SHIFT up the latency to the preferred
+// DERP region in milliseconds, 0 if unknown.
+final class TileState {
+	static final int ACTIVE = 1 << 0;
+	static final int READY = 1 << 1;
+
+	private static final int LATENCY_SHIFT = 8;
+	static final int MAX_LATENCY_MS = (1 << (31 - LATENCY_SHIFT)) - 1;
+
+	private TileState() {
+	}
+
+	// with returns s with flag set to on.
+	static int with(int s, int flag, boolean on) {
+		return on ? s | flag : s & ~flag;
+	}
+
+	// withLatency returns s with the latency set to ms, clamped to
+	// MAX_LATENCY_MS. A negative ms means unknown.
+	static int withLatency(int s, int ms) {
+		ms = Math.max(0, Math.min(ms, MAX_LATENCY_MS));
+		return (s & ((1 << LATENCY_SHIFT) - 1)) | (ms << LATENCY_SHIFT);
+	}
+
+	static int latencyMs(int s) {
+		return s >>> LATENCY_SHIFT;
+	}
+
+	// isOn reports whether the tile shows as active.
+	static boolean isOn(int s) {
+		return (s & (ACTIVE | READY)) == (ACTIVE | READY);
+	}
+
+	// visible returns the part of s shown by the tile. The latency is only
+	// shown while connected.
+	static int visible(int s) {
+		return isOn(s) ? s : s & READY;
+	}
+
+	// sameButLatency reports whether the visible states a and b differ at
+	// most in their latency.
+	static boolean sameButLatency(int a, int b) {
+		return withLatency(a, 0) == withLatency(b, 0);
+	}
+
+	// subtitle returns the tile subtitle for the visible state s.
+	static String subtitle(int s) {
+		if ((s & READY) == 0) {
+			return "Not ready";
+		}
+		if (!isOn(s)) {
+			return "Disconnected";
+		}
+		int ms = latencyMs(s);
+		return ms == 0 ? "Connected" : "Connected, " + ms + " ms";
+	}
+}
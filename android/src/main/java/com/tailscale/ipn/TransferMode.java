@@ -0,0 +1,275 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// TransferMode keeps the device awake and Wi-Fi out of power save while
+// Taildrop transfers are moving bytes, and shows their progress.
+//
+// Transfers are told apart by an id chosen by the caller, and sends and
+// receives may run at the same time. The first progress report with bytes
+// moved enters the mode, acquiring the Sink's locks, and it is left,
+// releasing them, once no bytes moved for IDLE_TIMEOUT_MS or every transfer
+// finished. While in the mode the locks are renewed every IDLE_TIMEOUT_MS,
+// so the Sink can acquire them with a timeout that bounds how long they
+// outlive a hung transfer. The rate is kept per transfer; the progress, total
+// rate and time left of all transfers are shown in one notification, updated
+// at most every NOTIFY_INTERVAL_MS.
+final class TransferMode {
+	static final long IDLE_TIMEOUT_MS = 15000;
+	static final long NOTIFY_INTERVAL_MS = 1000;
+
+	// RATE_SMOOTHING is the weight of a new rate sample in the average.
+	private static final double RATE_SMOOTHING = 0.3;
+	// MIN_SAMPLE_MS is the shortest interval a rate sample is taken over.
+	private static final long MIN_SAMPLE_MS = 500;
+
+	// Sink holds the locks and shows the progress notification.
+	interface Sink {
+		void acquireLocks();
+		void releaseLocks();
+		// showProgress is called on the Scheduler's thread.
+		void showProgress(String title, String text, int percent);
+		void hideProgress();
+	}
+
+	private final Scheduler scheduler;
+	private final Sink sink;
+	private final NotificationDispatcher progress;
+
+	// Transfer is the progress of one transfer. Guarded by TransferMode.this.
+	private static final class Transfer {
+		final boolean sending;
+		long done;
+		long total;
+		// lastBytes is when bytes of the transfer last moved.
+		long lastBytes;
+		// sampleStart and sampleDone are the time and byte count the
+		// current rate sample started at.
+		long sampleStart;
+		long sampleDone;
+		// rate is the smoothed rate in bytes per second, or 0 before the
+		// first sample.
+		double rate;
+
+		Transfer(boolean sending) {
+			this.sending = sending;
+		}
+	}
+
+	// The fields below are guarded by this.
+	private boolean active;
+	// transfers holds the unfinished transfers by id.
+	private final Map<Long, Transfer> transfers = new HashMap<>();
+	// lastBytes is when bytes of any transfer last moved.
+	private long lastBytes;
+	private int percent;
+	private long activations;
+
+	TransferMode(Scheduler scheduler, final Sink sink) {
+		this.scheduler = scheduler;
+		this.sink = sink;
+		this.progress = new NotificationDispatcher(scheduler, NOTIFY_INTERVAL_MS, new NotificationDispatcher.Poster() {
+			@Override public void post(String title, String text) {
+				int p;
+				synchronized (TransferMode.this) {
+					if (!active) {
+						// Posted after the mode was left.
+						return;
+					}
+					p = percent;
+				}
+				sink.showProgress(title, text, p);
+			}
+		});
+	}
+
+	// dispatcher returns the dispatcher of the progress notification.
+	NotificationDispatcher dispatcher() {
+		return progress;
+	}
+
+	// progress reports that done of total bytes of the transfer with id have
+	// moved. A total of 0 means unknown.
+	void progress(long id, boolean sending, long done, long total) {
+		String title, text;
+		synchronized (this) {
+			long now = scheduler.now();
+			Transfer t = transfers.get(id);
+			if (t == null) {
+				t = new Transfer(sending);
+				t.sampleStart = now;
+				t.sampleDone = done;
+				transfers.put(id, t);
+			}
+			boolean moved = done != t.done;
+			if (!active && !moved) {
+				// Nothing flows; don't enter the mode.
+				return;
+			}
+			if (!active) {
+				// Start rating afresh, not across the idle time.
+				for (Transfer o : transfers.values()) {
+					o.sampleStart = now;
+					o.sampleDone = o.done;
+					o.rate = 0;
+				}
+				t.sampleDone = done;
+			}
+			if (moved) {
+				lastBytes = now;
+				t.lastBytes = now;
+			}
+			t.done = done;
+			t.total = total;
+			if (now - t.sampleStart >= MIN_SAMPLE_MS) {
+				double sample = (done - t.sampleDone) * 1000.0 / (now - t.sampleStart);
+				t.rate = t.rate == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * t.rate;
+				t.sampleStart = now;
+				t.sampleDone = done;
+			}
+			if (!active) {
+				active = true;
+				activations++;
+				sink.acquireLocks();
+				scheduleIdleCheck(IDLE_TIMEOUT_MS);
+			}
+
+			long allDone = 0;
+			long allTotal = 0;
+			boolean totalKnown = true;
+			boolean anySending = false;
+			boolean anyReceiving = false;
+			for (Transfer o : transfers.values()) {
+				allDone += o.done;
+				allTotal += o.total;
+				totalKnown &= o.total > 0;
+				anySending |= o.sending;
+				anyReceiving |= !o.sending;
+			}
+			if (!totalKnown) {
+				allTotal = 0;
+			}
+			percent = allTotal > 0 ? (int) Math.min(100, allDone * 100 / allTotal) : 0;
+			if (anySending && anyReceiving) {
+				title = "Transferring files";
+			} else {
+				title = anySending ? "Sending files" : "Receiving files";
+			}
+			text = describe(allDone, allTotal, rateLocked(now));
+		}
+		progress.update(title, text);
+	}
+
+	// finish reports the end of the transfer with id, and leaves the mode
+	// if it was the last one.
+	void finish(long id) {
+		synchronized (this) {
+			transfers.remove(id);
+			if (!active || !transfers.isEmpty()) {
+				return;
+			}
+			leave();
+		}
+	}
+
+	// rateLocked returns the sum of the rates of the transfers that moved
+	// bytes in the last IDLE_TIMEOUT_MS. It must be called with this held.
+	private double rateLocked(long now) {
+		double sum = 0;
+		for (Transfer t : transfers.values()) {
+			if (now - t.lastBytes < IDLE_TIMEOUT_MS) {
+				sum += t.rate;
+			}
+		}
+		return sum;
+	}
+
+	private void scheduleIdleCheck(long delayMs) {
+		scheduler.schedule(new Runnable() {
+			@Override public void run() {
+				checkIdle();
+			}
+		}, delayMs);
+	}
+
+	private synchronized void checkIdle() {
+		if (!active) {
+			return;
+		}
+		long idle = scheduler.now() - lastBytes;
+		if (idle >= IDLE_TIMEOUT_MS) {
+			leave();
+			return;
+		}
+		sink.acquireLocks();
+		scheduleIdleCheck(IDLE_TIMEOUT_MS - idle);
+	}
+
+	// leave must be called with this held.
+	private void leave() {
+		active = false;
+		sink.releaseLocks();
+		sink.hideProgress();
+		progress.reset();
+	}
+
+	synchronized boolean isActive() {
+		return active;
+	}
+
+	synchronized long activationCount() {
+		return activations;
+	}
+
+	// rateBytesPerSecond returns the smoothed rate of all transfers.
+	synchronized double rateBytesPerSecond() {
+		return rateLocked(scheduler.now());
+	}
+
+	// describe formats the progress like "40%, 12.5 MB/s, 2 min left".
+	static String describe(long done, long total, double rate) {
+		StringBuilder sb = new StringBuilder();
+		if (total > 0) {
+			sb.append(Math.min(100, done * 100 / total)).append('%');
+		} else {
+			sb.append(formatBytes(done));
+		}
+		if (rate > 0) {
+			sb.append(", ").append(formatBytes((long) rate)).append("/s");
+			if (total > done) {
+				sb.append(", ").append(formatDuration((long) ((total - done) / rate))).append(" left");
+			}
+		}
+		return sb.toString();
+	}
+
+	static String formatBytes(long n) {
+		if (n < 1000) {
+			return n + " B";
+		}
+		String[] units = {"kB", "MB", "GB", "TB"};
+		double v = n;
+		int u = -1;
+		do {
+			v /= 1000;
+			u++;
+		} while (v >= 1000 && u < units.length - 1);
+		return String.format(Locale.ROOT, "%.1f %s", v, units[u]);
+	}
+
+	static String formatDuration(long seconds) {
+		if (seconds < 60) {
+			return seconds + " s";
+		}
+		if (seconds < 3600) {
+			return (seconds + 30) / 60 + " min";
+		}
+		return String.format(Locale.ROOT, "%d h %d min", seconds / 3600, (seconds % 3600) / 60);
+	}
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.content.Context;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.core.app.NotificationCompat;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
+import androidx.work.ListenableWorker;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+// VPNControlWork schedules the workers that connect and disconnect the VPN
+// on behalf of IPNReceiver and IPNControlService.
+//
+// All of them are one unique work, so that a burst of connect and disconnect
+// requests collapses to the last one: a request for a different action
+// replaces the pending one, and a repeated request keeps it. The work is
+// expedited; before Android 12 that runs it in a foreground service, which
+// needs the notification of foregroundInfo.
+final class VPNControlWork {
+	static final String UNIQUE_NAME = "vpn-control";
+
+	// lastWorker is the worker of the latest request. Guarded by the class.
+	private static Class<? extends ListenableWorker> lastWorker;
+
+	private VPNControlWork() {
+	}
+
+	// request requests a connect or disconnect made at requestedAt, in
+	// SystemClock.elapsedRealtime, and measures a connect in ControlLatency.
+	static void request(Context ctx, boolean connect, long requestedAt) {
+		App app = (App)ctx.getApplicationContext();
+		if (connect) {
+			app.controlLatency.requested(requestedAt);
+			enqueue(app, StartVPNWorker.class);
+		} else {
+			app.controlLatency.cancel();
+			enqueue(app, StopVPNWorker.class);
+		}
+	}
+
+	// enqueue schedules worker, replacing or keeping the pending request.
+	private static void enqueue(Context ctx, Class<? extends ListenableWorker> worker) {
+		OneTimeWorkRequest req = new OneTimeWorkRequest.Builder(worker)
+			.setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+			.build();
+		// Enqueue with the class held, so that concurrent requests reach
+		// WorkManager in the order their policy was chosen in.
+		synchronized (VPNControlWork.class) {
+			ExistingWorkPolicy policy = worker == lastWorker ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.REPLACE;
+			lastWorker = worker;
+			WorkManager.getInstance(ctx).enqueueUniqueWork(UNIQUE_NAME, policy, req);
+		}
+	}
+
+	// foregroundInfo returns the notification shown while a worker runs as
+	// expedited work before Android 12.
+	static ListenableFuture<ForegroundInfo> foregroundInfo(Context ctx, String title) {
+		App app = (App)ctx.getApplicationContext();
+		NotificationCompat.Builder b = new NotificationCompat.Builder(app, app.notificationChannel(App.STATUS_CHANNEL_ID))
+			.setSmallIcon(R.drawable.ic_notification)
+			.setContentTitle(title)
+			.setOnlyAlertOnce(true)
+			.setPriority(NotificationCompat.PRIORITY_LOW);
+		final ForegroundInfo info = new ForegroundInfo(App.CONTROL_NOTIFICATION_ID, b.build());
+		return CallbackToFutureAdapter.getFuture(new CallbackToFutureAdapter.Resolver<ForegroundInfo>() {
+			@Override public Object attachCompleter(CallbackToFutureAdapter.Completer<ForegroundInfo> completer) {
+				completer.set(info);
+				return "foregroundInfo";
+			}
+		});
+	}
+}
@@ -0,0 +1,160 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.tailscale.ipn;
+
+import android.net.VpnService;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// VpnConfig is the TUN configuration sent by the Go backend to
+// IPNService.establishFromConfig, in one JNI call instead of one per builder
+// method. It is encoded by encodeTUNConfig in backend.go. All integers are
+// big endian:
+//
+// int32 mtu
+// int16 number of local addresses, then for each:
+//   int8 address length (4 or 16), raw address bytes
+//   int8 prefix length
+// int32 number of routes, then for each: as a local address
+// int16 number of DNS servers, then for each:
+//   int8 address length (4 or 16), raw address bytes
+// int16 number of search domains, then for each:
+//   int16 length, UTF-8 domain
+//
+// Routes are masked, as Builder.addRoute requires, and are aggregated by
+// RouteAggregator before being added.
+final class VpnConfig {
+	// Prefix is an address and prefix length.
+	static final class Prefix {
+		final InetAddress addr;
+		final int bits;
+
+		Prefix(InetAddress addr, int bits) {
+			this.addr = addr;
+			this.bits = bits;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Prefix)) {
+				return false;
+			}
+			Prefix other = (Prefix) o;
+			return bits == other.bits && addr.equals(other.addr);
+		}
+
+		@Override public int hashCode() {
+			return addr.hashCode() * 31 + bits;
+		}
+
+		@Override public String toString() {
+			return addr.getHostAddress() + "/" + bits;
+		}
+	}
+
+	final int mtu;
+	final List<Prefix> addresses;
+	final List<Prefix> routes;
+	final List<InetAddress> dnsServers;
+	final List<String> searchDomains;
+
+	VpnConfig(int mtu, List<Prefix> addresses, List<Prefix> routes, List<InetAddress> dnsServers, List<String> searchDomains) {
+		this.mtu = mtu;
+		this.addresses = addresses;
+		this.routes = routes;
+		this.dnsServers = dnsServers;
+		this.searchDomains = searchDomains;
+	}
+
+	// decode decodes packed, throwing IllegalArgumentException if it is
+	// malformed.
+	static VpnConfig decode(byte[] packed) {
+		ByteBuffer b = ByteBuffer.wrap(packed).order(ByteOrder.BIG_ENDIAN);
+		try {
+			int mtu = b.getInt();
+			List<Prefix> addresses = readPrefixes(b, b.getShort() & 0xffff);
+			List<Prefix> routes = readPrefixes(b, b.getInt());
+			int ndns = b.getShort() & 0xffff;
+			List<InetAddress> dns = new ArrayList<>(ndns);
+			for (int i = 0; i < ndns; i++) {
+				dns.add(readAddr(b));
+			}
+			int ndomains = b.getShort() & 0xffff;
+			List<String> domains = new ArrayList<>(ndomains);
+			for (int i = 0; i < ndomains; i++) {
+				byte[] d = new byte[b.getShort() & 0xffff];
+				b.get(d);
+				domains.add(new String(d, StandardCharsets.UTF_8));
+			}
+			return new VpnConfig(mtu, addresses, routes, dns, domains);
+		} catch (BufferUnderflowException | UnknownHostException e) {
+			throw new IllegalArgumentException("malformed VPN config", e);
+		}
+	}
+
+	// apply configures b with the config.
+	void apply(VpnService.Builder b) {
+		b.setMtu(mtu);
+		for (InetAddress dns : dnsServers) {
+			b.addDnsServer(dns);
+		}
+		for (String domain : searchDomains) {
+			b.addSearchDomain(domain);
+		}
+		for (Prefix r : aggregateRoutes(routes)) {
+			b.addRoute(r.addr, r.bits);
+		}
+		for (Prefix a : addresses) {
+			b.addAddress(a.addr, a.bits);
+		}
+	}
+
+	// aggregateRoutes returns the smallest set of routes covering the same
+	// addresses as routes, see RouteAggregator.
+	static List<Prefix> aggregateRoutes(List<Prefix> routes) {
+		RouteAggregator agg = new RouteAggregator();
+		for (Prefix r : routes) {
+			agg.add(r.addr.getAddress(), r.bits);
+		}
+		List<RouteAggregator.Route> merged = agg.result();
+		List<Prefix> out = new ArrayList<>(merged.size());
+		for (RouteAggregator.Route r : merged) {
+			try {
+				out.add(new Prefix(InetAddress.getByAddress(r.ip), r.bits));
+			} catch (UnknownHostException e) {
+				// Not possible for 4 and 16 byte addresses.
+				throw new IllegalStateException(e);
+			}
+		}
+		return out;
+	}
+
+	private static List<Prefix> readPrefixes(ByteBuffer b, int n) throws UnknownHostException {
+		if (n < 0 || n > b.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		List<Prefix> prefixes = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			InetAddress addr = readAddr(b);
+			prefixes.add(new Prefix(addr, b.get() & 0xff));
+		}
+		return prefixes;
+	}
+
+	private static InetAddress readAddr(ByteBuffer b) throws UnknownHostException {
+		byte[] ip = new byte[b.get() & 0xff];
+		b.get(ip);
+		// getByAddress doesn't do any lookups.
+		return InetAddress.getByAddress(ip);
+	}
+}
@@ -0,0 +1,74 @@
+package com.tailscale.ipn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectivitySchedulerTest {
+	private FakeScheduler sched;
+	private List<Integer> delivered;
+	private ConnectivityScheduler cs;
+
+	@Before
+	public void setUp() {
+		sched = new FakeScheduler();
+		delivered = new ArrayList<>();
+		cs = new ConnectivityScheduler(sched, 250, 1000, new ConnectivityScheduler.Sink() {
+			@Override public void deliver(int reasons) {
+				delivered.add(reasons);
+			}
+		});
+	}
+
+	@Test
+	public void connectivityScheduler_burstTest() {
+		// A handover: wlan0 lost, rmnet0 link properties and capabilities
+		// changing a few times, 20ms apart.
+		cs.report("wlan0", ConnectivityScheduler.REASON_LINK_PROPERTIES, "lp0");
+		sched.advance(1000);
+		assertEquals(1, delivered.size());
+
+		cs.report("wlan0", ConnectivityScheduler.REASON_LOST, null);
+		for (int i = 0; i < 10; i++) {
+			sched.advance(20);
+			cs.report("rmnet0", ConnectivityScheduler.REASON_LINK_PROPERTIES, "lp" + (i / 3));
+			cs.report("rmnet0", ConnectivityScheduler.REASON_CAPABILITIES, 1);
+		}
+		sched.advance(249);
+		assertEquals(1, delivered.size());
+		sched.advance(1);
+		assertEquals(2, delivered.size());
+		assertEquals(ConnectivityScheduler.REASON_LOST | ConnectivityScheduler.REASON_LINK_PROPERTIES |
+			ConnectivityScheduler.REASON_CAPABILITIES, (int) delivered.get(1));
+		assertEquals(22, cs.receivedCount());
+		assertEquals(2, cs.deliveredCount());
+		assertEquals(20, cs.suppressedCount());
+		assertEquals(450, cs.maxLatencyMs());
+	}
+
+	@Test
+	public void connectivityScheduler_identicalTest() {
+		cs.report("wlan0", ConnectivityScheduler.REASON_LINK_PROPERTIES, "lp");
+		sched.advance(300);
+		cs.report("wlan0", ConnectivityScheduler.REASON_LINK_PROPERTIES, "lp");
+		cs.report("rmnet0", ConnectivityScheduler.REASON_LOST, null);
+		sched.advance(300);
+		assertEquals(1, delivered.size());
+		assertEquals(2, cs.suppressedCount());
+	}
+
+	@Test
+	public void connectivityScheduler_maxDelayTest() {
+		// Events every 200ms never leave a 250ms quiet period.
+		for (int i = 0; i < 10; i++) {
+			cs.report("rmnet0", ConnectivityScheduler.REASON_LINK_PROPERTIES, "lp" + i);
+			sched.advance(200);
+		}
+		assertEquals(2, delivered.size());
+		assertEquals(1000, cs.maxLatencyMs());
+	}
+}
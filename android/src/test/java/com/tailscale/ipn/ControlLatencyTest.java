@@ -0,0 +1,44 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ControlLatencyTest {
+	@Test
+	public void controlLatency_measureTest() {
+		ControlLatency l = new ControlLatency();
+		assertEquals("no connects", l.describe());
+		// Connects without a request aren't measured.
+		assertEquals(-1, l.connected(100));
+		l.requested(1000);
+		l.started(1120);
+		assertEquals(850, l.connected(1850));
+		assertEquals(-1, l.connected(1900));
+		l.requested(2000);
+		assertEquals(1200, l.connected(3200));
+		assertEquals(2, l.count());
+		assertEquals(1200, l.lastMs());
+		assertEquals(1025, l.meanMs());
+		assertEquals(1200, l.maxMs());
+		assertEquals("2 connects, last 1200ms, mean 1025ms, max 1200ms", l.describe());
+	}
+
+	@Test
+	public void controlLatency_lastRequestWinsTest() {
+		ControlLatency l = new ControlLatency();
+		l.requested(1000);
+		l.started(1010);
+		// A newer connect restarts the measurement.
+		l.requested(1500);
+		l.started(1600);
+		assertEquals(300, l.connected(1800));
+		assertEquals("1 connect, last 300ms (100ms queued), mean 300ms, max 300ms", l.describe());
+		// A disconnect drops the pending connect.
+		l.requested(2000);
+		l.cancel();
+		l.started(2100);
+		assertEquals(-1, l.connected(2500));
+		assertEquals(1, l.count());
+	}
+}
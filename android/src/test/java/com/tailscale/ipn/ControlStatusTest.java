@@ -0,0 +1,57 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ControlStatusTest {
+	private static class Recorder implements ControlStatus.Listener {
+		final List<ControlStatus.Snapshot> seen = new ArrayList<>();
+
+		@Override public void onStatusChanged(ControlStatus.Snapshot s) {
+			seen.add(s);
+		}
+	}
+
+	@Test
+	public void controlStatus_updateTest() {
+		ControlStatus st = new ControlStatus();
+		Recorder r = new Recorder();
+		st.addListener(r);
+		assertEquals("NoState", st.get().state);
+		st.setBackend("Running", null, false);
+		st.setNetwork("wifi validated");
+		st.setBackend("Running", "exit-1", true);
+		ControlStatus.Snapshot s = st.get();
+		assertEquals("Running", s.state);
+		assertEquals("exit-1", s.exitNode);
+		assertTrue(s.exitNodeOnline);
+		// The backend doesn't clobber the network.
+		assertEquals("wifi validated", s.network);
+		assertEquals(3, s.seq);
+		assertEquals(3, r.seen.size());
+		assertTrue(r.seen.get(2) == s);
+	}
+
+	@Test
+	public void controlStatus_unchangedTest() {
+		ControlStatus st = new ControlStatus();
+		Recorder r = new Recorder();
+		st.addListener(r);
+		st.setBackend("Stopped", "", false);
+		st.setBackend("Stopped", null, false);
+		st.setNetwork(null);
+		st.setNetwork("");
+		assertEquals(1, r.seen.size());
+		assertEquals(1, st.get().seq);
+		st.removeListener(r);
+		st.setNetwork("cellular validated metered");
+		assertEquals(1, r.seen.size());
+		assertFalse(st.get().network.isEmpty());
+	}
+}
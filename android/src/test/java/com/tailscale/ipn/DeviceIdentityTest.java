@@ -0,0 +1,56 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DeviceIdentityTest {
+	private static String readString(ByteBuffer b) {
+		byte[] s = new byte[b.getShort()];
+		b.get(s);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void deviceIdentity_encodeTest() {
+		byte[] cert = {1, 2, 3};
+		DeviceIdentity id = new DeviceIdentity("pixel-k\u00fcche", "Google Pixel 7", "14", false, true, cert);
+		ByteBuffer b = ByteBuffer.wrap(id.encode());
+		assertEquals(DeviceIdentity.FLAG_TV, b.get());
+		assertEquals("pixel-k\u00fcche", readString(b));
+		assertEquals("Google Pixel 7", readString(b));
+		assertEquals("14", readString(b));
+		byte[] got = new byte[b.getInt()];
+		b.get(got);
+		assertArrayEquals(cert, got);
+		assertEquals(0, b.remaining());
+	}
+
+	@Test
+	public void deviceIdentity_noCertificateTest() {
+		DeviceIdentity id = new DeviceIdentity(null, "m", "9", true, false, null);
+		ByteBuffer b = ByteBuffer.wrap(id.encode());
+		assertEquals(DeviceIdentity.FLAG_CHROME_OS, b.get());
+		assertEquals("", readString(b));
+		readString(b);
+		readString(b);
+		assertEquals(0, b.getInt());
+		assertEquals(0, b.remaining());
+		assertNull(id.packageCertificate());
+		assertEquals("host", id.withHostname("host").hostname);
+	}
+
+	@Test
+	public void deviceIdentity_namesTest() {
+		assertEquals("Google Pixel 7", DeviceIdentity.modelName("Google", "Pixel 7"));
+		assertEquals("samsung SM-G991B", DeviceIdentity.modelName("samsung", "Samsung SM-G991B"));
+		assertEquals("bt", DeviceIdentity.hostname(new String[]{null, "bt", "dev"}, "model"));
+		assertEquals("dev", DeviceIdentity.hostname(new String[]{"", null, "dev"}, "model"));
+		assertEquals("model", DeviceIdentity.hostname(new String[]{null, "", null}, "model"));
+	}
+}
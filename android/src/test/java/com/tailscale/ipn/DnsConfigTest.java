@@ -1,7 +1,16 @@
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import com.tailscale.ipn.DnsConfig;
 
 public class DnsConfigTest {
@@ -18,4 +27,62 @@ public class DnsConfigTest {
 		assertEquals(dns.intToInetString(0x04030201), "1.2.3.4");
 		assertEquals(dns.intToInetString(0), "0.0.0.0");
 	}
+
+	private static List<InetAddress> addrs(String... ips) throws Exception {
+		List<InetAddress> list = new ArrayList<>();
+		for (String ip : ips) {
+			list.add(InetAddress.getByName(ip));
+		}
+		return list;
+	}
+
+	@Test
+	public void dnsConfig_selectDnsConfigTest() throws Exception {
+		assertEquals(DnsConfig.selectDnsConfig(Collections.<DnsConfig.NetworkSnapshot>emptyList()), "");
+		assertEquals(DnsConfig.selectDnsConfig(Arrays.asList(
+			new DnsConfig.NetworkSnapshot(2, addrs("fd00:976a::9"), null),
+			new DnsConfig.NetworkSnapshot(1, addrs("10.1.10.1"), "localdomain"),
+			new DnsConfig.NetworkSnapshot(-1, addrs("100.100.100.100"), null))), "10.1.10.1 \nlocaldomain");
+		assertEquals(DnsConfig.selectDnsConfig(Arrays.asList(
+			new DnsConfig.NetworkSnapshot(0, addrs(), null),
+			new DnsConfig.NetworkSnapshot(2, addrs("10.0.0.53"), null))), "10.0.0.53 ");
+	}
+
+	@Test
+	public void dnsConfig_packDnsConfigTest() throws Exception {
+		byte[] packed = DnsConfig.packDnsConfig(7, addrs("10.1.10.1", "fd00:976a::9"), "example.com corp");
+		ByteBuffer buf = ByteBuffer.wrap(packed);
+		assertEquals(buf.getInt(), 7);
+		assertEquals(buf.getShort(), 2);
+		assertEquals(buf.get(), 4);
+		byte[] v4 = new byte[4];
+		buf.get(v4);
+		assertArrayEquals(v4, new byte[]{10, 1, 10, 1});
+		assertEquals(buf.get(), 16);
+		buf.position(buf.position() + 16);
+		assertEquals(buf.get(), 0);
+		assertEquals(buf.getShort(), 2);
+		assertEquals(buf.getShort(), "example.com".length());
+		buf.position(buf.position() + "example.com".length());
+		assertEquals(buf.getShort(), "corp".length());
+		buf.position(buf.position() + "corp".length());
+		assertEquals(buf.remaining(), 0);
+
+		assertArrayEquals(DnsConfig.packDnsConfigString("10.1.10.1 fd00:976a::9 \nexample.com corp"),
+			DnsConfig.packDnsConfig(0, addrs("10.1.10.1", "fd00:976a::9"), "example.com corp"));
+		assertNull(DnsConfig.packDnsConfigString(" "));
+	}
+
+	@Test
+	public void dnsConfig_packScopedTest() throws Exception {
+		byte[] packed = DnsConfig.packDnsConfig(1, addrs("fe80::1%5"), null);
+		ByteBuffer buf = ByteBuffer.wrap(packed);
+		buf.position(4 + 2);
+		assertEquals(buf.get(), 16);
+		buf.position(buf.position() + 16);
+		assertEquals(buf.get(), 1);
+		assertEquals(buf.get(), '5');
+		assertEquals(buf.getShort(), 0);
+		assertEquals(buf.remaining(), 0);
+	}
 }
@@ -0,0 +1,212 @@
+package com.tailscale.ipn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EncryptedLogStoreTest {
+	SecretKey key;
+	File file;
+
+	@Before
+	public void setup() throws Exception {
+		KeyGenerator gen = KeyGenerator.getInstance("AES");
+		gen.init(256);
+		key = gen.generateKey();
+		file = new File(Files.createTempDirectory("logstore").toFile(), EncryptedLogStore.FILE_NAME);
+	}
+
+	@Test
+	public void encryptedLogStore_reopenTest() throws Exception {
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		s.write(Collections.singletonMap("a", "1"));
+		s.write(Collections.singletonMap("b", "2"));
+		s.write(Collections.singletonMap("a", "3"));
+		s.write(Collections.<String, String>singletonMap("b", null));
+		s.close();
+
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.read("a"), "3");
+		assertNull(s.read("b"));
+		assertEquals(s.droppedBytes(), 0);
+	}
+
+	@Test
+	public void encryptedLogStore_tornTailTest() throws Exception {
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		s.write(Collections.singletonMap("a", "1"));
+		long good = s.size();
+		s.write(Collections.singletonMap("b", "2"));
+		s.close();
+		// Simulate a crash in the middle of the second append.
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.read("a"), "1");
+		assertNull(s.read("b"));
+		assertEquals(s.size(), good);
+		assertTrue(s.droppedBytes() > 0);
+		s.write(Collections.singletonMap("c", "3"));
+		s.close();
+
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.snapshot().size(), 2);
+		assertEquals(s.read("c"), "3");
+	}
+
+	@Test
+	public void encryptedLogStore_wrongKeyTest() throws Exception {
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		s.write(Collections.singletonMap("a", "1"));
+		s.close();
+
+		KeyGenerator gen = KeyGenerator.getInstance("AES");
+		gen.init(256);
+		try {
+			EncryptedLogStore.open(file, gen.generateKey());
+			fail("opened a log with the wrong key");
+		} catch (EncryptedLogStore.CorruptLogException e) {
+			// Expected.
+		}
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.read("a"), "1");
+	}
+
+	@Test
+	public void encryptedLogStore_corruptRecordTest() throws Exception {
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		s.write(Collections.singletonMap("a", "1"));
+		long first = s.size();
+		s.write(Collections.singletonMap("b", "2"));
+		s.close();
+		// Flip a byte of the first record's tag, the last byte before the
+		// second record.
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(first - 1);
+			int b = raf.read();
+			raf.seek(first - 1);
+			raf.write(b ^ 0xff);
+		}
+		long size = file.length();
+
+		try {
+			EncryptedLogStore.open(file, key);
+			fail("opened a log with a corrupt record");
+		} catch (EncryptedLogStore.CorruptLogException e) {
+			// Expected.
+		}
+		assertEquals(file.length(), size);
+	}
+
+	@Test
+	public void encryptedLogStore_badHeaderTest() throws Exception {
+		byte[] header = {'<', '?', 'x', 'm', 'l', ' ', 'v', 'e', 'r'};
+		Files.write(file.toPath(), header);
+		try {
+			EncryptedLogStore.open(file, key);
+			fail("opened a file that isn't a log");
+		} catch (EncryptedLogStore.CorruptLogException e) {
+			// Expected.
+		}
+		assertEquals(file.length(), header.length);
+
+		// A header torn during creation starts a new log.
+		Files.write(file.toPath(), new byte[]{'T', 'S'});
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		assertEquals(s.snapshot().size(), 0);
+		s.write(Collections.singletonMap("a", "1"));
+		s.close();
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.read("a"), "1");
+	}
+
+	@Test
+	public void encryptedLogStore_compactTest() throws Exception {
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		String value = new String(new char[4096]).replace('\0', 'x');
+		for (int i = 0; i < 100; i++) {
+			s.write(Collections.singletonMap("k" + (i % 3), value + i));
+		}
+		assertTrue(s.size() < 2 * EncryptedLogStore.COMPACT_MIN_BYTES);
+		s.close();
+
+		s = EncryptedLogStore.open(file, key);
+		assertEquals(s.snapshot().size(), 3);
+		assertEquals(s.read("k0"), value + 99);
+		assertEquals(s.read("k1"), value + 97);
+	}
+
+	// encryptedLogStore_benchmark compares the log with a store which encrypts
+	// and rewrites all its values on every commit, as EncryptedSharedPreferences
+	// does with its XML file. The profile state blob dominates, and is rewritten along
+	// with a few small keys. Compaction included, the log must write a
+	// fraction of the bytes the rewriting store does, and take no longer.
+	@Test
+	public void encryptedLogStore_benchmark() throws Exception {
+		final int writes = 200;
+		Map<String, String> state = new TreeMap<>();
+		for (int i = 0; i < 20; i++) {
+			state.put("statestore-key" + i, new String(new char[256]).replace('\0', 'k'));
+		}
+		String blob = new String(new char[256 << 10]).replace('\0', 'p');
+
+		EncryptedLogStore s = EncryptedLogStore.open(file, key);
+		long logBytes = 0;
+		long logNanos = 0;
+		long rewriteBytes = 0;
+		long rewriteNanos = 0;
+		File rewriteFile = new File(file.getParentFile(), "rewrite.xml");
+		Cipher rewriteCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		for (int i = 0; i < writes; i++) {
+			String k = i % 10 == 0 ? "statestore-profile" : "statestore-key" + (i % 20);
+			String v = (i % 10 == 0 ? blob : state.get("statestore-key0")) + i;
+			state.put(k, v);
+
+			long before = s.bytesWritten();
+			long t0 = System.nanoTime();
+			s.write(Collections.singletonMap(k, v));
+			logNanos += System.nanoTime() - t0;
+			logBytes += s.bytesWritten() - before;
+
+			t0 = System.nanoTime();
+			ByteArrayOutputStream xml = new ByteArrayOutputStream();
+			for (Map.Entry<String, String> e : state.entrySet()) {
+				xml.write(e.getKey().getBytes(StandardCharsets.UTF_8));
+				xml.write(e.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+			rewriteCipher.init(Cipher.ENCRYPT_MODE, key);
+			byte[] ct = rewriteCipher.doFinal(xml.toByteArray());
+			try (RandomAccessFile raf = new RandomAccessFile(rewriteFile, "rw")) {
+				raf.setLength(0);
+				raf.write(ct);
+				raf.getChannel().force(false);
+			}
+			rewriteNanos += System.nanoTime() - t0;
+			rewriteBytes += ct.length;
+		}
+		s.close();
+		assertTrue("log wrote " + logBytes + " bytes, rewriting " + rewriteBytes,
+			4 * logBytes < rewriteBytes);
+		assertTrue("log took " + logNanos / writes / 1000 + " us/write, rewriting " + rewriteNanos / writes / 1000,
+			logNanos < rewriteNanos);
+	}
+}
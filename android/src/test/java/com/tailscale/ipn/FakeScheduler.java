@@ -0,0 +1,41 @@
+package com.tailscale.ipn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// FakeScheduler runs scheduled tasks when the test advances its clock.
+class FakeScheduler implements Scheduler {
+	long now = 1000;
+	final List<Long> due = new ArrayList<>();
+	final List<Runnable> tasks = new ArrayList<>();
+
+	@Override public long now() {
+		return now;
+	}
+
+	@Override public void schedule(Runnable r, long delayMs) {
+		due.add(now + delayMs);
+		tasks.add(r);
+	}
+
+	// advance runs the tasks that are due, then moves the clock forward by
+	// ms, one millisecond at a time, running the tasks as they become due.
+	void advance(long ms) {
+		runDue();
+		for (long end = now + ms; now < end; ) {
+			now++;
+			runDue();
+		}
+	}
+
+	private void runDue() {
+		for (int i = 0; i < tasks.size(); ) {
+			if (due.get(i) <= now) {
+				due.remove(i);
+				tasks.remove(i).run();
+			} else {
+				i++;
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NetInterfacesTest {
+	private static NetInterfaces.Iface wlan0(int mtu) {
+		byte[] v6 = new byte[16];
+		v6[0] = (byte) 0xfe;
+		v6[1] = (byte) 0x80;
+		v6[15] = 1;
+		return new NetInterfaces.Iface("wlan0", 30, mtu,
+			NetInterfaces.FLAG_UP | NetInterfaces.FLAG_BROADCAST | NetInterfaces.FLAG_MULTICAST,
+			Arrays.asList(
+				new NetInterfaces.Addr(v6, 64),
+				new NetInterfaces.Addr(new byte[]{10, 1, 10, (byte) 131}, 24)));
+	}
+
+	private static NetInterfaces.Iface lo() {
+		return new NetInterfaces.Iface("lo", 1, 65536, NetInterfaces.FLAG_UP | NetInterfaces.FLAG_LOOPBACK,
+			Collections.<NetInterfaces.Addr>emptyList());
+	}
+
+	private static List<NetInterfaces.Iface> sample() {
+		return Arrays.asList(wlan0(1500), lo());
+	}
+
+	@Test
+	public void netInterfaces_encodeDecodeTest() {
+		NetInterfaces ni = new NetInterfaces();
+		ByteBuffer buf = ni.encode(sample(), Collections.singletonList("rmnet0"));
+		assertEquals(buf.getInt(0), buf.limit());
+
+		List<String> removed = new ArrayList<>();
+		List<NetInterfaces.Iface> got = NetInterfaces.decode(buf, removed);
+		assertEquals(got.size(), 2);
+		assertEquals(got.get(0).name, "wlan0");
+		assertEquals(got.get(0).index, 30);
+		assertEquals(got.get(0).mtu, 1500);
+		assertEquals(got.get(0).addrs.size(), 2);
+		assertArrayEquals(got.get(0).addrs.get(1).ip, new byte[]{10, 1, 10, (byte) 131});
+		assertEquals(got.get(0).addrs.get(1).prefixLen, 24);
+		assertEquals(got.get(1).mtu, 65536);
+		assertEquals(got, sample());
+		assertEquals(removed, Collections.singletonList("rmnet0"));
+	}
+
+	@Test
+	public void netInterfaces_encodeGrowsTest() {
+		NetInterfaces ni = new NetInterfaces();
+		List<NetInterfaces.Iface> many = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			many.add(wlan0(1500));
+		}
+		ByteBuffer buf = ni.encode(many, Collections.<String>emptyList());
+		assertEquals(NetInterfaces.decode(buf, null).size(), 500);
+	}
+
+	@Test
+	public void netInterfaces_generationTest() {
+		NetInterfaces ni = new NetInterfaces();
+		assertEquals(ni.update(sample()), 1);
+		assertEquals(ni.update(sample()), 1);
+		assertEquals(NetInterfaces.decode(ni.encodeSnapshot(), null), sample());
+
+		assertEquals(ni.update(Collections.singletonList(wlan0(1280))), 2);
+		assertNull(ni.encodeDelta(0));
+		List<String> removed = new ArrayList<>();
+		List<NetInterfaces.Iface> changed = NetInterfaces.decode(ni.encodeDelta(1), removed);
+		assertEquals(changed, Collections.singletonList(wlan0(1280)));
+		assertEquals(removed, Collections.singletonList("lo"));
+	}
+
+	@Test
+	public void netInterfaces_formatTest() {
+		assertEquals(NetInterfaces.format(sample()),
+			"wlan0 30 1500 true true false false true |fe80:0:0:0:0:0:0:1/64 10.1.10.131/24 \n" +
+			"lo 1 65536 true false true false false |\n");
+	}
+}
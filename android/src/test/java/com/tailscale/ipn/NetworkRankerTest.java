@@ -0,0 +1,75 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkRankerTest {
+	private static final int ETHERNET = 0, WIFI = 1, CELLULAR = 2;
+
+	private static NetworkRanker.Candidate validated(int pref, boolean notMetered, int kbps) {
+		return new NetworkRanker.Candidate(null, pref, true, true, false, notMetered, kbps, Integer.MIN_VALUE);
+	}
+
+	@Test
+	public void networkRanker_unvalidatedWifiLosesTest() {
+		NetworkRanker.Candidate hotel = new NetworkRanker.Candidate(null, WIFI, true, false, true, true, 50000, -50);
+		NetworkRanker.Candidate lte = validated(CELLULAR, false, 20000);
+		List<NetworkRanker.Candidate> ranked = NetworkRanker.rank(Arrays.asList(hotel, lte));
+		assertEquals(Arrays.asList(lte, hotel), ranked);
+		assertEquals(Arrays.asList(lte), NetworkRanker.underlying(ranked));
+	}
+
+	@Test
+	public void networkRanker_wifiHidesCellularTest() {
+		NetworkRanker.Candidate wifi = validated(WIFI, true, 10000);
+		NetworkRanker.Candidate lte = validated(CELLULAR, false, 100000);
+		NetworkRanker.Candidate eth = validated(ETHERNET, true, 1000);
+		List<NetworkRanker.Candidate> ranked = NetworkRanker.rank(Arrays.asList(lte, wifi, eth));
+		assertEquals(Arrays.asList(eth, wifi, lte), ranked);
+		assertEquals(Arrays.asList(eth, wifi), NetworkRanker.underlying(ranked));
+	}
+
+	@Test
+	public void networkRanker_bandwidthAndSignalTest() {
+		NetworkRanker.Candidate slow = validated(WIFI, true, 1000);
+		NetworkRanker.Candidate fast = validated(WIFI, true, 100000);
+		assertEquals(Arrays.asList(fast, slow), NetworkRanker.rank(Arrays.asList(slow, fast)));
+
+		// Same bandwidth bucket; signal strength decides.
+		NetworkRanker.Candidate weak = new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1500, -80);
+		NetworkRanker.Candidate strong = new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1100, -40);
+		assertEquals(Arrays.asList(strong, weak), NetworkRanker.rank(Arrays.asList(weak, strong)));
+	}
+
+	@Test
+	public void networkRanker_updateTest() {
+		NetworkRanker r = new NetworkRanker();
+		assertTrue(r.update(null, validated(WIFI, true, 1000)));
+		// A bandwidth wobble within the same bucket is not a change.
+		assertFalse(r.update(null, validated(WIFI, true, 1010)));
+		assertTrue(r.update(null, validated(WIFI, true, 9000)));
+		assertEquals(1, r.ranked().size());
+		assertTrue(r.update(null, null));
+		assertFalse(r.update(null, null));
+		assertEquals(0, r.ranked().size());
+	}
+
+	@Test
+	public void networkRanker_signalWobbleTest() {
+		NetworkRanker r = new NetworkRanker();
+		assertTrue(r.update(null, new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1000, -61)));
+		// Fluctuations within a bucket are not a change.
+		assertFalse(r.update(null, new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1000, -68)));
+		assertFalse(r.update(null, new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1000, -70)));
+		assertTrue(r.update(null, new NetworkRanker.Candidate(null, WIFI, true, true, false, true, 1000, -71)));
+		assertEquals(-80, NetworkRanker.signalBucket(-71));
+		assertEquals(0, NetworkRanker.signalBucket(5));
+		assertEquals(Integer.MIN_VALUE, NetworkRanker.signalBucket(Integer.MIN_VALUE));
+	}
+}
@@ -0,0 +1,83 @@
+package com.tailscale.ipn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NotificationDispatcherTest {
+	private FakeScheduler sched;
+	private List<String> posts;
+	private NotificationDispatcher d;
+
+	@Before
+	public void setUp() {
+		sched = new FakeScheduler();
+		posts = new ArrayList<>();
+		d = new NotificationDispatcher(sched, 500, new NotificationDispatcher.Poster() {
+			@Override public void post(String title, String text) {
+				posts.add(title + "/" + text);
+			}
+		});
+	}
+
+	@Test
+	public void notificationDispatcher_dedupeTest() {
+		d.update("Connected", "wifi");
+		sched.advance(0);
+		d.update("Connected", "wifi");
+		sched.advance(1000);
+		assertEquals(1, posts.size());
+		assertEquals(1, d.postedCount());
+		assertEquals(1, d.suppressedCount());
+
+		d.reset();
+		d.update("Connected", "wifi");
+		sched.advance(1000);
+		assertEquals(2, posts.size());
+	}
+
+	@Test
+	public void notificationDispatcher_burstTest() {
+		d.update("Connecting...", "");
+		sched.advance(0);
+		for (int i = 0; i < 100; i++) {
+			d.update("Connected", "exit " + i);
+			sched.advance(1);
+		}
+		assertEquals(1, posts.size());
+		sched.advance(500);
+		assertEquals(2, posts.size());
+		assertEquals("Connected/exit 99", posts.get(1));
+		assertEquals(99, d.suppressedCount());
+	}
+
+	@Test
+	public void notificationDispatcher_burstRevertsTest() {
+		d.update("Connected", "a");
+		sched.advance(0);
+		d.update("Connected", "b");
+		d.update("Connected", "a");
+		sched.advance(500);
+		assertEquals(1, posts.size());
+		assertEquals(2, d.suppressedCount());
+	}
+
+	@Test
+	public void notificationDispatcher_resetDropsPendingTest() {
+		d.update("Connected", "a");
+		sched.advance(0);
+		d.update("Connected", "b");
+		d.reset();
+		sched.advance(500);
+		assertEquals(1, posts.size());
+
+		d.update("Connected", "a");
+		sched.advance(500);
+		assertEquals(2, posts.size());
+		assertEquals("Connected/a", posts.get(1));
+	}
+}
@@ -0,0 +1,55 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartialReceivesTest {
+	@Test
+	public void partialReceives_recordRoundTripTest() {
+		PartialReceives.Record r = new PartialReceives.Record("content://media/external/file/42", 1L << 33, 1700000000000L);
+		PartialReceives.Record d = PartialReceives.Record.decode(r.encode());
+		assertEquals(r.uri, d.uri);
+		assertEquals(r.offset, d.offset);
+		assertEquals(r.updatedMs, d.updatedMs);
+
+		// The URI keeps its colons.
+		d = PartialReceives.Record.decode("5:6:file:///sdcard/a:b.jpg");
+		assertEquals("file:///sdcard/a:b.jpg", d.uri);
+		assertEquals(5, d.offset);
+	}
+
+	@Test
+	public void partialReceives_malformedRecordTest() {
+		assertNull(PartialReceives.Record.decode(null));
+		assertNull(PartialReceives.Record.decode(""));
+		assertNull(PartialReceives.Record.decode("1:2"));
+		assertNull(PartialReceives.Record.decode("1:2:"));
+		assertNull(PartialReceives.Record.decode("x:2:content://a"));
+		assertNull(PartialReceives.Record.decode("-1:2:content://a"));
+	}
+
+	@Test
+	public void partialReceives_staleTest() {
+		long now = 1700000000000L;
+		assertFalse(new PartialReceives.Record("u", 0, now).isStale(now));
+		assertFalse(new PartialReceives.Record("u", 0, now - PartialReceives.MAX_AGE_MS).isStale(now));
+		assertTrue(new PartialReceives.Record("u", 0, now - PartialReceives.MAX_AGE_MS - 1).isStale(now));
+		// Clock went backwards.
+		assertTrue(new PartialReceives.Record("u", 0, now + 1).isStale(now));
+	}
+
+	@Test
+	public void partialReceives_verifiedOffsetTest() {
+		assertEquals(100, PartialReceives.verifiedOffset(100, 100));
+		// Bytes past the committed offset are rewritten.
+		assertEquals(100, PartialReceives.verifiedOffset(100, 150));
+		// The target lost committed bytes.
+		assertEquals(0, PartialReceives.verifiedOffset(100, 99));
+		// The target is gone.
+		assertEquals(0, PartialReceives.verifiedOffset(100, -1));
+	}
+}
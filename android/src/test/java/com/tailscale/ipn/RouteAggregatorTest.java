@@ -0,0 +1,101 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RouteAggregatorTest {
+	private static List<String> aggregate(String... routes) throws Exception {
+		RouteAggregator agg = new RouteAggregator();
+		for (String r : routes) {
+			String[] parts = r.split("/");
+			agg.add(InetAddress.getByName(parts[0]).getAddress(), Integer.parseInt(parts[1]));
+		}
+		List<String> out = new ArrayList<>();
+		for (RouteAggregator.Route r : agg.result()) {
+			out.add(r.toString());
+		}
+		return out;
+	}
+
+	@Test
+	public void routeAggregator_mergeAdjacentTest() throws Exception {
+		assertEquals(Arrays.asList("10.0.0.0/24"), aggregate("10.0.0.0/25", "10.0.0.128/25"));
+		assertEquals(Arrays.asList("10.0.0.0/22"),
+			aggregate("10.0.2.0/24", "10.0.0.0/24", "10.0.3.0/24", "10.0.1.0/24"));
+		// Adjacent but not siblings.
+		assertEquals(Arrays.asList("10.0.1.0/24", "10.0.2.0/24"), aggregate("10.0.1.0/24", "10.0.2.0/24"));
+	}
+
+	@Test
+	public void routeAggregator_overlapTest() throws Exception {
+		assertEquals(Arrays.asList("10.0.0.0/8"), aggregate("10.1.2.0/24", "10.0.0.0/8", "10.200.0.0/16"));
+		assertEquals(Arrays.asList("100.64.0.0/10", "192.168.1.0/24"),
+			aggregate("192.168.1.0/24", "100.100.100.100/32", "100.64.0.0/10", "192.168.1.7/32"));
+		assertEquals(Arrays.asList("0.0.0.0/0"), aggregate("1.2.3.4/32", "0.0.0.0/0"));
+		// Host bits past the prefix length are ignored.
+		assertEquals(Arrays.asList("10.0.0.0/8"), aggregate("10.1.2.3/8"));
+	}
+
+	@Test
+	public void routeAggregator_ipv6Test() throws Exception {
+		assertEquals(Arrays.asList("10.0.0.0/8", "fd7a:115c:a1e0:0:0:0:0:0/48"),
+			aggregate("fd7a:115c:a1e0:ab12::/64", "fd7a:115c:a1e0::/48", "10.0.0.0/8"));
+		assertEquals(Arrays.asList("0:0:0:0:0:0:0:0/0"), aggregate("::/1", "8000::/1"));
+	}
+
+	// routeAggregator_benchmark aggregates 10k routes: /24s from a few
+	// hundred subnet routers, many of them adjacent, plus some overlapping
+	// host routes and IPv6 prefixes. A round runs on every TUN rebuild and
+	// takes a few milliseconds; the bound is an order of magnitude above
+	// that, loose enough for slow CI machines and still catching a quadratic
+	// regression.
+	@Test
+	public void routeAggregator_benchmark() throws Exception {
+		Random rnd = new Random(1);
+		List<byte[]> ips = new ArrayList<>();
+		List<Integer> bits = new ArrayList<>();
+		for (int i = 0; i < 8000; i++) {
+			ips.add(new byte[]{10, (byte) (i >> 8), (byte) i, 0});
+			bits.add(24);
+		}
+		for (int i = 0; i < 1000; i++) {
+			ips.add(new byte[]{10, (byte) rnd.nextInt(31), (byte) rnd.nextInt(256), (byte) rnd.nextInt(256)});
+			bits.add(32);
+		}
+		for (int i = 0; i < 1000; i++) {
+			byte[] v6 = new byte[16];
+			v6[0] = (byte) 0xfd;
+			v6[1] = 0x7a;
+			v6[6] = (byte) (i >> 8);
+			v6[7] = (byte) i;
+			ips.add(v6);
+			bits.add(64);
+		}
+
+		final int rounds = 20;
+		final long maxRoundMs = 100;
+		int n = 0;
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			RouteAggregator agg = new RouteAggregator();
+			for (int i = 0; i < ips.size(); i++) {
+				agg.add(ips.get(i), bits.get(i));
+			}
+			n = agg.result().size();
+		}
+		long perRoundMs = (System.nanoTime() - start) / rounds / 1000000;
+		// The 8000 /24s merge into 10.0.0.0/12, 10.16.0.0/13 and so on down
+		// to 10.31.0.0/18, covering the host routes, and the 1000 /64s into
+		// one prefix per bit set in 1000.
+		assertEquals(12, n);
+		assertTrue(ips.size() + " routes took " + perRoundMs + "ms per round", perRoundMs < maxRoundMs);
+	}
+}
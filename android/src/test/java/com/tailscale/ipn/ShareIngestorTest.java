@@ -0,0 +1,181 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShareIngestorTest {
+	private static class RecordingSession implements ShareIngestor.Session {
+		final List<List<ShareIngestor.Item>> chunks = new ArrayList<>();
+		final List<Long> closed = new ArrayList<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		long id;
+
+		@Override public synchronized long open() {
+			return ++id;
+		}
+
+		@Override public synchronized boolean push(long session, List<ShareIngestor.Item> chunk) {
+			chunks.add(chunk);
+			return session == id;
+		}
+
+		@Override public synchronized void close(long session) {
+			closed.add(session);
+			done.countDown();
+		}
+	}
+
+	private static Callable<ShareIngestor.Item> item(final int i, final long delayMs, final AtomicInteger resolved) {
+		return new Callable<ShareIngestor.Item>() {
+			@Override public ShareIngestor.Item call() throws Exception {
+				Thread.sleep(delayMs);
+				if (resolved != null) {
+					resolved.incrementAndGet();
+				}
+				if (i % 10 == 9) {
+					// Not accessible.
+					return null;
+				}
+				return new ShareIngestor.Item(ShareIngestor.TYPE_URI, "image/jpeg", "content://media/" + i, "IMG_" + i + ".jpg", i);
+			}
+		};
+	}
+
+	@Test
+	public void shareIngestor_chunksInOrderTest() throws Exception {
+		RecordingSession session = new RecordingSession();
+		ShareIngestor ingestor = new ShareIngestor(session);
+		Random rnd = new Random(1);
+		List<Callable<ShareIngestor.Item>> tasks = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			tasks.add(item(i, rnd.nextInt(2), null));
+		}
+		ingestor.ingest(tasks);
+		assertTrue(session.done.await(10, TimeUnit.SECONDS));
+		assertEquals(1L, (long) session.closed.get(0));
+
+		int expected = 0;
+		int total = 0;
+		for (int c = 0; c < session.chunks.size(); c++) {
+			List<ShareIngestor.Item> chunk = session.chunks.get(c);
+			if (c < session.chunks.size() - 1) {
+				assertEquals(ShareIngestor.CHUNK_SIZE, chunk.size());
+			}
+			for (ShareIngestor.Item it : chunk) {
+				if (expected % 10 == 9) {
+					expected++;
+				}
+				assertEquals("content://media/" + expected, it.item);
+				expected++;
+				total++;
+			}
+		}
+		assertEquals(450, total);
+	}
+
+	@Test
+	public void shareIngestor_emptyShareTest() throws Exception {
+		RecordingSession session = new RecordingSession();
+		new ShareIngestor(session).ingest(new ArrayList<Callable<ShareIngestor.Item>>());
+		assertTrue(session.done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, session.chunks.size());
+		assertEquals(1, session.closed.size());
+	}
+
+	@Test
+	public void shareIngestor_backpressureTest() throws Exception {
+		// The backend accepts one chunk per permit.
+		final Semaphore permits = new Semaphore(0);
+		final AtomicInteger pushed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		ShareIngestor ingestor = new ShareIngestor(new ShareIngestor.Session() {
+			@Override public long open() {
+				return 1;
+			}
+
+			@Override public boolean push(long session, List<ShareIngestor.Item> chunk) {
+				permits.acquireUninterruptibly();
+				pushed.addAndGet(chunk.size());
+				return true;
+			}
+
+			@Override public void close(long session) {
+				done.countDown();
+			}
+		});
+		AtomicInteger resolved = new AtomicInteger();
+		List<Callable<ShareIngestor.Item>> tasks = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			tasks.add(item(i, 0, resolved));
+		}
+		ingestor.ingest(tasks);
+		Thread.sleep(200);
+		// Blocked pushing the first chunk, the ingestor doesn't resolve
+		// more than WINDOW items past it. Filling it takes 71 items, as
+		// every tenth item is skipped.
+		assertEquals(0, pushed.get());
+		assertEquals(71 + ShareIngestor.WINDOW, resolved.get());
+		assertFalse(done.await(0, TimeUnit.MILLISECONDS));
+		permits.release(Integer.MAX_VALUE / 2);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(2000, resolved.get());
+		assertEquals(1800, pushed.get());
+	}
+
+	@Test
+	public void shareIngestor_abandonedSessionTest() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch abandoned = new CountDownLatch(1);
+		final AtomicInteger closes = new AtomicInteger();
+		ShareIngestor ingestor = new ShareIngestor(new ShareIngestor.Session() {
+			long id;
+
+			@Override public synchronized long open() {
+				id++;
+				notifyAll();
+				return id;
+			}
+
+			@Override public synchronized boolean push(long session, List<ShareIngestor.Item> chunk) {
+				blocked.countDown();
+				while (session == id) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				abandoned.countDown();
+				return false;
+			}
+
+			@Override public void close(long session) {
+				closes.incrementAndGet();
+			}
+		});
+		List<Callable<ShareIngestor.Item>> tasks = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			tasks.add(item(i, 0, null));
+		}
+		ingestor.ingest(tasks);
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		// A new share unblocks and abandons the first one.
+		ingestor.ingest(new ArrayList<Callable<ShareIngestor.Item>>());
+		assertTrue(abandoned.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		// Only the second share is closed.
+		assertEquals(1, closes.get());
+	}
+}
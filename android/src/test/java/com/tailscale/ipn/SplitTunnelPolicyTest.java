@@ -0,0 +1,64 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SplitTunnelPolicyTest {
+	private static final String SELF = "com.tailscale.ipn";
+
+	private static SplitTunnelPolicy.Installed only(final String... pkgs) {
+		return new SplitTunnelPolicy.Installed() {
+			@Override public boolean isInstalled(String pkg) {
+				return Arrays.asList(pkgs).contains(pkg);
+			}
+		};
+	}
+
+	@Test
+	public void splitTunnelPolicy_denyTest() {
+		List<String> got = SplitTunnelPolicy.resolve(SplitTunnelPolicy.MODE_DENY,
+			Arrays.asList("com.example.backup", "com.sonos.acr", "com.example.missing"), SELF,
+			only("com.sonos.acr", "com.example.backup", "com.gopro.smarty"));
+		assertEquals(Arrays.asList("com.gopro.smarty", "com.sonos.acr", "com.example.backup"), got);
+	}
+
+	@Test
+	public void splitTunnelPolicy_allowTest() {
+		List<String> got = SplitTunnelPolicy.resolve(SplitTunnelPolicy.MODE_ALLOW,
+			Arrays.asList("com.example.browser", "com.example.missing"), SELF,
+			only("com.example.browser", "com.gopro.smarty"));
+		assertEquals(Collections.singletonList("com.example.browser"), got);
+	}
+
+	@Test
+	public void splitTunnelPolicy_allowNoneInstalledTest() {
+		List<String> got = SplitTunnelPolicy.resolve(SplitTunnelPolicy.MODE_ALLOW,
+			Arrays.asList("com.example.missing"), SELF, only("com.example.browser"));
+		assertEquals(Collections.singletonList(SELF), got);
+	}
+
+	@Test
+	public void splitTunnelPolicy_lookupOnceTest() {
+		final List<String> lookups = new ArrayList<>();
+		SplitTunnelPolicy.Installed counting = new SplitTunnelPolicy.Installed() {
+			@Override public boolean isInstalled(String pkg) {
+				lookups.add(pkg);
+				return false;
+			}
+		};
+		SplitTunnelPolicy.resolve(SplitTunnelPolicy.MODE_DENY, Arrays.asList("com.sonos.acr"), SELF, counting);
+		assertEquals(SplitTunnelPolicy.DEFAULT_DISALLOWED.size(), lookups.size());
+	}
+
+	@Test
+	public void splitTunnelPolicy_parsePackagesTest() {
+		assertEquals(Arrays.asList("a.b", "c.d", "e.f"), SplitTunnelPolicy.parsePackages(" a.b, c.d\ne.f,"));
+		assertEquals(Collections.<String>emptyList(), SplitTunnelPolicy.parsePackages(null));
+	}
+}
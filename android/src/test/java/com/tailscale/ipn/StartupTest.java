@@ -0,0 +1,163 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTest {
+	private static class FakeClock implements Scheduler {
+		final AtomicLong now = new AtomicLong(1000);
+
+		@Override public long now() {
+			return now.get();
+		}
+
+		@Override public void schedule(Runnable r, long delayMs) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static Runnable step(final List<String> log, final String name) {
+		return new Runnable() {
+			@Override public void run() {
+				log.add(name);
+			}
+		};
+	}
+
+	@Test
+	public void startup_parallelPhasesTest() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch bothRunning = new CountDownLatch(2);
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		Startup s = new Startup(pool, new FakeClock());
+		Runnable blocking = new Runnable() {
+			@Override public void run() {
+				bothRunning.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		s.phase("a", blocking);
+		s.phase("b", blocking);
+		s.phase("c", step(log, "c"), "a", "b");
+		final CountDownLatch finished = new CountDownLatch(1);
+		s.start(new Runnable() {
+			@Override public void run() {
+				finished.countDown();
+			}
+		});
+		// Independent phases run at the same time.
+		assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+		assertFalse(s.isDone("c"));
+		assertTrue(log.isEmpty());
+		release.countDown();
+		assertTrue(s.await("c"));
+		assertEquals(1, log.size());
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+	@Test
+	public void startup_whenDoneOrderTest() throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		Startup s = new Startup(pool, new FakeClock());
+		s.phase("go", new Runnable() {
+			@Override public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		s.start(null);
+		s.whenDone("go", step(log, "1"));
+		s.whenDone("go", step(log, "2"));
+		assertTrue(log.isEmpty());
+		release.countDown();
+		s.await("go");
+		assertEquals(2, log.size());
+		// Once done, callbacks run on the calling thread.
+		s.whenDone("go", step(log, "3"));
+		assertEquals("[1, 2, 3]", log.toString());
+		pool.shutdown();
+	}
+
+	@Test
+	public void startup_failureTest() throws Exception {
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		final List<Throwable> uncaught = new ArrayList<>();
+		Startup s = new Startup(new Executor() {
+			@Override public void execute(Runnable r) {
+				try {
+					r.run();
+				} catch (RuntimeException e) {
+					uncaught.add(e);
+				}
+			}
+		}, new FakeClock());
+		s.phase("go", new Runnable() {
+			@Override public void run() {
+				throw new IllegalStateException("no library");
+			}
+		});
+		s.phase("network", step(log, "network"), "go");
+		s.phase("dns", step(log, "dns"));
+		s.start(null);
+		// The failure surfaces on the executor thread, and the dependent
+		// phase doesn't run, but nobody waits forever.
+		assertEquals(1, uncaught.size());
+		assertEquals("[dns]", log.toString());
+		assertFalse(s.await("go"));
+		assertFalse(s.await("network"));
+		assertTrue(s.await("dns"));
+		assertEquals("go 0+0ms failed, network 0+0ms failed, dns 0+0ms (of 0ms)", s.trace());
+	}
+
+	@Test
+	public void startup_traceTest() throws Exception {
+		final FakeClock clock = new FakeClock();
+		final List<Runnable> queued = new ArrayList<>();
+		Startup s = new Startup(new Executor() {
+			@Override public void execute(Runnable r) {
+				queued.add(r);
+			}
+		}, clock);
+		s.phase("go", new Runnable() {
+			@Override public void run() {
+				clock.now.addAndGet(180);
+			}
+		});
+		s.phase("network", new Runnable() {
+			@Override public void run() {
+				clock.now.addAndGet(3);
+			}
+		}, "go");
+		s.start(null);
+		assertEquals("go pending, network pending (of 0ms)", s.trace());
+		clock.now.addAndGet(2);
+		queued.remove(0).run();
+		assertEquals(1, queued.size());
+		queued.remove(0).run();
+		assertEquals("go 2+180ms, network 182+3ms (of 185ms)", s.trace());
+	}
+}
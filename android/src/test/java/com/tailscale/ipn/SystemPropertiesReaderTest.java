@@ -0,0 +1,33 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class SystemPropertiesReaderTest {
+	@Test
+	public void systemPropertiesReader_dnsPropertyKeysTest() {
+		assertEquals(SystemPropertiesReader.dnsPropertyKeys(
+			Arrays.asList("lo", "rmnet_data0", "wlan0"), new String[]{"net"}, new String[]{"rmnet", "pdp"}),
+			Arrays.asList("net.rmnet_data0.dns1", "net.rmnet_data0.dns2", "net.rmnet_data0.dns3", "net.rmnet_data0.dns4"));
+		assertEquals(SystemPropertiesReader.dnsPropertyKeys(
+			Arrays.asList("wlan0"), new String[]{"net", "dhcp"}, new String[]{"wlan"}),
+			Arrays.asList("net.wlan0.dns1", "net.wlan0.dns2", "net.wlan0.dns3", "net.wlan0.dns4",
+				"dhcp.wlan0.dns1", "dhcp.wlan0.dns2", "dhcp.wlan0.dns3", "dhcp.wlan0.dns4"));
+		assertEquals(SystemPropertiesReader.dnsPropertyKeys(
+			Arrays.asList("lo"), new String[]{"net"}, new String[]{"rmnet"}),
+			Collections.<String>emptyList());
+	}
+
+	@Test
+	public void systemPropertiesReader_missingClassTest() {
+		// android.os.SystemProperties does not exist outside Android.
+		SystemPropertiesReader r = new SystemPropertiesReader();
+		assertEquals(r.get("net.dns1"), "");
+		r.invalidate();
+		assertEquals(r.get("net.dns1"), "");
+	}
+}
@@ -0,0 +1,49 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileStateTest {
+	@Test
+	public void tileState_packingTest() {
+		int s = 0;
+		s = TileState.with(s, TileState.READY, true);
+		s = TileState.withLatency(s, 42);
+		s = TileState.with(s, TileState.ACTIVE, true);
+		assertTrue(TileState.isOn(s));
+		assertEquals(42, TileState.latencyMs(s));
+		s = TileState.with(s, TileState.READY, false);
+		assertFalse(TileState.isOn(s));
+		assertEquals(42, TileState.latencyMs(s));
+		assertEquals(TileState.MAX_LATENCY_MS, TileState.latencyMs(TileState.withLatency(s, Integer.MAX_VALUE)));
+		assertEquals(0, TileState.latencyMs(TileState.withLatency(s, -1)));
+		// Setting the latency keeps the flags.
+		assertEquals(TileState.ACTIVE, TileState.withLatency(s, 7) & (TileState.ACTIVE | TileState.READY));
+	}
+
+	@Test
+	public void tileState_visibleTest() {
+		int ready = TileState.with(0, TileState.READY, true);
+		int on = TileState.with(ready, TileState.ACTIVE, true);
+		// The latency is invisible while disconnected, and so is
+		// whether the VPN is active while the backend isn't ready.
+		assertEquals(TileState.visible(ready), TileState.visible(TileState.withLatency(ready, 30)));
+		assertEquals(TileState.visible(0), TileState.visible(TileState.with(0, TileState.ACTIVE, true)));
+		assertTrue(TileState.visible(on) != TileState.visible(TileState.withLatency(on, 30)));
+		assertTrue(TileState.sameButLatency(TileState.visible(on), TileState.visible(TileState.withLatency(on, 30))));
+		assertFalse(TileState.sameButLatency(TileState.visible(on), TileState.visible(ready)));
+	}
+
+	@Test
+	public void tileState_subtitleTest() {
+		int ready = TileState.with(0, TileState.READY, true);
+		int on = TileState.with(ready, TileState.ACTIVE, true);
+		assertEquals("Not ready", TileState.subtitle(TileState.visible(TileState.with(0, TileState.ACTIVE, true))));
+		assertEquals("Disconnected", TileState.subtitle(TileState.visible(ready)));
+		assertEquals("Connected", TileState.subtitle(TileState.visible(on)));
+		assertEquals("Connected, 23 ms", TileState.subtitle(TileState.visible(TileState.withLatency(on, 23))));
+	}
+}
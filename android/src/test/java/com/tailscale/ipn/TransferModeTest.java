@@ -0,0 +1,152 @@
+package com.tailscale.ipn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferModeTest {
+	private static class RecordingSink implements TransferMode.Sink {
+		boolean held;
+		int acquires;
+		int releases;
+		final List<String> shown = new ArrayList<>();
+		final List<Integer> percents = new ArrayList<>();
+		boolean visible;
+
+		@Override public void acquireLocks() {
+			held = true;
+			acquires++;
+		}
+
+		@Override public void releaseLocks() {
+			held = false;
+			releases++;
+		}
+
+		@Override public void showProgress(String title, String text, int percent) {
+			shown.add(title + ": " + text);
+			percents.add(percent);
+			visible = true;
+		}
+
+		@Override public void hideProgress() {
+			visible = false;
+		}
+	}
+
+	private FakeScheduler sched;
+	private RecordingSink sink;
+	private TransferMode mode;
+
+	@Before
+	public void setUp() {
+		sched = new FakeScheduler();
+		sink = new RecordingSink();
+		mode = new TransferMode(sched, sink);
+	}
+
+	@Test
+	public void transferMode_locksOnlyWhileBytesMoveTest() {
+		assertFalse(sink.held);
+		mode.progress(1, false, 1000, 100000);
+		assertTrue(sink.held);
+		assertTrue(mode.isActive());
+		// Bytes keep moving for a minute.
+		for (int i = 0; i < 240; i++) {
+			sched.advance(250);
+			mode.progress(1, false, 1000 + i * 100, 100000);
+		}
+		assertTrue(sink.held);
+		assertEquals(1, mode.activationCount());
+		// The locks were renewed while active.
+		assertTrue(sink.acquires > 1);
+		// Reports without new bytes don't keep the mode alive.
+		for (int i = 0; i < 100; i++) {
+			sched.advance(250);
+			mode.progress(1, false, 1000 + 239 * 100, 100000);
+		}
+		assertFalse(sink.held);
+		assertFalse(mode.isActive());
+		assertFalse(sink.visible);
+		assertEquals(1, sink.releases);
+	}
+
+	@Test
+	public void transferMode_finishReleasesTest() {
+		mode.progress(1, true, 10, 100);
+		sched.advance(10);
+		assertTrue(sink.visible);
+		mode.finish(1);
+		assertFalse(sink.held);
+		assertFalse(sink.visible);
+		mode.finish(1);
+		assertEquals(1, sink.releases);
+		// A pending post after finishing is dropped.
+		mode.progress(1, true, 20, 100);
+		mode.finish(1);
+		int shown = sink.shown.size();
+		sched.advance(5000);
+		assertEquals(shown, sink.shown.size());
+		assertFalse(sink.visible);
+	}
+
+	@Test
+	public void transferMode_throttledProgressTest() {
+		// 10 MB/s for 10s, reported every 10ms.
+		for (int i = 1; i <= 1000; i++) {
+			sched.advance(10);
+			mode.progress(1, true, i * 100000L, 200000000L);
+		}
+		// One post per NOTIFY_INTERVAL_MS.
+		assertTrue(sink.shown.size() <= 11);
+		assertTrue(sink.shown.size() >= 9);
+		assertEquals(10e6, mode.rateBytesPerSecond(), 1e3);
+		sched.advance(TransferMode.NOTIFY_INTERVAL_MS);
+		assertEquals("Sending files: 50%, 10.0 MB/s, 10 s left", sink.shown.get(sink.shown.size() - 1));
+		assertEquals(50, (int) sink.percents.get(sink.percents.size() - 1));
+	}
+
+	@Test
+	public void transferMode_concurrentTransfersTest() {
+		// A send at 1 MB/s and a receive at 3 MB/s, reported every 10ms.
+		for (int i = 1; i <= 500; i++) {
+			sched.advance(10);
+			mode.progress(1, true, i * 10000L, 10000000L);
+			mode.progress(2, false, i * 30000L, 60000000L);
+		}
+		assertEquals(4e6, mode.rateBytesPerSecond(), 1e3);
+		sched.advance(TransferMode.NOTIFY_INTERVAL_MS);
+		assertEquals("Transferring files: 28%, 4.0 MB/s, 12 s left", sink.shown.get(sink.shown.size() - 1));
+
+		// The send finishing leaves the receive in the mode, at its own rate.
+		mode.finish(1);
+		assertTrue(sink.held);
+		assertEquals(0, sink.releases);
+		for (int i = 501; i <= 1500; i++) {
+			sched.advance(10);
+			mode.progress(2, false, i * 30000L, 60000000L);
+		}
+		assertEquals(3e6, mode.rateBytesPerSecond(), 1e3);
+		assertEquals(1, mode.activationCount());
+		mode.finish(2);
+		assertFalse(sink.held);
+		assertEquals(1, sink.releases);
+	}
+
+	@Test
+	public void transferMode_describeTest() {
+		assertEquals("0%", TransferMode.describe(0, 100, 0));
+		assertEquals("12.3 MB", TransferMode.describe(12345678, 0, 0));
+		assertEquals("25%, 1.5 kB/s, 50 s left", TransferMode.describe(25000, 100000, 1500));
+		assertEquals("1%, 1.0 MB/s, 2 h 45 min left", TransferMode.describe(100000000L, 10000000000L, 1e6));
+		assertEquals("999 B", TransferMode.formatBytes(999));
+		assertEquals("1.0 TB", TransferMode.formatBytes(1000000000000L));
+		assertEquals("2 min", TransferMode.formatDuration(100));
+	}
+}
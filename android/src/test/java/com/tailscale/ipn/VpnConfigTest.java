@@ -0,0 +1,67 @@
+package com.tailscale.ipn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class VpnConfigTest {
+	// pack mirrors encodeTUNConfig in backend.go.
+	private static byte[] pack() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(1280);
+		out.writeShort(1);
+		out.writeByte(4);
+		out.write(new byte[]{100, 101, 102, 103});
+		out.writeByte(32);
+		out.writeInt(2);
+		out.writeByte(4);
+		out.write(new byte[]{10, 0, 0, 0});
+		out.writeByte(8);
+		byte[] v6 = new byte[16];
+		v6[0] = (byte) 0xfd;
+		v6[1] = 0x7a;
+		out.writeByte(16);
+		out.write(v6);
+		out.writeByte(48);
+		out.writeShort(1);
+		out.writeByte(4);
+		out.write(new byte[]{100, 100, 100, 100});
+		byte[] dom = "example.ts.net".getBytes(StandardCharsets.UTF_8);
+		out.writeShort(1);
+		out.writeShort(dom.length);
+		out.write(dom);
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void vpnConfig_decodeTest() throws Exception {
+		VpnConfig cfg = VpnConfig.decode(pack());
+		assertEquals(1280, cfg.mtu);
+		assertEquals(Arrays.asList(new VpnConfig.Prefix(InetAddress.getByName("100.101.102.103"), 32)), cfg.addresses);
+		assertEquals(2, cfg.routes.size());
+		assertEquals("10.0.0.0/8", cfg.routes.get(0).toString());
+		assertEquals(48, cfg.routes.get(1).bits);
+		assertEquals(Arrays.asList(InetAddress.getByName("100.100.100.100")), cfg.dnsServers);
+		assertEquals(Arrays.asList("example.ts.net"), cfg.searchDomains);
+	}
+
+	@Test
+	public void vpnConfig_truncatedTest() throws Exception {
+		byte[] packed = pack();
+		try {
+			VpnConfig.decode(Arrays.copyOf(packed, packed.length - 3));
+			fail("decoded a truncated config");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
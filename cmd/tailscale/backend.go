@@ -5,6 +5,7 @@
 package main
 
 import (
+	"encoding/binary"
 	"errors"
 	"fmt"
 	"log"
@@ -53,6 +54,11 @@ type backend struct {
 	// when no nameservers are provided by Tailscale.
 	avoidEmptyDNS bool
 
+	// breakBeforeMake controls whether updateTUN closes the previous
+	// tunnel(s) before establishing a new one, instead of handing over to
+	// the new one and then closing the old, see multiTUN.
+	breakBeforeMake bool
+
 	jvm    *jni.JVM
 	appCtx jni.Object
 }
@@ -61,6 +67,11 @@ type settingsFunc func(*router.Config, *dns.OSConfig) error
 
 const defaultMTU = 1280 // minimalMTU from wgengine/userspace.go
 
+// metricTUNReconfigDowntime is the time, in milliseconds, during which the
+// latest TUN reconfiguration left the kernel routing to a device that was not
+// read yet: from establishing the new interface until it is added and read.
+var metricTUNReconfigDowntime = clientmetric.NewGauge("android_tun_reconfig_downtime_ms")
+
 const (
 	logPrefKey               = "privatelogid"
 	loginMethodPrefKey       = "loginmethod"
@@ -180,121 +191,60 @@ func (b *backend) setCfg(rcfg *router.Config, dcfg *dns.OSConfig) error {
 	return b.settings(rcfg, dcfg)
 }
 
+// rebuildTUN establishes a new TUN for an unchanged configuration, to apply
+// changes made outside of it, such as to the split tunnel policy.
+func (b *backend) rebuildTUN(service jni.Object, rcfg *router.Config, dcfg *dns.OSConfig) error {
+	b.lastCfg = nil
+	return b.updateTUN(service, rcfg, dcfg)
+}
+
 func (b *backend) updateTUN(service jni.Object, rcfg *router.Config, dcfg *dns.OSConfig) error {
 	if reflect.DeepEqual(rcfg, b.lastCfg) && reflect.DeepEqual(dcfg, b.lastDNSCfg) {
 		return nil
 	}
 
-	// Close previous tunnel(s).
-	// This is necessary for ChromeOS, native Android devices
-	// seem to handle seamless handover between tunnels correctly.
-	//
-	// TODO(eliasnaur): If seamless handover becomes a desirable feature, skip
-	// the closing on ChromeOS.
-	b.CloseTUNs()
+	// downSince is when packets stopped having a device to go to.
+	var downSince time.Time
+	if b.breakBeforeMake || len(rcfg.LocalAddrs) == 0 {
+		// Close previous tunnel(s).
+		// This is necessary for ChromeOS, native Android devices
+		// seem to handle seamless handover between tunnels correctly.
+		b.CloseTUNs()
+		downSince = time.Now()
+	}
 
 	if len(rcfg.LocalAddrs) == 0 {
 		return nil
 	}
+	var nameservers []netip.Addr
+	var searchDomains []dnsname.FQDN
+	if dcfg != nil {
+		nameservers = dcfg.Nameservers
+		if b.avoidEmptyDNS && len(nameservers) == 0 {
+			nameservers = googleDNSServers
+		}
+		searchDomains = dcfg.SearchDomains
+	}
+	packed := encodeTUNConfig(defaultMTU, rcfg.LocalAddrs, rcfg.Routes, nameservers, searchDomains)
 	err := jni.Do(b.jvm, func(env *jni.Env) error {
 		cls := jni.GetObjectClass(env, service)
-		// Construct a VPNService.Builder. IPNService.newBuilder calls
-		// setConfigureIntent, and allowFamily for both IPv4 and IPv6.
-		m := jni.GetMethodID(env, cls, "newBuilder", "()Landroid/net/VpnService$Builder;")
-		builder, err := jni.CallObjectMethod(env, service, m)
-		if err != nil {
-			return fmt.Errorf("IPNService.newBuilder: %v", err)
-		}
-		bcls := jni.GetObjectClass(env, builder)
-
-		// builder.setMtu.
-		setMtu := jni.GetMethodID(env, bcls, "setMtu", "(I)Landroid/net/VpnService$Builder;")
-		const mtu = defaultMTU
-		if _, err := jni.CallObjectMethod(env, builder, setMtu, jni.Value(mtu)); err != nil {
-			return fmt.Errorf("VpnService.Builder.setMtu: %v", err)
-		}
-
-		// builder.addDnsServer
-		addDnsServer := jni.GetMethodID(env, bcls, "addDnsServer", "(Ljava/lang/String;)Landroid/net/VpnService$Builder;")
-		// builder.addSearchDomain.
-		addSearchDomain := jni.GetMethodID(env, bcls, "addSearchDomain", "(Ljava/lang/String;)Landroid/net/VpnService$Builder;")
-		if dcfg != nil {
-			nameservers := dcfg.Nameservers
-			if b.avoidEmptyDNS && len(nameservers) == 0 {
-				nameservers = googleDNSServers
-			}
-			for _, dns := range nameservers {
-				_, err = jni.CallObjectMethod(env,
-					builder,
-					addDnsServer,
-					jni.Value(jni.JavaString(env, dns.String())),
-				)
-				if err != nil {
-					return fmt.Errorf("VpnService.Builder.addDnsServer(%v): %v", dns, err)
-				}
-			}
-
-			for _, dom := range dcfg.SearchDomains {
-				_, err = jni.CallObjectMethod(env,
-					builder,
-					addSearchDomain,
-					jni.Value(jni.JavaString(env, dom.WithoutTrailingDot())),
-				)
-				if err != nil {
-					return fmt.Errorf("VpnService.Builder.addSearchDomain(%v): %v", dom, err)
-				}
-			}
-		}
-
-		// builder.addRoute.
-		addRoute := jni.GetMethodID(env, bcls, "addRoute", "(Ljava/lang/String;I)Landroid/net/VpnService$Builder;")
-		for _, route := range rcfg.Routes {
-			// Normalize route address; Builder.addRoute does not accept non-zero masked bits.
-			route = route.Masked()
-			_, err = jni.CallObjectMethod(env,
-				builder,
-				addRoute,
-				jni.Value(jni.JavaString(env, route.Addr().String())),
-				jni.Value(route.Bits()),
-			)
-			if err != nil {
-				return fmt.Errorf("VpnService.Builder.addRoute(%v): %v", route, err)
-			}
-		}
-
-		// builder.addAddress.
-		addAddress := jni.GetMethodID(env, bcls, "addAddress", "(Ljava/lang/String;I)Landroid/net/VpnService$Builder;")
-		for _, addr := range rcfg.LocalAddrs {
-			_, err = jni.CallObjectMethod(env,
-				builder,
-				addAddress,
-				jni.Value(jni.JavaString(env, addr.Addr().String())),
-				jni.Value(addr.Bits()),
-			)
-			if err != nil {
-				return fmt.Errorf("VpnService.Builder.addAddress(%v): %v", addr, err)
-			}
-		}
-
-		// builder.establish.
-		establish := jni.GetMethodID(env, bcls, "establish", "()Landroid/os/ParcelFileDescriptor;")
-		parcelFD, err := jni.CallObjectMethod(env, builder, establish)
+		// IPNService.establishFromConfig calls newBuilder, applies the
+		// packed config and establishes the interface in one call.
+		establish := jni.GetMethodID(env, cls, "establishFromConfig", "([B)I")
+		tunFD, err := jni.CallIntMethod(env, service, establish, jni.Value(jni.NewByteArray(env, packed)))
 		if err != nil {
 			if strings.Contains(err.Error(), "INTERACT_ACROSS_USERS") {
 				return errMultipleUsers
 			}
-			return fmt.Errorf("VpnService.Builder.establish: %v", err)
+			return fmt.Errorf("IPNService.establishFromConfig: %v", err)
 		}
-		if parcelFD == 0 {
+		if tunFD < 0 {
 			return errVPNNotPrepared
 		}
-
-		// detachFd.
-		parcelCls := jni.GetObjectClass(env, parcelFD)
-		detachFd := jni.GetMethodID(env, parcelCls, "detachFd", "()I")
-		tunFD, err := jni.CallIntMethod(env, parcelFD, detachFd)
-		if err != nil {
-			return fmt.Errorf("detachFd: %v", err)
+		if downSince.IsZero() {
+			// The kernel routes to the new interface from now on;
+			// the old one only drains.
+			downSince = time.Now()
 		}
 
 		// Create TUN device.
@@ -305,6 +255,9 @@ func (b *backend) updateTUN(service jni.Object, rcfg *router.Config, dcfg *dns.O
 		}
 
 		b.devices.add(tunDev)
+		downtime := time.Since(downSince)
+		metricTUNReconfigDowntime.Set(downtime.Milliseconds())
+		log.Printf("updateTUN: reconfiguration downtime %v", downtime)
 
 		return nil
 	})
@@ -318,6 +271,54 @@ func (b *backend) updateTUN(service jni.Object, rcfg *router.Config, dcfg *dns.O
 	return nil
 }
 
+// encodeTUNConfig packs a TUN configuration for
+// IPNService.establishFromConfig, see VpnConfig.java. All integers are big
+// endian:
+//
+//	int32 mtu
+//	int16 number of local addresses, then for each: int8 length (4 or 16), raw address bytes, int8 prefix length
+//	int32 number of routes, then for each: as a local address
+//	int16 number of DNS servers, then for each: int8 length (4 or 16), raw address bytes
+//	int16 number of search domains, then for each: int16 length, UTF-8 bytes
+//
+// Routes are masked, as VpnService.Builder.addRoute does not accept non-zero
+// masked bits.
+func encodeTUNConfig(mtu int, addrs, routes []netip.Prefix, nameservers []netip.Addr, domains []dnsname.FQDN) []byte {
+	size := 4 + 2 + 4 + 2 + 2 + (len(addrs)+len(routes))*(1+16+1) + len(nameservers)*(1+16)
+	for _, dom := range domains {
+		size += 2 + len(dom)
+	}
+	buf := make([]byte, 0, size)
+	appendPrefix := func(p netip.Prefix) {
+		ip := p.Addr().AsSlice()
+		buf = append(buf, byte(len(ip)))
+		buf = append(buf, ip...)
+		buf = append(buf, byte(p.Bits()))
+	}
+	buf = binary.BigEndian.AppendUint32(buf, uint32(mtu))
+	buf = binary.BigEndian.AppendUint16(buf, uint16(len(addrs)))
+	for _, addr := range addrs {
+		appendPrefix(addr)
+	}
+	buf = binary.BigEndian.AppendUint32(buf, uint32(len(routes)))
+	for _, route := range routes {
+		appendPrefix(route.Masked())
+	}
+	buf = binary.BigEndian.AppendUint16(buf, uint16(len(nameservers)))
+	for _, ns := range nameservers {
+		ip := ns.AsSlice()
+		buf = append(buf, byte(len(ip)))
+		buf = append(buf, ip...)
+	}
+	buf = binary.BigEndian.AppendUint16(buf, uint16(len(domains)))
+	for _, dom := range domains {
+		d := dom.WithoutTrailingDot()
+		buf = binary.BigEndian.AppendUint16(buf, uint16(len(d)))
+		buf = append(buf, d...)
+	}
+	return buf
+}
+
 // CloseVPN closes any active TUN devices.
 func (b *backend) CloseTUNs() {
 	b.lastCfg = nil
@@ -407,8 +408,10 @@ func (b *backend) logDNSConfigMechanisms() {
 	}
 }
 
-func (b *backend) getPlatformDNSConfig() string {
-	var baseConfig string
+// getPlatformDNSConfig returns the base DNS configuration in the binary
+// form produced by DnsConfig.packDnsConfig, or nil if none is available.
+func (b *backend) getPlatformDNSConfig() []byte {
+	var packed []byte
 	err := jni.Do(b.jvm, func(env *jni.Env) error {
 		cls := jni.GetObjectClass(env, b.appCtx)
 		m := jni.GetMethodID(env, cls, "getDnsConfigObj", "()Lcom/tailscale/ipn/DnsConfig;")
@@ -417,16 +420,75 @@ func (b *backend) getPlatformDNSConfig() string {
 			return fmt.Errorf("getDnsConfigObj: %v", err)
 		}
 		dnsCls := jni.GetObjectClass(env, dns)
-		m = jni.GetMethodID(env, dnsCls, "getDnsConfigAsString", "()Ljava/lang/String;")
+		m = jni.GetMethodID(env, dnsCls, "getDnsConfigPacked", "()[B")
 		n, err := jni.CallObjectMethod(env, dns, m)
-		baseConfig = jni.GoString(env, jni.String(n))
-		return err
+		if err != nil {
+			return err
+		}
+		packed = jni.GetByteArrayElements(env, jni.ByteArray(n))
+		return nil
 	})
 	if err != nil {
 		log.Printf("getPlatformDNSConfig JNI: %v", err)
-		return ""
+		return nil
+	}
+	return packed
+}
+
+// decodeDNSConfig decodes a DNS configuration packed by
+// DnsConfig.packDnsConfig. All integers are big endian:
+//
+//	int32 version
+//	int16 number of servers, then for each: int8 length (4 or 16), raw address bytes,
+//	  and for 16 byte addresses int8 length, UTF-8 zone, empty if unscoped
+//	int16 number of search domains, then for each: int16 length, UTF-8 bytes
+func decodeDNSConfig(packed []byte) (cfg dns.OSConfig, version uint32, _ error) {
+	errShort := errors.New("decodeDNSConfig: truncated config")
+	if len(packed) < 6 {
+		return cfg, 0, errShort
+	}
+	version = binary.BigEndian.Uint32(packed)
+	n := int(binary.BigEndian.Uint16(packed[4:]))
+	packed = packed[6:]
+	for i := 0; i < n; i++ {
+		if len(packed) < 1 || len(packed) < 1+int(packed[0]) {
+			return cfg, version, errShort
+		}
+		l := int(packed[0])
+		ip, ok := netip.AddrFromSlice(packed[1 : 1+l])
+		packed = packed[1+l:]
+		if l == 16 {
+			if len(packed) < 1 || len(packed) < 1+int(packed[0]) {
+				return cfg, version, errShort
+			}
+			zl := int(packed[0])
+			ip = ip.WithZone(string(packed[1 : 1+zl]))
+			packed = packed[1+zl:]
+		}
+		if ok {
+			cfg.Nameservers = append(cfg.Nameservers, ip.Unmap())
+		}
 	}
-	return baseConfig
+	if len(packed) < 2 {
+		return cfg, version, errShort
+	}
+	n = int(binary.BigEndian.Uint16(packed))
+	packed = packed[2:]
+	for i := 0; i < n; i++ {
+		if len(packed) < 2 || len(packed) < 2+int(binary.BigEndian.Uint16(packed)) {
+			return cfg, version, errShort
+		}
+		l := int(binary.BigEndian.Uint16(packed))
+		s := string(packed[2 : 2+l])
+		packed = packed[2+l:]
+		domain, err := dnsname.ToFQDN(s)
+		if err != nil {
+			log.Printf("decodeDNSConfig: unable to parse %q: %v", s, err)
+			continue
+		}
+		cfg.SearchDomains = append(cfg.SearchDomains, domain)
+	}
+	return cfg, version, nil
 }
 
 func (b *backend) getDNSBaseConfig() (ret dns.OSConfig, _ error) {
@@ -443,31 +505,14 @@ func (b *backend) getDNSBaseConfig() (ret dns.OSConfig, _ error) {
 		}
 	}()
 	b.logDNSConfigMechanisms()
-	baseConfig := b.getPlatformDNSConfig()
-	lines := strings.Split(baseConfig, "\n")
-	if len(lines) == 0 {
+	packed := b.getPlatformDNSConfig()
+	if len(packed) == 0 {
 		return dns.OSConfig{}, nil
 	}
 
-	config := dns.OSConfig{}
-	addrs := strings.Trim(lines[0], " \n")
-	for _, addr := range strings.Split(addrs, " ") {
-		ip, err := netip.ParseAddr(addr)
-		if err == nil {
-			config.Nameservers = append(config.Nameservers, ip)
-		}
-	}
-
-	if len(lines) > 1 {
-		for _, s := range strings.Split(strings.Trim(lines[1], " \n"), " ") {
-			domain, err := dnsname.ToFQDN(s)
-			if err != nil {
-				log.Printf("getDNSBaseConfig: unable to parse %q: %v", s, err)
-				continue
-			}
-			config.SearchDomains = append(config.SearchDomains, domain)
-		}
+	config, _, err := decodeDNSConfig(packed)
+	if err != nil {
+		log.Printf("getDNSBaseConfig: %v", err)
 	}
-
 	return config, nil
 }
@@ -7,6 +7,9 @@ package main
 // JNI implementations of Java native callback methods.
 
 import (
+	"log"
+	"strings"
+	"sync/atomic"
 	"unsafe"
 
 	"github.com/tailscale/tailscale-android/jni"
@@ -33,12 +36,15 @@ var (
 	// onConnectivityChange is notified every time the network
 	// conditions change.
 	onConnectivityChange = make(chan bool, 1)
+	// onSplitTunnelChange is notified when the split tunnel policy
+	// applied to the TUN changed.
+	onSplitTunnelChange = make(chan struct{}, 1)
 
 	// onGoogleToken receives google ID tokens.
 	onGoogleToken = make(chan string)
 
-	// onFileShare receives file sharing intents.
-	onFileShare = make(chan []File, 1)
+	// onFileShare receives the sessions of file sharing intents.
+	onFileShare = make(chan *share, 1)
 
 	// onWriteStorageGranted is notified when we are granted WRITE_STORAGE_PERMISSION.
 	onWriteStorageGranted = make(chan struct{}, 1)
@@ -117,13 +123,55 @@ func Java_com_tailscale_ipn_StopVPNWorker_disconnect(env *C.JNIEnv, this C.jobje
     requestBackend(ConnectEvent{Enable: false})
 }
 
+// Reasons for connectivity changes, as in ConnectivityScheduler.java.
+const (
+	connectivityLost           = 1 << 0
+	connectivityLinkProperties = 1 << 1
+	connectivityCapabilities   = 1 << 2
+)
+
+// lastConnected is the connected state of the latest connectivity change:
+// 0 before the first, then 1 if disconnected and 2 if connected.
+var lastConnected atomic.Int32
+
 //export Java_com_tailscale_ipn_App_onConnectivityChanged
-func Java_com_tailscale_ipn_App_onConnectivityChanged(env *C.JNIEnv, cls C.jclass, connected C.jboolean) {
+func Java_com_tailscale_ipn_App_onConnectivityChanged(env *C.JNIEnv, cls C.jclass, connected C.jboolean, reasons C.jint) {
+	isConnected := connected == C.JNI_TRUE
+	state := int32(1)
+	if isConnected {
+		state = 2
+	}
+	// Only log when connected flips; the changes in between are frequent.
+	if lastConnected.Swap(state) != state {
+		logConnectivityChange(isConnected, reasons)
+	}
 	select {
 	case <-onConnectivityChange:
 	default:
 	}
-	onConnectivityChange <- connected == C.JNI_TRUE
+	onConnectivityChange <- isConnected
+}
+
+func logConnectivityChange(connected bool, reasons C.jint) {
+	var why []string
+	if reasons&connectivityLost != 0 {
+		why = append(why, "lost")
+	}
+	if reasons&connectivityLinkProperties != 0 {
+		why = append(why, "link properties")
+	}
+	if reasons&connectivityCapabilities != 0 {
+		why = append(why, "capabilities")
+	}
+	log.Printf("connectivity changed (%s), connected: %v", strings.Join(why, ", "), connected)
+}
+
+//export Java_com_tailscale_ipn_App_onSplitTunnelChanged
+func Java_com_tailscale_ipn_App_onSplitTunnelChanged(env *C.JNIEnv, cls C.jclass) {
+	select {
+	case onSplitTunnelChange <- struct{}{}:
+	default:
+	}
 }
 
 //export Java_com_tailscale_ipn_QuickToggleService_onTileClick
@@ -159,20 +207,30 @@ func Java_com_tailscale_ipn_Peer_onActivityResult0(env *C.JNIEnv, cls C.jclass,
 	}
 }
 
-//export Java_com_tailscale_ipn_App_onShareIntent
-func Java_com_tailscale_ipn_App_onShareIntent(env *C.JNIEnv, cls C.jclass, nfiles C.jint, jtypes C.jintArray, jmimes C.jobjectArray, jitems C.jobjectArray, jnames C.jobjectArray, jsizes C.jlongArray) {
-	const (
-		typeNone   = 0
-		typeInline = 1
-		typeURI    = 2
-	)
+//export Java_com_tailscale_ipn_App_openShareSession
+func Java_com_tailscale_ipn_App_openShareSession(env *C.JNIEnv, cls C.jclass) C.jlong {
+	id, s := openShare()
+	select {
+	case <-onFileShare:
+	default:
+	}
+	onFileShare <- s
+	return C.jlong(id)
+}
+
+//export Java_com_tailscale_ipn_App_pushShareItems
+func Java_com_tailscale_ipn_App_pushShareItems(env *C.JNIEnv, cls C.jclass, session C.jlong, nfiles C.jint, jtypes C.jintArray, jmimes C.jobjectArray, jitems C.jobjectArray, jnames C.jobjectArray, jsizes C.jlongArray) C.jboolean {
+	s := lookupShare(int64(session))
+	if s == nil {
+		return C.JNI_FALSE
+	}
 	jenv := (*jni.Env)(unsafe.Pointer(env))
 	types := jni.GetIntArrayElements(jenv, jni.IntArray(jtypes))
 	mimes := jni.GetStringArrayElements(jenv, jni.ObjectArray(jmimes))
 	items := jni.GetStringArrayElements(jenv, jni.ObjectArray(jitems))
 	names := jni.GetStringArrayElements(jenv, jni.ObjectArray(jnames))
 	sizes := jni.GetLongArrayElements(jenv, jni.LongArray(jsizes))
-	var files []File
+	files := make([]File, 0, int(nfiles))
 	for i := 0; i < int(nfiles); i++ {
 		f := File{
 			Type:     FileType(types[i]),
@@ -194,9 +252,17 @@ func Java_com_tailscale_ipn_App_onShareIntent(env *C.JNIEnv, cls C.jclass, nfile
 		}
 		files = append(files, f)
 	}
-	select {
-	case <-onFileShare:
-	default:
+	// push blocks while the send queue is full, which holds up the
+	// resolution of further items in Java.
+	if !s.push(files) {
+		return C.JNI_FALSE
+	}
+	return C.JNI_TRUE
+}
+
+//export Java_com_tailscale_ipn_App_closeShareSession
+func Java_com_tailscale_ipn_App_closeShareSession(env *C.JNIEnv, cls C.jclass, session C.jlong) {
+	if s := lookupShare(int64(session)); s != nil {
+		s.close()
 	}
-	onFileShare <- files
 }
@@ -8,6 +8,7 @@ import (
 	"context"
 	"crypto/rand"
 	"crypto/sha1"
+	"encoding/binary"
 	"encoding/hex"
 	"errors"
 	"fmt"
@@ -22,6 +23,7 @@ import (
 	"path/filepath"
 	"sort"
 	"strings"
+	"sync"
 	"sync/atomic"
 	"time"
 	"unsafe"
@@ -65,6 +67,14 @@ type App struct {
 	targetsLoaded chan FileTargets
 	// invalidates receives whenever the window should be refreshed.
 	invalidates chan struct{}
+
+	// ifaceMu serializes getInterfacesBinary, whose Java buffer is
+	// reused between calls, and guards the fields below.
+	ifaceMu sync.Mutex
+	// ifaces is the last decoded interface list, at generation ifaceGen
+	// of App.getInterfacesGeneration.
+	ifaces   []interfaces.Interface
+	ifaceGen int64
 }
 
 var (
@@ -257,12 +267,13 @@ func (a *App) runBackend() error {
 		fatalErr(err)
 	}
 	paths.AppSharedDir.Store(appDir)
-	hostinfo.SetOSVersion(a.osVersion())
+	id := a.deviceIdentity()
+	hostinfo.SetOSVersion(id.osVersion)
 	if !googleSignInEnabled() {
 		hostinfo.SetPackage("nogoogle")
 	}
-	deviceModel := a.modelName()
-	if a.isChromeOS() {
+	deviceModel := id.modelName
+	if id.chromeOS {
 		deviceModel = "ChromeOS: " + deviceModel
 	}
 	hostinfo.SetDeviceModel(deviceModel)
@@ -286,10 +297,13 @@ func (a *App) runBackend() error {
 	a.logIDPublicAtomic.Store(b.logIDPublic)
 	defer b.CloseTUNs()
 
+	chromeOS := id.chromeOS
 	// Contrary to the documentation for VpnService.Builder.addDnsServer,
 	// ChromeOS doesn't fall back to the underlying network nameservers if
 	// we don't provide any.
-	b.avoidEmptyDNS = a.isChromeOS()
+	b.avoidEmptyDNS = chromeOS
+	// ChromeOS doesn't hand over between tunnels seamlessly.
+	b.breakBeforeMake = chromeOS
 
 	var timer *time.Timer
 	var alarmChan <-chan time.Time
@@ -362,6 +376,9 @@ func (a *App) runBackend() error {
 					go b.backend.SetPrefs(state.Prefs)
 				}
 				a.setPrefs(state.Prefs)
+				if err := a.setControlStatus(state); err != nil {
+					fatalErr(err)
+				}
 			}
 			if s := n.State; s != nil {
 				oldState := state.State
@@ -398,6 +415,10 @@ func (a *App) runBackend() error {
 				state.NetworkMap = m
 				state.updateExitNodes()
 				a.notify(state)
+				ms := jni.Value(derpLatencyMs(m))
+				if err := a.callVoidMethod(a.appCtx, "setTileLatency", "(I)V", ms); err != nil {
+					fatalErr(err)
+				}
 				if service != 0 {
 					alarm(a.notifyExpiry(service, m.Expiry))
 				}
@@ -526,6 +547,14 @@ func (a *App) runBackend() error {
 				go b.LinkChange()
 			}
 			a.notify(state)
+		case <-onSplitTunnelChange:
+			if b == nil || service == 0 || cfg.rcfg == nil || state.State < ipn.Starting {
+				break
+			}
+			if err := b.rebuildTUN(service, cfg.rcfg, cfg.dcfg); err != nil {
+				log.Printf("VPN rebuild for split tunnel change failed: %v", err)
+				notifyVPNClosed()
+			}
 		case s := <-onDisconnect:
 			b.CloseTUNs()
 			jni.Do(a.jvm, func(env *jni.Env) error {
@@ -544,69 +573,264 @@ func (a *App) runBackend() error {
 	}
 }
 
+// processWaitingFiles moves the received files to shared storage. The
+// targets of all files are reserved in one batch and, once written, published
+// in another, see MediaReceiver.
 func (a *App) processWaitingFiles(b *ipnlocal.LocalBackend) error {
 	files, err := b.WaitingFiles()
 	if err != nil {
 		return err
 	}
-	var aerr error
+	if len(files) == 0 {
+		return nil
+	}
+	names := make([]string, len(files))
+	mimeTypes := make([]string, len(files))
+	keys := make([]string, len(files))
+	for i, f := range files {
+		names[i] = f.Name
+		mimeTypes[i] = mime.TypeByExtension(filepath.Ext(f.Name))
+		keys[i], err = receiveKey(b, f)
+		if err != nil {
+			return fmt.Errorf("receiveKey: %w", err)
+		}
+	}
+	uris, err := a.reserveMedia(names, mimeTypes, keys)
+	if err != nil {
+		return fmt.Errorf("reserveMedia: %w", err)
+	}
+	var totalSize int64
 	for _, f := range files {
-		if err := a.downloadFile(b, f); err != nil && aerr == nil {
+		totalSize += f.Size
+	}
+	meter := a.newTransferMeter(false, func() int64 { return totalSize })
+	defer meter.finish()
+	var (
+		aerr                      error
+		written                   []apitype.WaitingFile
+		writtenURIs, writtenMIMEs []string
+	)
+	for i, f := range files {
+		if err := a.downloadFile(b, f, uris[i], keys[i], meter); err != nil {
+			// Keep the pending target to resume the write
+			// later. Targets not resumed are abandoned after a
+			// day, see PartialReceives.
+			if aerr == nil {
+				aerr = err
+			}
+			continue
+		}
+		written = append(written, f)
+		writtenURIs = append(writtenURIs, uris[i])
+		writtenMIMEs = append(writtenMIMEs, mimeTypes[i])
+	}
+	if len(written) == 0 {
+		return aerr
+	}
+	published, err := a.publishMedia(writtenURIs, writtenMIMEs)
+	if err != nil {
+		a.abandonMedia(writtenURIs)
+		return fmt.Errorf("publishMedia: %w", err)
+	}
+	for i, f := range written {
+		if published[i] == "" {
+			// Not moved out of staging; keep the waiting file, and
+			// the next receive publishes the complete target.
+			if aerr == nil {
+				aerr = fmt.Errorf("publishMedia: %s not published", f.Name)
+			}
+			continue
+		}
+		if err := a.notifyFile(published[i], f.Name); err != nil {
+			fatalErr(err)
+		}
+		if err := b.DeleteFile(f.Name); err != nil && aerr == nil {
 			aerr = err
 		}
 	}
 	return aerr
 }
 
-func (a *App) downloadFile(b *ipnlocal.LocalBackend, f apitype.WaitingFile) (cerr error) {
+// receiveCheckpointBytes is how often the progress of writing a received
+// file is committed, so that an interrupted write resumes from there.
+const receiveCheckpointBytes = 16 << 20
+
+// receiveKeyPrefix is how much of a received file receiveKey hashes.
+const receiveKeyPrefix = 64 << 10
+
+// receiveKey identifies a received file across restarts of the app, for
+// resuming its write: its name and size, and a hash of its first
+// receiveKeyPrefix bytes, so that another file received under the same name
+// and size doesn't resume the interrupted write of the first.
+func receiveKey(b *ipnlocal.LocalBackend, f apitype.WaitingFile) (string, error) {
+	in, _, err := b.OpenFile(f.Name)
+	if err != nil {
+		return "", err
+	}
+	defer in.Close()
+	h := sha1.New()
+	if _, err := io.CopyN(h, in, receiveKeyPrefix); err != nil && err != io.EOF {
+		return "", err
+	}
+	return fmt.Sprintf("%s/%d/%x", f.Name, f.Size, h.Sum(nil)[:8]), nil
+}
+
+// downloadFile copies the received file f to the reserved mediaURI,
+// resuming an interrupted copy of the file with key.
+func (a *App) downloadFile(b *ipnlocal.LocalBackend, f apitype.WaitingFile, mediaURI, key string, meter *transferMeter) error {
 	in, _, err := b.OpenFile(f.Name)
 	if err != nil {
 		return err
 	}
 	defer in.Close()
-	ext := filepath.Ext(f.Name)
-	mimeType := mime.TypeByExtension(ext)
-	var mediaURI string
-	err = jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		insertMedia := jni.GetMethodID(env, cls, "insertMedia", "(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;")
-		jname := jni.JavaString(env, f.Name)
-		jmime := jni.JavaString(env, mimeType)
-		uri, err := jni.CallObjectMethod(env, a.appCtx, insertMedia, jni.Value(jname), jni.Value(jmime))
-		if err != nil {
-			return err
-		}
-		mediaURI = jni.GoString(env, jni.String(uri))
-		return nil
-	})
+	off, err := a.receiveOffset(key)
 	if err != nil {
-		return fmt.Errorf("insertMedia: %w", err)
-	}
-	deleteURI := func(uri string) error {
-		return jni.Do(a.jvm, func(env *jni.Env) error {
-			cls := jni.GetObjectClass(env, a.appCtx)
-			m := jni.GetMethodID(env, cls, "deleteUri", "(Ljava/lang/String;)V")
-			juri := jni.JavaString(env, uri)
-			return jni.CallVoidMethod(env, a.appCtx, m, jni.Value(juri))
-		})
+		return fmt.Errorf("receiveOffset: %w", err)
 	}
-	out, err := a.openURI(mediaURI, "w")
+	if off > 0 {
+		if s, ok := in.(io.Seeker); ok {
+			if _, err := s.Seek(off, io.SeekStart); err != nil {
+				return fmt.Errorf("seek: %w", err)
+			}
+			log.Printf("resuming %s at %d of %d bytes", f.Name, off, f.Size)
+		} else {
+			off = 0
+		}
+	}
+	out, err := a.openURIAt(mediaURI, off)
 	if err != nil {
-		deleteURI(mediaURI)
-		return fmt.Errorf("openUri: %w", err)
+		return fmt.Errorf("openUriAt: %w", err)
 	}
-	if _, err := io.Copy(out, in); err != nil {
-		deleteURI(mediaURI)
-		return fmt.Errorf("copy: %w", err)
+	meter.add(off)
+	src := &progressReader{r: in, size: f.Size - off, progress: meter.add}
+	for {
+		n, err := io.CopyN(out, src, receiveCheckpointBytes)
+		off += n
+		if err == io.EOF {
+			break
+		}
+		if err != nil {
+			out.Close()
+			return fmt.Errorf("copy: %w", err)
+		}
+		if err := out.Sync(); err != nil {
+			out.Close()
+			return fmt.Errorf("sync: %w", err)
+		}
+		if err := a.commitReceive(key, off); err != nil {
+			out.Close()
+			return fmt.Errorf("commitReceive: %w", err)
+		}
 	}
 	if err := out.Close(); err != nil {
-		deleteURI(mediaURI)
 		return fmt.Errorf("close: %w", err)
 	}
-	if err := a.notifyFile(mediaURI, f.Name); err != nil {
-		fatalErr(err)
+	return nil
+}
+
+// receiveOffset calls a.appCtx.receiveOffset, which returns the verified
+// offset to resume writing the received file with key at.
+func (a *App) receiveOffset(key string) (int64, error) {
+	var off int64
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "receiveOffset", "(Ljava/lang/String;)J")
+		jkey := jni.JavaString(env, key)
+		var err error
+		off, err = jni.CallLongMethod(env, a.appCtx, m, jni.Value(jkey))
+		return err
+	})
+	return off, err
+}
+
+// commitReceive calls a.appCtx.commitReceive, which records that the first
+// off bytes of the received file with key are durably written.
+func (a *App) commitReceive(key string, off int64) error {
+	return jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "commitReceive", "(Ljava/lang/String;J)V")
+		jkey := jni.JavaString(env, key)
+		return jni.CallVoidMethod(env, a.appCtx, m, jni.Value(jkey), jni.Value(off))
+	})
+}
+
+// openURIAt calls a.appCtx.openUriAt, which opens uri for writing at off,
+// and returns the detached file descriptor.
+func (a *App) openURIAt(uri string, off int64) (*os.File, error) {
+	var f *os.File
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "openUriAt", "(Ljava/lang/String;J)I")
+		juri := jni.JavaString(env, uri)
+		fd, err := jni.CallIntMethod(env, a.appCtx, m, jni.Value(juri), jni.Value(off))
+		if err != nil {
+			return err
+		}
+		f = os.NewFile(uintptr(fd), "media-store")
+		return nil
+	})
+	return f, err
+}
+
+// reserveMedia calls a.appCtx.reserveMedia, which returns pending targets
+// for the files with names, reusing those of interrupted writes of the files
+// with the same keys.
+func (a *App) reserveMedia(names, mimeTypes, keys []string) ([]string, error) {
+	var uris []string
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "reserveMedia", "([Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;)[Ljava/lang/String;")
+		jnames := jni.NewStringArray(env, names)
+		jmimes := jni.NewStringArray(env, mimeTypes)
+		jkeys := jni.NewStringArray(env, keys)
+		res, err := jni.CallObjectMethod(env, a.appCtx, m, jni.Value(jnames), jni.Value(jmimes), jni.Value(jkeys))
+		if err != nil {
+			return err
+		}
+		uris = jni.GetStringArrayElements(env, jni.ObjectArray(res))
+		return nil
+	})
+	if err == nil && len(uris) != len(names) {
+		err = fmt.Errorf("reserved %d targets for %d files", len(uris), len(names))
+	}
+	return uris, err
+}
+
+// publishMedia calls a.appCtx.publishMedia, which makes the written
+// reserved uris visible and returns their final URIs. The URI of a file
+// that could not be published is "".
+func (a *App) publishMedia(uris, mimeTypes []string) ([]string, error) {
+	var published []string
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "publishMedia", "([Ljava/lang/String;[Ljava/lang/String;)[Ljava/lang/String;")
+		juris := jni.NewStringArray(env, uris)
+		jmimes := jni.NewStringArray(env, mimeTypes)
+		res, err := jni.CallObjectMethod(env, a.appCtx, m, jni.Value(juris), jni.Value(jmimes))
+		if err != nil {
+			return err
+		}
+		published = jni.GetStringArrayElements(env, jni.ObjectArray(res))
+		return nil
+	})
+	if err == nil && len(published) != len(uris) {
+		err = fmt.Errorf("published %d of %d files", len(published), len(uris))
+	}
+	return published, err
+}
+
+// abandonMedia calls a.appCtx.abandonMedia, which deletes the reserved
+// uris.
+func (a *App) abandonMedia(uris []string) {
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "abandonMedia", "([Ljava/lang/String;)V")
+		juris := jni.NewStringArray(env, uris)
+		return jni.CallVoidMethod(env, a.appCtx, m, jni.Value(juris))
+	})
+	if err != nil {
+		log.Printf("abandonMedia: %v", err)
 	}
-	return b.DeleteFile(f.Name)
 }
 
 // openURI calls a.appCtx.getContentResolver().openFileDescriptor on uri and
@@ -628,19 +852,24 @@ func (a *App) openURI(uri, mode string) (*os.File, error) {
 	return f, err
 }
 
-func (a *App) isChromeOS() bool {
-	var chromeOS bool
-	err := jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		m := jni.GetMethodID(env, cls, "isChromeOS", "()Z")
-		b, err := jni.CallBooleanMethod(env, a.appCtx, m)
-		chromeOS = b
-		return err
-	})
-	if err != nil {
-		panic(err)
+// derpLatencyMs returns the latency to the preferred DERP region last
+// reported by this node, or 0 if unknown.
+func derpLatencyMs(m *netmap.NetworkMap) int {
+	if m.SelfNode == nil {
+		return 0
+	}
+	ni := m.SelfNode.Hostinfo.NetInfo()
+	if !ni.Valid() {
+		return 0
+	}
+	var best float64
+	for _, family := range []string{"v4", "v6"} {
+		key := fmt.Sprintf("%d-%s", ni.PreferredDERP(), family)
+		if l, ok := ni.DERPLatency().GetOk(key); ok && (best == 0 || l < best) {
+			best = l
+		}
 	}
-	return chromeOS
+	return int(best * 1000)
 }
 
 func (s *BackendState) updateExitNodes() {
@@ -693,55 +922,88 @@ func (s *BackendState) updateExitNodes() {
 	}
 }
 
-// hostname builds a hostname from android.os.Build fields, in place of a
-// useless os.Hostname().
-func (a *App) hostname() string {
-	var hostname string
-	err := jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		getHostname := jni.GetMethodID(env, cls, "getHostname", "()Ljava/lang/String;")
-		n, err := jni.CallObjectMethod(env, a.appCtx, getHostname)
-		hostname = jni.GoString(env, jni.String(n))
-		return err
-	})
-	if err != nil {
-		panic(err)
-	}
-	return hostname
+// deviceIdentity is the snapshot of the device details returned by
+// App.getDeviceIdentity.
+type deviceIdentity struct {
+	hostname  string
+	modelName string
+	osVersion string
+	chromeOS  bool
+	tv        bool
+	// packageCert is the first package signing certificate, if any.
+	packageCert []byte
 }
 
-// osVersion returns android.os.Build.VERSION.RELEASE. " [nogoogle]" is appended
-// if Google Play services are not compiled in.
-func (a *App) osVersion() string {
-	var version string
+// deviceIdentity returns the device details, cached by the Java side, in
+// one JNI call.
+func (a *App) deviceIdentity() deviceIdentity {
+	var enc []byte
 	err := jni.Do(a.jvm, func(env *jni.Env) error {
 		cls := jni.GetObjectClass(env, a.appCtx)
-		m := jni.GetMethodID(env, cls, "getOSVersion", "()Ljava/lang/String;")
-		n, err := jni.CallObjectMethod(env, a.appCtx, m)
-		version = jni.GoString(env, jni.String(n))
-		return err
+		m := jni.GetMethodID(env, cls, "getDeviceIdentity", "()[B")
+		arr, err := jni.CallObjectMethod(env, a.appCtx, m)
+		if err != nil {
+			return err
+		}
+		enc = jni.GetByteArrayElements(env, jni.ByteArray(arr))
+		return nil
 	})
 	if err != nil {
-		panic(err)
+		fatalErr(err)
 	}
-	return version
+	id, err := decodeDeviceIdentity(enc)
+	if err != nil {
+		fatalErr(err)
+	}
+	return id
 }
 
-// modelName return the MANUFACTURER + MODEL from
-// android.os.Build.
-func (a *App) modelName() string {
-	var model string
-	err := jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		m := jni.GetMethodID(env, cls, "getModelName", "()Ljava/lang/String;")
-		n, err := jni.CallObjectMethod(env, a.appCtx, m)
-		model = jni.GoString(env, jni.String(n))
-		return err
-	})
-	if err != nil {
-		panic(err)
+// decodeDeviceIdentity decodes a device identity encoded by
+// DeviceIdentity.encode, see DeviceIdentity.java. All integers are big
+// endian:
+//
+//	int8 flags: bit 0 set on ChromeOS, bit 1 on a TV
+//	int16 length, UTF-8 hostname
+//	int16 length, UTF-8 model name
+//	int16 length, UTF-8 OS version
+//	int32 length, package certificate
+func decodeDeviceIdentity(b []byte) (deviceIdentity, error) {
+	var id deviceIdentity
+	errShort := errors.New("device identity: short buffer")
+	if len(b) < 1 {
+		return id, errShort
+	}
+	id.chromeOS = b[0]&(1<<0) != 0
+	id.tv = b[0]&(1<<1) != 0
+	b = b[1:]
+	for _, s := range []*string{&id.hostname, &id.modelName, &id.osVersion} {
+		if len(b) < 2 {
+			return id, errShort
+		}
+		n := int(binary.BigEndian.Uint16(b))
+		if len(b) < 2+n {
+			return id, errShort
+		}
+		*s = string(b[2 : 2+n])
+		b = b[2+n:]
+	}
+	if len(b) < 4 {
+		return id, errShort
+	}
+	n := int(binary.BigEndian.Uint32(b))
+	if len(b) != 4+n {
+		return id, errShort
+	}
+	if n > 0 {
+		id.packageCert = b[4:]
 	}
-	return model
+	return id, nil
+}
+
+// hostname returns the device name set by the user, or one built from
+// android.os.Build fields, in place of a useless os.Hostname().
+func (a *App) hostname() string {
+	return a.deviceIdentity().hostname
 }
 
 func googleSignInEnabled() bool {
@@ -837,6 +1099,26 @@ func (a *App) notify(state BackendState) {
 	if err := a.callVoidMethod(a.appCtx, "setTileReady", "(Z)V", jni.Value(ready)); err != nil {
 		fatalErr(err)
 	}
+	if err := a.setControlStatus(state); err != nil {
+		fatalErr(err)
+	}
+}
+
+// setControlStatus updates the status served to automation clients by
+// IPNControlService.
+func (a *App) setControlStatus(state BackendState) error {
+	var exit string
+	if state.ExitStatus != ExitNone {
+		exit = state.Exit.Label
+	}
+	return jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "setControlStatus", "(Ljava/lang/String;Ljava/lang/String;Z)V")
+		jstate := jni.JavaString(env, state.State.String())
+		jexit := jni.JavaString(env, exit)
+		online := jni.Bool(state.ExitStatus == ExitOnline)
+		return jni.CallVoidMethod(env, a.appCtx, m, jni.Value(jstate), jni.Value(jexit), jni.Value(online))
+	})
 }
 
 func (a *App) setPrefs(prefs *ipn.Prefs) {
@@ -871,8 +1153,8 @@ func (a *App) runUI() error {
 		// activity is the most recent Android Activity reference as reported
 		// by Gio ViewEvents.
 		activity jni.Object
-		// files is list of files from the most recent file sharing intent.
-		files []File
+		// files is the most recent file sharing intent.
+		files *share
 	)
 	deleteActivityRef := func() {
 		if activity == 0 {
@@ -992,37 +1274,13 @@ func (a *App) runUI() error {
 }
 
 func (a *App) isTV() bool {
-	var istv bool
-	err := jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		m := jni.GetMethodID(env, cls, "isTV", "()Z")
-		b, err := jni.CallBooleanMethod(env, a.appCtx, m)
-		istv = b
-		return err
-	})
-	if err != nil {
-		fatalErr(err)
-	}
-	return istv
+	return a.deviceIdentity().tv
 }
 
 // isReleaseSigned reports whether the app is signed with a release
 // signature.
 func (a *App) isReleaseSigned() bool {
-	var cert []byte
-	err := jni.Do(a.jvm, func(env *jni.Env) error {
-		cls := jni.GetObjectClass(env, a.appCtx)
-		m := jni.GetMethodID(env, cls, "getPackageCertificate", "()[B")
-		str, err := jni.CallObjectMethod(env, a.appCtx, m)
-		if err != nil {
-			return err
-		}
-		cert = jni.GetByteArrayElements(env, jni.ByteArray(str))
-		return nil
-	})
-	if err != nil {
-		fatalErr(err)
-	}
+	cert := a.deviceIdentity().packageCert
 	h := sha1.New()
 	h.Write(cert)
 	fingerprint := h.Sum(nil)
@@ -1122,7 +1380,7 @@ func requestBackend(e UIEvent) {
 	}()
 }
 
-func (a *App) processUIEvents(w *app.Window, events []UIEvent, act jni.Object, state *clientState, files []File) {
+func (a *App) processUIEvents(w *app.Window, events []UIEvent, act jni.Object, state *clientState, files *share) {
 	for _, e := range events {
 		switch e := e.(type) {
 		case ReauthEvent:
@@ -1137,6 +1395,7 @@ func (a *App) processUIEvents(w *app.Window, events []UIEvent, act jni.Object, s
 			backendLogID, _ := a.logIDPublicAtomic.Load().(string)
 			logMarker := fmt.Sprintf("BUG-%v-%v-%v", backendLogID, time.Now().UTC().Format("20060102150405Z"), randHex(8))
 			log.Printf("user bugreport: %s", logMarker)
+			a.logBugReportDetails()
 			w.WriteClipboard(logMarker)
 		case BeExitNodeEvent:
 			requestBackend(e)
@@ -1177,18 +1436,26 @@ func (a *App) processUIEvents(w *app.Window, events []UIEvent, act jni.Object, s
 	}
 }
 
-func (a *App) sendFiles(e FileSendEvent, files []File) {
+func (a *App) sendFiles(e FileSendEvent, files *share) {
 	go func() {
-		var totalSize int64
-		for _, f := range files {
-			totalSize += f.Size
-		}
-		if totalSize == 0 {
-			totalSize = 1
+		if files == nil {
+			e.Updates(FileSendInfo{
+				State: FileSendComplete,
+			})
+			return
 		}
+		meter := a.newTransferMeter(true, files.totalSize)
+		defer meter.finish()
 		var totalSent int64
 		progress := func(n int64) {
 			totalSent += n
+			meter.add(n)
+			// The total grows while the files of the share are
+			// still being pushed.
+			totalSize := files.totalSize()
+			if totalSize == 0 {
+				totalSize = 1
+			}
 			e.Updates(FileSendInfo{
 				State:    FileSendTransferring,
 				Progress: float64(totalSent) / float64(totalSize),
@@ -1196,7 +1463,13 @@ func (a *App) sendFiles(e FileSendEvent, files []File) {
 			a.invalidate()
 		}
 		defer a.invalidate()
-		for _, f := range files {
+		// Every send reads the share from the start.
+		r := files.reader()
+		for {
+			f, ok := r.next(e.Context)
+			if !ok {
+				break
+			}
 			if err := a.sendFile(e.Context, e.Target, f, progress); err != nil {
 				if errors.Is(err, context.Canceled) {
 					return
@@ -1207,6 +1480,9 @@ func (a *App) sendFiles(e FileSendEvent, files []File) {
 				return
 			}
 		}
+		if e.Context.Err() != nil {
+			return
+		}
 		e.Updates(FileSendInfo{
 			State: FileSendComplete,
 		})
@@ -1253,6 +1529,53 @@ func (a *App) sendFile(ctx context.Context, target *apitype.FileTarget, f File,
 	return nil
 }
 
+// transferReportInterval is how often the progress of a transfer is
+// reported to Java.
+const transferReportInterval = 250 * time.Millisecond
+
+// transferMeter reports the progress of a Taildrop transfer to
+// App.transferProgress, which keeps the device awake and shows the progress
+// while bytes are moving. It is not safe for concurrent use.
+type transferMeter struct {
+	a       *App
+	id      int64 // tells concurrent transfers apart in Java
+	sending bool
+	total   func() int64 // total size of the transfer, 0 if unknown
+	done    int64
+	last    time.Time
+}
+
+// transferIDs hands out the ids of transfer meters.
+var transferIDs atomic.Int64
+
+func (a *App) newTransferMeter(sending bool, total func() int64) *transferMeter {
+	return &transferMeter{a: a, id: transferIDs.Add(1), sending: sending, total: total}
+}
+
+// add records n more bytes transferred.
+func (m *transferMeter) add(n int64) {
+	m.done += n
+	if now := time.Now(); now.Sub(m.last) >= transferReportInterval {
+		m.last = now
+		m.report()
+	}
+}
+
+func (m *transferMeter) report() {
+	err := m.a.callVoidMethod(m.a.appCtx, "transferProgress", "(JZJJ)V",
+		jni.Value(m.id), jni.Value(jni.Bool(m.sending)), jni.Value(m.done), jni.Value(m.total()))
+	if err != nil {
+		log.Printf("transferProgress: %v", err)
+	}
+}
+
+// finish reports the end of the transfer.
+func (m *transferMeter) finish() {
+	if err := m.a.callVoidMethod(m.a.appCtx, "transferFinished", "(J)V", jni.Value(m.id)); err != nil {
+		log.Printf("transferFinished: %v", err)
+	}
+}
+
 // progressReader wraps an io.Reader to call a progress function
 // on every non-zero Read.
 type progressReader struct {
@@ -1353,6 +1676,215 @@ func (a *App) contextForView(view jni.Object) jni.Object {
 
 // Report interfaces in the device in net.Interface format.
 func (a *App) getInterfaces() ([]interfaces.Interface, error) {
+	ifaces, err := a.getInterfacesBinary()
+	if err == nil {
+		return ifaces, nil
+	}
+	log.Printf("getInterfaces: %v; falling back to string format", err)
+	return a.getInterfacesFromString()
+}
+
+// getInterfacesBinary fetches the interfaces in the binary encoding written by
+// NetInterfaces.encode and decodes them. If the Java side reports the same
+// generation as last time the cached result is returned without fetching, and
+// if it is one generation ahead only the changes are fetched and applied.
+func (a *App) getInterfacesBinary() ([]interfaces.Interface, error) {
+	// The Java buffer is reused by the next call, and the cache belongs
+	// to a single generation sequence, so hold ifaceMu throughout.
+	a.ifaceMu.Lock()
+	defer a.ifaceMu.Unlock()
+	var packed []byte
+	var gen int64
+	delta := false
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "getInterfacesGeneration", "()J")
+		var err error
+		gen, err = jni.CallLongMethod(env, a.appCtx, m)
+		if err != nil {
+			return err
+		}
+		if a.ifaces != nil && gen == a.ifaceGen {
+			return nil
+		}
+		var buf jni.Object
+		if a.ifaces != nil && gen == a.ifaceGen+1 {
+			m = jni.GetMethodID(env, cls, "getInterfacesDelta", "(J)Ljava/nio/ByteBuffer;")
+			buf, err = jni.CallObjectMethod(env, a.appCtx, m, jni.Value(a.ifaceGen))
+			if err != nil {
+				return err
+			}
+			delta = buf != 0
+		}
+		if buf == 0 {
+			m = jni.GetMethodID(env, cls, "getInterfacesBuffer", "()Ljava/nio/ByteBuffer;")
+			buf, err = jni.CallObjectMethod(env, a.appCtx, m)
+			if err != nil {
+				return err
+			}
+		}
+		hdr := jni.GetDirectBufferBytes(env, buf, 4)
+		if len(hdr) < 4 {
+			return errors.New("getInterfacesBuffer: not a direct buffer")
+		}
+		packed = jni.GetDirectBufferBytes(env, buf, int(binary.BigEndian.Uint32(hdr)))
+		if packed == nil {
+			return errors.New("getInterfacesBuffer: short buffer")
+		}
+		return nil
+	})
+	if err != nil {
+		return nil, err
+	}
+	if packed != nil {
+		ifaces, removed, err := decodeInterfaces(packed)
+		if err != nil {
+			a.ifaces = nil
+			return nil, err
+		}
+		if delta {
+			ifaces = applyInterfaceDelta(a.ifaces, ifaces, removed)
+		}
+		a.ifaces = ifaces
+		a.ifaceGen = gen
+	}
+	return append([]interfaces.Interface(nil), a.ifaces...), nil
+}
+
+// applyInterfaceDelta returns cur with the interfaces named in removed
+// dropped and the interfaces in upserts added or replaced, by name.
+func applyInterfaceDelta(cur, upserts []interfaces.Interface, removed []string) []interfaces.Interface {
+	byName := make(map[string]interfaces.Interface, len(cur)+len(upserts))
+	for _, iface := range cur {
+		byName[iface.Name] = iface
+	}
+	for _, name := range removed {
+		delete(byName, name)
+	}
+	for _, iface := range upserts {
+		byName[iface.Name] = iface
+	}
+	ifaces := make([]interfaces.Interface, 0, len(byName))
+	for _, iface := range byName {
+		ifaces = append(ifaces, iface)
+	}
+	sort.Slice(ifaces, func(i, j int) bool { return ifaces[i].Index < ifaces[j].Index })
+	return ifaces
+}
+
+// decodeInterfaces decodes the encoding documented in NetInterfaces.java,
+// returning the listed interfaces and the names of the removed ones.
+func decodeInterfaces(packed []byte) ([]interfaces.Interface, []string, error) {
+	errShort := errors.New("decodeInterfaces: truncated encoding")
+	// Field flags, from NetInterfaces.FLAG_*.
+	const (
+		flagUp = 1 << iota
+		flagBroadcast
+		flagLoopback
+		flagPointToPoint
+		flagMulticast
+	)
+	if len(packed) < 6 {
+		return nil, nil, errShort
+	}
+	n := int(binary.BigEndian.Uint16(packed[4:]))
+	p := packed[6:]
+	ifaces := make([]interfaces.Interface, 0, n)
+	for i := 0; i < n; i++ {
+		if len(p) < 2 || len(p) < 2+int(binary.BigEndian.Uint16(p))+11 {
+			return nil, nil, errShort
+		}
+		l := int(binary.BigEndian.Uint16(p))
+		name := string(p[2 : 2+l])
+		p = p[2+l:]
+		index := int(int32(binary.BigEndian.Uint32(p)))
+		mtu := int(int32(binary.BigEndian.Uint32(p[4:])))
+		flags := p[8]
+		naddrs := int(binary.BigEndian.Uint16(p[9:]))
+		p = p[11:]
+
+		newIf := interfaces.Interface{
+			Interface: &net.Interface{
+				Name:  name,
+				Index: index,
+				MTU:   mtu,
+			},
+			AltAddrs: []net.Addr{}, // non-nil to avoid Go using netlink
+		}
+		if flags&flagUp != 0 {
+			newIf.Flags |= net.FlagUp
+		}
+		if flags&flagBroadcast != 0 {
+			newIf.Flags |= net.FlagBroadcast
+		}
+		if flags&flagLoopback != 0 {
+			newIf.Flags |= net.FlagLoopback
+		}
+		if flags&flagPointToPoint != 0 {
+			newIf.Flags |= net.FlagPointToPoint
+		}
+		if flags&flagMulticast != 0 {
+			newIf.Flags |= net.FlagMulticast
+		}
+		for j := 0; j < naddrs; j++ {
+			if len(p) < 1 || len(p) < 2+int(p[0]) {
+				return nil, nil, errShort
+			}
+			l := int(p[0])
+			ip, ok := netip.AddrFromSlice(p[1 : 1+l])
+			bits := int(p[1+l])
+			p = p[2+l:]
+			if !ok {
+				continue
+			}
+			if bits > ip.BitLen() {
+				continue
+			}
+			newIf.AltAddrs = append(newIf.AltAddrs, &net.IPNet{
+				IP:   ip.AsSlice(),
+				Mask: net.CIDRMask(bits, ip.BitLen()),
+			})
+		}
+		ifaces = append(ifaces, newIf)
+	}
+	if len(p) < 2 {
+		return nil, nil, errShort
+	}
+	n = int(binary.BigEndian.Uint16(p))
+	p = p[2:]
+	var removed []string
+	for i := 0; i < n; i++ {
+		if len(p) < 2 || len(p) < 2+int(binary.BigEndian.Uint16(p)) {
+			return nil, nil, errShort
+		}
+		l := int(binary.BigEndian.Uint16(p))
+		removed = append(removed, string(p[2:2+l]))
+		p = p[2+l:]
+	}
+	return ifaces, removed, nil
+}
+
+// logBugReportDetails logs the diagnostics of App.getBugReportDetails next
+// to a bug report marker.
+func (a *App) logBugReportDetails() {
+	var details string
+	err := jni.Do(a.jvm, func(env *jni.Env) error {
+		cls := jni.GetObjectClass(env, a.appCtx)
+		m := jni.GetMethodID(env, cls, "getBugReportDetails", "()Ljava/lang/String;")
+		s, err := jni.CallObjectMethod(env, a.appCtx, m)
+		details = jni.GoString(env, jni.String(s))
+		return err
+	})
+	if err != nil {
+		log.Printf("getBugReportDetails: %v", err)
+		return
+	}
+	log.Printf("bugreport details: %s", details)
+}
+
+// getInterfacesFromString is the compatibility path using
+// App.getInterfacesAsString.
+func (a *App) getInterfacesFromString() ([]interfaces.Interface, error) {
 	var ifaceString string
 	err := jni.Do(a.jvm, func(env *jni.Env) error {
 		cls := jni.GetObjectClass(env, a.appCtx)
@@ -6,24 +6,38 @@ package main
 
 import (
 	"os"
+	"sync"
+	"sync/atomic"
+	"time"
 
 	"github.com/tailscale/wireguard-go/tun"
+	"tailscale.com/util/clientmetric"
 )
 
 // multiTUN implements a tun.Device that supports multiple
 // underlying devices. This is necessary because Android VPN devices
 // have static configurations and wgengine.NewUserspaceEngine
 // assumes a single static tun.Device.
+//
+// Devices are replaced make-before-break. Every open device is read by its
+// own goroutine, feeding one packet channel, so a new device is read as soon
+// as it is added. Writes move to the new device as soon as the write in
+// progress on the previous device completes. The previous device is read
+// until it is drained, no packet arriving for drainIdle, and then closed, so
+// that packets the kernel queued on it before the switch are not lost.
 type multiTUN struct {
 	// devices is for adding new devices.
 	devices chan tun.Device
 	// event is the combined event channel from all active devices.
 	events chan tun.Event
+	// packets carries the packets read from all devices to Read.
+	packets chan packet
+	// readersDone receives a device when its reader stopped.
+	readersDone chan *tunDevice
 
 	close    chan struct{}
 	closeErr chan error
 
-	reads        chan ioRequest
 	writes       chan ioRequest
 	mtus         chan chan mtuReply
 	names        chan chan nameReply
@@ -31,19 +45,73 @@ type multiTUN struct {
 	shutdownDone chan struct{}
 }
 
+// drainIdle is how long a replaced device must go without a packet to be
+// considered drained and closed.
+const drainIdle = 10 * time.Millisecond
+
+// drainTimeout bounds how long a replaced device is read from before it is
+// closed, drained or not.
+const drainTimeout = 100 * time.Millisecond
+
+// maxPacketSize is the size of the buffers devices are read into.
+const maxPacketSize = 65535
+
+// metricTUNReconfigDrain is the time, in milliseconds, from retiring a device
+// in the latest TUN reconfiguration until it was drained and closed. The new
+// device is read meanwhile.
+var metricTUNReconfigDrain = clientmetric.NewGauge("android_tun_reconfig_drain_ms")
+
+// readBufs holds *[]byte buffers of maxPacketSize.
+var readBufs = sync.Pool{
+	New: func() any {
+		b := make([]byte, maxPacketSize)
+		return &b
+	},
+}
+
+// packet is the result of one read of a device.
+type packet struct {
+	buf  *[]byte // from readBufs
+	n    int     // number of packets read, 0 or 1
+	size int
+	err  error
+}
+
 // tunDevice wraps and drives a single run.Device.
 type tunDevice struct {
 	dev tun.Device
-	// close closes the device.
-	close     chan struct{}
-	closeDone chan error
-	// readDone is notified when the read goroutine is done.
-	readDone chan struct{}
+	// retire is closed when a newer device replaces this one.
+	retire chan struct{}
+	// lastRead is when a packet was last read, in Unix nanoseconds.
+	lastRead atomic.Int64
+	// closing is closed right before the device is closed.
+	closing   chan struct{}
+	closeOnce sync.Once
+	closeErr  error
+	// writeDone is notified when the write goroutine is done.
+	writeDone chan struct{}
+}
+
+func newTUNDevice(dev tun.Device) *tunDevice {
+	return &tunDevice{
+		dev:       dev,
+		retire:    make(chan struct{}),
+		closing:   make(chan struct{}),
+		writeDone: make(chan struct{}, 1),
+	}
+}
+
+// closeDevice closes the underlying device, once, and returns the result.
+func (dev *tunDevice) closeDevice() error {
+	dev.closeOnce.Do(func() {
+		close(dev.closing)
+		dev.closeErr = dev.dev.Close()
+	})
+	return dev.closeErr
 }
 
 type ioRequest struct {
 	data   [][]byte
-	sizes  []int
 	offset int
 	reply  chan<- ioReply
 }
@@ -67,9 +135,10 @@ func newTUNDevices() *multiTUN {
 	d := &multiTUN{
 		devices:      make(chan tun.Device),
 		events:       make(chan tun.Event),
+		packets:      make(chan packet),
+		readersDone:  make(chan *tunDevice),
 		close:        make(chan struct{}),
 		closeErr:     make(chan error),
-		reads:        make(chan ioRequest),
 		writes:       make(chan ioRequest),
 		mtus:         make(chan chan mtuReply),
 		names:        make(chan chan nameReply),
@@ -81,68 +150,70 @@ func newTUNDevices() *multiTUN {
 }
 
 func (d *multiTUN) run() {
+	// devices are the devices being read from, oldest first. The newest
+	// is written to.
 	var devices []*tunDevice
-	// readDone is the readDone channel of the device being read from.
-	var readDone chan struct{}
-	// runDone is the closeDone channel of the device being written to.
-	var runDone chan error
+	// writing is the device being written to, or nil.
+	var writing *tunDevice
+	// writeDone is the done channel of writing.
+	var writeDone chan struct{}
+	startWriting := func(dev *tunDevice) {
+		writing, writeDone = dev, dev.writeDone
+		go d.runDevice(dev)
+	}
 	for {
 		select {
-		case <-readDone:
-			// The oldest device has reached EOF, replace it.
-			n := copy(devices, devices[1:])
-			devices = devices[:n]
-			if len(devices) > 0 {
-				// Start reading from the next device.
-				dev := devices[0]
-				readDone = dev.readDone
-				go d.readFrom(dev)
+		case dev := <-d.readersDone:
+			// A device is closed and its reader stopped.
+			for i, x := range devices {
+				if x == dev {
+					devices = append(devices[:i], devices[i+1:]...)
+					break
+				}
 			}
-		case <-runDone:
-			// A device completed runDevice, replace it.
+		case <-writeDone:
+			// A retired device stopped writing, write to the newest.
+			writing, writeDone = nil, nil
 			if len(devices) > 0 {
-				dev := devices[len(devices)-1]
-				runDone = dev.closeDone
-				go d.runDevice(dev)
+				startWriting(devices[len(devices)-1])
 			}
 		case <-d.shutdowns:
 			// Shut down all devices.
 			for _, dev := range devices {
-				close(dev.close)
-				<-dev.closeDone
-				<-dev.readDone
+				dev.closeDevice()
+			}
+			for range devices {
+				<-d.readersDone
+			}
+			if writing != nil {
+				<-writeDone
 			}
 			devices = nil
+			writing, writeDone = nil, nil
 			d.shutdownDone <- struct{}{}
 		case <-d.close:
 			var derr error
 			for _, dev := range devices {
-				if err := <-dev.closeDone; err != nil {
+				if err := dev.closeDevice(); err != nil {
 					derr = err
 				}
 			}
 			d.closeErr <- derr
 			return
 		case dev := <-d.devices:
+			wrap := newTUNDevice(dev)
 			if len(devices) > 0 {
-				// Ask the most recent device to stop.
+				// Retire the newest device: stop writing to it, and
+				// close it once drained.
 				prev := devices[len(devices)-1]
-				close(prev.close)
-			}
-			wrap := &tunDevice{
-				dev:       dev,
-				close:     make(chan struct{}),
-				closeDone: make(chan error),
-				readDone:  make(chan struct{}, 1),
-			}
-			if len(devices) == 0 {
-				// Start using this first device.
-				readDone = wrap.readDone
-				go d.readFrom(wrap)
-				runDone = wrap.closeDone
-				go d.runDevice(wrap)
+				close(prev.retire)
+				go d.drain(prev, time.Now())
 			}
 			devices = append(devices, wrap)
+			go d.readFrom(wrap)
+			if writing == nil {
+				startWriting(wrap)
+			}
 		case m := <-d.mtus:
 			r := mtuReply{mtu: defaultMTU}
 			if len(devices) > 0 {
@@ -161,42 +232,77 @@ func (d *multiTUN) run() {
 	}
 }
 
+// readFrom reads dev into d.packets until it is closed.
 func (d *multiTUN) readFrom(dev *tunDevice) {
 	defer func() {
-		dev.readDone <- struct{}{}
+		select {
+		case d.readersDone <- dev:
+		case <-d.close:
+		}
 	}()
+	sizes := make([]int, 1)
 	for {
-		select {
-		case r := <-d.reads:
-			n, err := dev.dev.Read(r.data, r.sizes, r.offset)
-			stop := false
-			if err != nil {
-				select {
-				case <-dev.close:
-					stop = true
-					err = nil
-				default:
-				}
-			}
-			r.reply <- ioReply{n, err}
-			if stop {
+		buf := readBufs.Get().(*[]byte)
+		n, err := dev.dev.Read([][]byte{*buf}, sizes, 0)
+		if err != nil {
+			select {
+			case <-dev.closing:
+				readBufs.Put(buf)
 				return
+			default:
 			}
+		}
+		if n > 0 {
+			dev.lastRead.Store(time.Now().UnixNano())
+		}
+		select {
+		case d.packets <- packet{buf: buf, n: n, size: sizes[0], err: err}:
+		case <-dev.closing:
+			// Nobody read the packet before dev was drained or shut
+			// down; don't let it hold up the shutdown.
+			readBufs.Put(buf)
+			return
 		case <-d.close:
 			return
 		}
 	}
 }
 
+// drain closes the retired dev once no packet was read from it for
+// drainIdle, or drainTimeout after retiredAt at the latest.
+//
+// The documentation for https://developer.android.com/reference/android/net/VpnService.Builder#establish()
+// states that "Therefore, after draining the old file descriptor...", but
+// pending Reads are never unblocked when a new descriptor is created, so
+// draining can't wait for a read to report the end.
+func (d *multiTUN) drain(dev *tunDevice, retiredAt time.Time) {
+	deadline := retiredAt.Add(drainTimeout)
+	for {
+		last := time.Unix(0, dev.lastRead.Load())
+		if last.Before(retiredAt) {
+			last = retiredAt
+		}
+		wait := time.Until(last.Add(drainIdle))
+		if untilDeadline := time.Until(deadline); untilDeadline < wait {
+			wait = untilDeadline
+		}
+		if wait <= 0 {
+			break
+		}
+		select {
+		case <-time.After(wait):
+		case <-dev.closing:
+			return
+		}
+	}
+	dev.closeDevice()
+	metricTUNReconfigDrain.Set(time.Since(retiredAt).Milliseconds())
+}
+
+// runDevice writes to dev until it is retired or closed.
 func (d *multiTUN) runDevice(dev *tunDevice) {
 	defer func() {
-		// The documentation for https://developer.android.com/reference/android/net/VpnService.Builder#establish()
-		// states that "Therefore, after draining the old file
-		// descriptor...", but pending Reads are never unblocked
-		// when a new descriptor is created.
-		//
-		// Close it instead and hope that no packets are lost.
-		dev.closeDone <- dev.dev.Close()
+		dev.writeDone <- struct{}{}
 	}()
 	// Pump device events.
 	go func() {
@@ -204,7 +310,7 @@ func (d *multiTUN) runDevice(dev *tunDevice) {
 			select {
 			case e := <-dev.dev.Events():
 				d.events <- e
-			case <-dev.close:
+			case <-dev.closing:
 				return
 			}
 		}
@@ -214,7 +320,10 @@ func (d *multiTUN) runDevice(dev *tunDevice) {
 		case w := <-d.writes:
 			n, err := dev.dev.Write(w.data, w.offset)
 			w.reply <- ioReply{n, err}
-		case <-dev.close:
+		case <-dev.retire:
+			// Replaced by a newer device.
+			return
+		case <-dev.closing:
 			// Device closed.
 			return
 		case <-d.close:
@@ -235,15 +344,22 @@ func (d *multiTUN) File() *os.File {
 }
 
 func (d *multiTUN) Read(data [][]byte, sizes []int, offset int) (int, error) {
-	r := make(chan ioReply)
-	d.reads <- ioRequest{data, sizes, offset, r}
-	rep := <-r
-	return rep.count, rep.err
+	select {
+	case p := <-d.packets:
+		defer readBufs.Put(p.buf)
+		if p.n == 0 {
+			return 0, p.err
+		}
+		sizes[0] = copy(data[0][offset:], (*p.buf)[:p.size])
+		return 1, p.err
+	case <-d.close:
+		return 0, os.ErrClosed
+	}
 }
 
 func (d *multiTUN) Write(data [][]byte, offset int) (int, error) {
 	r := make(chan ioReply)
-	d.writes <- ioRequest{data, nil, offset, r}
+	d.writes <- ioRequest{data, offset, r}
 	rep := <-r
 	return rep.count, rep.err
 }
@@ -0,0 +1,171 @@
+// Copyright (c) 2023 Tailscale Inc & AUTHORS All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package main
+
+import (
+	"context"
+	"sync"
+)
+
+// shareQueueLen is the number of files of a share that may be resolved
+// ahead of the furthest send of it. Pushing more files blocks until a send
+// catches up, which in turn stops Java from resolving further files of the
+// share.
+const shareQueueLen = 256
+
+// share is a file sharing session. Java opens a session for a file sharing
+// intent, pushes the files of the intent in chunks as it resolves them and
+// closes it after the last chunk. Sends read the files through a
+// shareReader, so that a send can start before the share is completely
+// resolved, and the share can be sent to several peers or sent again after
+// a failure or cancel.
+type share struct {
+	mu sync.Mutex
+	// files holds the files pushed so far.
+	files []File
+	// size is the total size of files.
+	size int64
+	// read is the number of files read by the furthest reader.
+	read int
+	// closed is set once no more files will be pushed.
+	closed bool
+	// aborted is set when the session was replaced by a newer one.
+	aborted bool
+	// changed is closed and replaced whenever the fields above change.
+	changed chan struct{}
+}
+
+// shareReader is the read position of one send over a share.
+type shareReader struct {
+	s   *share
+	pos int
+}
+
+var (
+	// shareMu guards the fields below.
+	shareMu sync.Mutex
+	// shareSession is the id of the current session, and currentShare
+	// its share.
+	shareSession int64
+	currentShare *share
+)
+
+// openShare opens a new session, aborting the previous one, and returns
+// its id.
+func openShare() (int64, *share) {
+	s := &share{changed: make(chan struct{})}
+	shareMu.Lock()
+	old := currentShare
+	shareSession++
+	id := shareSession
+	currentShare = s
+	shareMu.Unlock()
+	if old != nil {
+		old.abort()
+	}
+	return id, s
+}
+
+// lookupShare returns the share of session id, or nil if it is no longer
+// the current session.
+func lookupShare(id int64) *share {
+	shareMu.Lock()
+	defer shareMu.Unlock()
+	if id != shareSession {
+		return nil
+	}
+	return currentShare
+}
+
+// notifyLocked wakes the waiters of s. s.mu must be held.
+func (s *share) notifyLocked() {
+	close(s.changed)
+	s.changed = make(chan struct{})
+}
+
+// push appends files, waiting while they are too far ahead of the sends.
+// It reports false if the session was aborted, in which case Java stops
+// resolving the share.
+func (s *share) push(files []File) bool {
+	for {
+		s.mu.Lock()
+		if s.aborted {
+			s.mu.Unlock()
+			return false
+		}
+		if len(s.files)-s.read < shareQueueLen {
+			break
+		}
+		changed := s.changed
+		s.mu.Unlock()
+		<-changed
+	}
+	defer s.mu.Unlock()
+	s.files = append(s.files, files...)
+	for _, f := range files {
+		s.size += f.Size
+	}
+	s.notifyLocked()
+	return true
+}
+
+// close marks the end of the files of the share.
+func (s *share) close() {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	s.closed = true
+	s.notifyLocked()
+}
+
+// abort unblocks a pending push. The files pushed so far stay readable.
+func (s *share) abort() {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	s.aborted = true
+	s.closed = true
+	s.notifyLocked()
+}
+
+// reader returns a reader over the files of the share, from the first one.
+func (s *share) reader() *shareReader {
+	return &shareReader{s: s}
+}
+
+// next returns the next file of the share, waiting for it to be pushed. It
+// reports false if the share has no more files or ctx is done.
+func (r *shareReader) next(ctx context.Context) (File, bool) {
+	s := r.s
+	for {
+		s.mu.Lock()
+		if r.pos < len(s.files) {
+			f := s.files[r.pos]
+			r.pos++
+			if r.pos > s.read {
+				s.read = r.pos
+				s.notifyLocked()
+			}
+			s.mu.Unlock()
+			return f, true
+		}
+		if s.closed {
+			s.mu.Unlock()
+			return File{}, false
+		}
+		changed := s.changed
+		s.mu.Unlock()
+		select {
+		case <-changed:
+		case <-ctx.Done():
+			return File{}, false
+		}
+	}
+}
+
+// totalSize returns the size of the files pushed so far.
+func (s *share) totalSize() int64 {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	return s.size
+}
@@ -6,6 +6,7 @@ package main
 
 import (
 	"encoding/base64"
+	"strings"
 
 	"tailscale.com/ipn"
 
@@ -13,8 +14,11 @@ import (
 )
 
 // stateStore is the Go interface for a persistent storage
-// backend by androidx.security.crypto.EncryptedSharedPreferences (see
-// App.java).
+// backed by an encrypted append-only log (see App.java,
+// EncryptedStateStore.java and EncryptedLogStore.java).
+//
+// Writes are committed asynchronously by the Java side; use flush
+// when a write must be on disk before continuing.
 type stateStore struct {
 	jvm *jni.JVM
 	// appCtx is the global Android app context.
@@ -23,6 +27,7 @@ type stateStore struct {
 	// Cached method ids on appCtx.
 	encrypt jni.MethodID
 	decrypt jni.MethodID
+	flushID jni.MethodID
 }
 
 func newStateStore(jvm *jni.JVM, appCtx jni.Object) *stateStore {
@@ -40,6 +45,10 @@ func newStateStore(jvm *jni.JVM, appCtx jni.Object) *stateStore {
 			env, appCls,
 			"decryptFromPref", "(Ljava/lang/String;)Ljava/lang/String;",
 		)
+		s.flushID = jni.GetMethodID(
+			env, appCls,
+			"flushPrefs", "()V",
+		)
 		return nil
 	})
 	return s
@@ -96,7 +105,28 @@ func (s *stateStore) ReadState(id ipn.StateKey) ([]byte, error) {
 
 func (s *stateStore) WriteState(id ipn.StateKey, bs []byte) error {
 	prefKey := prefKeyFor(id)
-	return s.write(prefKey, bs)
+	if err := s.write(prefKey, bs); err != nil {
+		return err
+	}
+	// Losing the machine key or a login profile means
+	// re-authenticating the device, so don't leave them to the
+	// delayed commit.
+	if mustFlush(id) {
+		return s.flush()
+	}
+	return nil
+}
+
+// mustFlush reports whether the state under id must be on disk
+// before WriteState returns: the machine key, the profile list,
+// the current profile and the profiles themselves, which hold
+// the node key. Other state is recreated by the backend.
+func mustFlush(id ipn.StateKey) bool {
+	switch id {
+	case ipn.MachineKeyStateKey, ipn.KnownProfilesStateKey, ipn.CurrentProfileStateKey:
+		return true
+	}
+	return strings.HasPrefix(string(id), "profile-")
 }
 
 func (s *stateStore) read(key string) ([]byte, error) {
@@ -132,3 +162,10 @@ func (s *stateStore) write(key string, value []byte) error {
 	})
 	return err
 }
+
+// flush returns once every earlier write is on disk.
+func (s *stateStore) flush() error {
+	return jni.Do(s.jvm, func(env *jni.Env) error {
+		return jni.CallVoidMethod(env, s.appCtx, s.flushID)
+	})
+}
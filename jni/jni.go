@@ -106,6 +106,10 @@ static jint jni_CallIntMethodA(JNIEnv *env, jobject obj, jmethodID method, jvalu
 	return (*env)->CallIntMethodA(env, obj, method, args);
 }
 
+static jlong jni_CallLongMethodA(JNIEnv *env, jobject obj, jmethodID method, jvalue *args) {
+	return (*env)->CallLongMethodA(env, obj, method, args);
+}
+
 static void jni_CallVoidMethodA(JNIEnv *env, jobject obj, jmethodID method, jvalue *args) {
 	(*env)->CallVoidMethodA(env, obj, method, args);
 }
@@ -158,9 +162,25 @@ static jobject jni_GetObjectArrayElement(JNIEnv *env, jobjectArray array, jsize
 	return (*env)->GetObjectArrayElement(env, array, index);
 }
 
+static jobjectArray jni_NewObjectArray(JNIEnv *env, jsize length, jclass elementClass, jobject initialElement) {
+	return (*env)->NewObjectArray(env, length, elementClass, initialElement);
+}
+
+static void jni_SetObjectArrayElement(JNIEnv *env, jobjectArray array, jsize index, jobject value) {
+	(*env)->SetObjectArrayElement(env, array, index, value);
+}
+
 static jboolean jni_IsInstanceOf(JNIEnv *env, jobject obj, jclass clazz) {
 	return (*env)->IsInstanceOf(env, obj, clazz);
 }
+
+static void *jni_GetDirectBufferAddress(JNIEnv *env, jobject buf) {
+	return (*env)->GetDirectBufferAddress(env, buf);
+}
+
+static jlong jni_GetDirectBufferCapacity(JNIEnv *env, jobject buf) {
+	return (*env)->GetDirectBufferCapacity(env, buf);
+}
 */
 import "C"
 
@@ -271,6 +291,11 @@ func CallIntMethod(e *Env, obj Object, method MethodID, args ...Value) (int32, e
 	return int32(res), exception(e)
 }
 
+func CallLongMethod(e *Env, obj Object, method MethodID, args ...Value) (int64, error) {
+	res := C.jni_CallLongMethodA(env(e), C.jobject(obj), C.jmethodID(method), varArgs(args))
+	return int64(res), exception(e)
+}
+
 // GetByteArrayElements returns the contents of the byte array.
 func GetByteArrayElements(e *Env, jarr ByteArray) []byte {
 	if jarr == 0 {
@@ -343,6 +368,21 @@ func GetLongArrayElements(e *Env, jarr LongArray) []int64 {
 	return r
 }
 
+// GetDirectBufferBytes returns a copy of the first n bytes of a direct
+// java.nio.ByteBuffer. It returns nil if buf is not a direct buffer or is
+// smaller than n.
+func GetDirectBufferBytes(e *Env, buf Object, n int) []byte {
+	if buf == 0 {
+		return nil
+	}
+	addr := C.jni_GetDirectBufferAddress(env(e), C.jobject(buf))
+	capacity := C.jni_GetDirectBufferCapacity(env(e), C.jobject(buf))
+	if addr == nil || n < 0 || int64(capacity) < int64(n) {
+		return nil
+	}
+	return C.GoBytes(addr, C.int(n))
+}
+
 func iterateObjectArray(e *Env, jarr ObjectArray, f func(e *Env, idx int, item Object)) {
 	if jarr == 0 {
 		return
@@ -369,6 +409,32 @@ func NewByteArray(e *Env, content []byte) ByteArray {
 	return ByteArray(jarr)
 }
 
+// NewStringArray allocates a Java String array with the strings. Empty
+// strings become null elements, as with JavaString. It panics if the
+// allocation fails.
+func NewStringArray(e *Env, strs []string) ObjectArray {
+	cname := C.CString("java/lang/String")
+	defer C.free(unsafe.Pointer(cname))
+	cls := C.jni_FindClass(env(e), cname)
+	if cls == 0 {
+		panic("jni: java/lang/String not found")
+	}
+	defer C.jni_DeleteLocalRef(env(e), C.jobject(cls))
+	jarr := C.jni_NewObjectArray(env(e), C.jsize(len(strs)), cls, 0)
+	if jarr == 0 {
+		panic(fmt.Errorf("jni: NewStringArray(%d) failed", len(strs)))
+	}
+	for i, s := range strs {
+		js := JavaString(e, s)
+		if js == 0 {
+			continue
+		}
+		C.jni_SetObjectArrayElement(env(e), jarr, C.jsize(i), C.jobject(js))
+		C.jni_DeleteLocalRef(env(e), C.jobject(js))
+	}
+	return ObjectArray(jarr)
+}
+
 // ClassLoader returns a reference to the Java ClassLoader associated
 // with obj.
 func ClassLoaderFor(e *Env, obj Object) Object {